@@ -17,20 +17,28 @@
 package com.google.android.cameraview;
 
 import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
+import android.graphics.ImageFormat;
 import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
 import android.media.CamcorderProfile;
 import android.media.MediaRecorder;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.support.v4.util.SparseArrayCompat;
 import android.view.SurfaceHolder;
 
-import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 import java.util.SortedSet;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 
 @SuppressWarnings("deprecation")
@@ -39,6 +47,11 @@ class Camera1 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
 
     private static final int INVALID_CAMERA_ID = -1;
 
+    /**
+     * The number of buffers circulating between the camera and the preview frame consumers.
+     */
+    private static final int PREVIEW_BUFFER_COUNT = 3;
+
     private static final SparseArrayCompat<String> FLASH_MODES = new SparseArrayCompat<>();
 
     static {
@@ -62,9 +75,36 @@ class Camera1 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
 
     private int mCameraId;
 
-    private final AtomicBoolean isPictureCaptureInProgress = new AtomicBoolean(false);
+    /**
+     * The thread opening and driving the cameras when they are started asynchronously. It is
+     * shared by all the instances, so that a camera is always released before the next one is
+     * opened.
+     */
+    private static HandlerThread sCameraThread;
+
+    /**
+     * The request the camera is taking a picture for, or {@code null}. Camera1 takes one picture
+     * at a time.
+     */
+    private CaptureQueue.Request mCaptureRequest;
+
+    /**
+     * Whether continuous auto focus reported that it stopped moving, and has not moved since.
+     */
+    private volatile boolean mFocusSettled;
 
-    Camera mCamera;
+    volatile Camera mCamera;
+
+    /**
+     * The handler of {@link #sCameraThread}, or {@code null} if the camera is driven on the
+     * caller's thread.
+     */
+    private volatile Handler mCameraHandler;
+
+    /**
+     * Runs the work of the camera on the main thread when it is not started asynchronously.
+     */
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
 
     private Camera.Parameters mCameraParameters;
 
@@ -74,19 +114,43 @@ class Camera1 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
 
     private String mVideoPath;
 
-    private boolean mIsRecording;
+    /**
+     * Rolls the recording over to new files, or {@code null}.
+     */
+    private MediaRecorderSegmenter mSegmenter;
+
+    /**
+     * Stops the last recording, or {@code null}. The recorder holds the camera until it is
+     * released.
+     */
+    private MediaRecorderStopper mRecorderStopper;
+
+    private volatile boolean mIsRecording;
 
     private final SizeMap mPreviewSizes = new SizeMap();
 
     private final SizeMap mPictureSizes = new SizeMap();
 
-    private AspectRatio mAspectRatio;
+    /**
+     * Written on the calling thread as well when the camera is started asynchronously, so that
+     * the requested ratio is known right away.
+     */
+    private volatile AspectRatio mAspectRatio;
 
     private boolean mShowingPreview;
 
     private boolean mAutoFocus;
 
-    private int mFacing;
+    /**
+     * Whether the focus mode of the open camera is continuous, for callers on other threads than
+     * the one driving the camera.
+     */
+    private volatile boolean mContinuousFocus;
+
+    /**
+     * Written on the calling thread, and read when the camera thread opens a camera.
+     */
+    private volatile int mFacing;
 
     private int mFlash;
 
@@ -100,11 +164,35 @@ class Camera1 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
 
     private boolean mIsScanning;
 
+    private final FrameBufferPool mPreviewBuffers = new FrameBufferPool(PREVIEW_BUFFER_COUNT);
+
+    /**
+     * The frames wrapping the buffers of {@link #mPreviewBuffers}.
+     */
+    private final ArrayList<PreviewFrame> mPreviewFrames = new ArrayList<>(PREVIEW_BUFFER_COUNT);
+
+    /**
+     * The sequence number of the next preview frame since the preview callback was set up.
+     */
+    private long mFrameSequence;
+
+    private int mPreviewWidth;
+
+    private int mPreviewHeight;
+
     Camera1(Callback callback, PreviewImpl preview) {
         super(callback, preview);
         preview.setCallback(new PreviewImpl.Callback() {
             @Override
             public void onSurfaceChanged() {
+                if (postToCameraThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        onSurfaceChanged();
+                    }
+                })) {
+                    return;
+                }
                 if (mCamera != null) {
                     setUpPreview();
                     adjustCameraParameters();
@@ -113,13 +201,85 @@ class Camera1 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
 
             @Override
             public void onSurfaceDestroyed() {
-                stop();
+                // The camera must not use the surface anymore once this returns
+                callOnCameraThread(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        stop();
+                        return null;
+                    }
+                });
             }
         });
     }
 
+    @Override
+    void setAsyncStart(boolean async) {
+        mCameraHandler = async ? new Handler(getCameraThread().getLooper()) : null;
+    }
+
+    @Override
+    boolean isAsyncStart() {
+        return mCameraHandler != null;
+    }
+
+    private static synchronized HandlerThread getCameraThread() {
+        if (sCameraThread == null) {
+            sCameraThread = new HandlerThread("Camera1");
+            sCameraThread.start();
+        }
+        return sCameraThread;
+    }
+
+    /**
+     * Posts the {@code task} to the camera thread if the camera is started asynchronously and
+     * this is not already the camera thread. Tasks are run in the order they are posted.
+     *
+     * @return {@code true} if the task was posted, {@code false} if the caller should run it.
+     */
+    private boolean postToCameraThread(Runnable task) {
+        final Handler handler = mCameraHandler;
+        if (handler == null || handler.getLooper() == Looper.myLooper()) {
+            return false;
+        }
+        handler.post(task);
+        return true;
+    }
+
+    /**
+     * Runs the {@code task} on the camera thread, after all the tasks already posted there, and
+     * waits for its result. Runs it right away if the camera is not started asynchronously.
+     */
+    private <T> T callOnCameraThread(Callable<T> task) {
+        final FutureTask<T> future = new FutureTask<>(task);
+        if (!postToCameraThread(future)) {
+            future.run();
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
     @Override
     boolean start() {
+        if (postToCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                start();
+            }
+        })) {
+            // The result is reported to onCameraOpened or onCameraError
+            return true;
+        }
         chooseCamera();
         if (!openCamera()) {
             mCallback.onCameraError(new CameraOpenException());
@@ -131,26 +291,34 @@ class Camera1 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
         }
         mShowingPreview = true;
         startCameraPreview();
+        if (mCaptureQueue.hasPending()) {
+            startCapture();
+        }
         return true;
     }
 
     @Override
     void stop() {
+        if (postToCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                stop();
+            }
+        })) {
+            return;
+        }
+        mCaptureRequest = null;
+        cancelCaptures(new IllegalStateException("The camera was stopped."));
         if (mCamera != null) {
             mCamera.stopPreview();
             mCamera.setPreviewCallback(null);
         }
+        clearPreviewBuffers();
         mShowingPreview = false;
-        if (mMediaRecorder != null) {
-            mMediaRecorder.stop();
-            mMediaRecorder.release();
-            mMediaRecorder = null;
-
-            if (mIsRecording) {
-                mCallback.onVideoRecorded(mVideoPath);
-                mIsRecording = false;
-            }
+        if (mIsRecording) {
+            stopMediaRecorder();
         }
+        awaitRecorderStopped();
         releaseCamera();
     }
 
@@ -178,7 +346,7 @@ class Camera1 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
     private void startCameraPreview() {
         mCamera.startPreview();
         if (mIsScanning) {
-            mCamera.setPreviewCallback(this);
+            setUpPreviewCallback();
         }
     }
 
@@ -193,6 +361,19 @@ class Camera1 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
             return;
         }
         mFacing = facing;
+        if (postToCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                // Checked on the camera thread, where a pending start has completed
+                restart();
+            }
+        })) {
+            return;
+        }
+        restart();
+    }
+
+    private void restart() {
         if (isCameraOpened()) {
             stop();
             start();
@@ -216,7 +397,26 @@ class Camera1 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
     }
 
     @Override
-    boolean setAspectRatio(AspectRatio ratio) {
+    boolean setAspectRatio(final AspectRatio ratio) {
+        final Handler handler = mCameraHandler;
+        if (handler != null && handler.getLooper() != Looper.myLooper()) {
+            // Answered without waiting for the camera thread, which may be opening the camera. An
+            // unsupported ratio falls back to a supported one once it is applied.
+            if (ratio.equals(mAspectRatio)) {
+                return false;
+            }
+            mAspectRatio = ratio;
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mAspectRatio = ratio;
+                    if (isCameraOpened()) {
+                        adjustCameraParameters();
+                    }
+                }
+            });
+            return true;
+        }
         if (mAspectRatio == null || !isCameraOpened()) {
             // Handle this later when camera is opened
             mAspectRatio = ratio;
@@ -240,10 +440,18 @@ class Camera1 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
     }
 
     @Override
-    void setAutoFocus(boolean autoFocus) {
+    void setAutoFocus(final boolean autoFocus) {
         if (mAutoFocus == autoFocus) {
             return;
         }
+        if (postToCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                setAutoFocus(autoFocus);
+            }
+        })) {
+            return;
+        }
         if (setAutoFocusInternal(autoFocus)) {
             mCamera.setParameters(mCameraParameters);
         }
@@ -254,15 +462,22 @@ class Camera1 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
         if (!isCameraOpened()) {
             return mAutoFocus;
         }
-        String focusMode = mCameraParameters.getFocusMode();
-        return focusMode != null && focusMode.contains("continuous");
+        return mContinuousFocus;
     }
 
     @Override
-    void setFlash(int flash) {
+    void setFlash(final int flash) {
         if (flash == mFlash) {
             return;
         }
+        if (postToCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                setFlash(flash);
+            }
+        })) {
+            return;
+        }
         if (setFlashInternal(flash)) {
             mCamera.setParameters(mCameraParameters);
         }
@@ -284,10 +499,18 @@ class Camera1 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
     }
 
     @Override
-    void setZoom(float zoom) {
+    void setZoom(final float zoom) {
         if (zoom == mZoom) {
             return;
         }
+        if (postToCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                setZoom(zoom);
+            }
+        })) {
+            return;
+        }
         if (setZoomInternal(zoom)) {
             mCamera.setParameters(mCameraParameters);
         }
@@ -299,10 +522,18 @@ class Camera1 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
     }
 
     @Override
-    public void setWhiteBalance(int whiteBalance) {
+    public void setWhiteBalance(final int whiteBalance) {
         if (whiteBalance == mWhiteBalance) {
             return;
         }
+        if (postToCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                setWhiteBalance(whiteBalance);
+            }
+        })) {
+            return;
+        }
         if (setWhiteBalanceInternal(whiteBalance)) {
             mCamera.setParameters(mCameraParameters);
         }
@@ -314,10 +545,18 @@ class Camera1 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
     }
 
     @Override
-    void setScanning(boolean isScanning) {
+    void setScanning(final boolean isScanning) {
         if (isScanning == mIsScanning) {
             return;
         }
+        if (postToCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                setScanning(isScanning);
+            }
+        })) {
+            return;
+        }
         setScanningInternal(isScanning);
     }
 
@@ -332,12 +571,47 @@ class Camera1 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
     }
 
     @Override
-    void takePicture() {
+    void retainFrame(byte[] data) {
+        final PreviewFrame frame = findPreviewFrame(data);
+        if (frame != null) {
+            frame.retain();
+        }
+    }
+
+    @Override
+    void releaseFrame(byte[] data) {
+        final PreviewFrame frame = findPreviewFrame(data);
+        if (frame != null) {
+            frame.close();
+        }
+    }
+
+    @Override
+    void startCapture() {
+        if (postToCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                startCapture();
+            }
+        })) {
+            return;
+        }
         if (!isCameraOpened()) {
-            throw new IllegalStateException(
-                    "Camera is not ready. Call start() before takePicture().");
+            cancelCaptures(new IllegalStateException(
+                    "Camera is not ready. Call start() before takePicture()."));
+            return;
         }
-        if (getAutoFocus()) {
+        if (mCaptureRequest != null) {
+            // The next pending request is taken right after the current picture
+            return;
+        }
+        mCaptureRequest = mCaptureQueue.nextPending();
+        if (mCaptureRequest == null) {
+            return;
+        }
+        if (mIsRecording || isRecorderStopping()) {
+            takeVideoSnapshot();
+        } else if (getAutoFocus() && !(mFastCapture && isFocusSettled())) {
             mCamera.cancelAutoFocus();
             mCamera.autoFocus(new Camera.AutoFocusCallback() {
                 @Override
@@ -350,35 +624,243 @@ class Camera1 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
         }
     }
 
+    /**
+     * @return {@code true} if continuous auto focus has settled, so that a picture can be taken
+     * without a focus sweep. Pictures that may need the flash always focus first.
+     */
+    private boolean isFocusSettled() {
+        return mFocusSettled
+                && (mFlash == Constants.FLASH_OFF || mFlash == Constants.FLASH_TORCH)
+                && Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE.equals(
+                        mCameraParameters.getFocusMode());
+    }
+
+    /**
+     * Tracks whether continuous auto focus is moving. Not available before API level 16, where
+     * the focus is never considered settled.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void setUpAutoFocusMoveCallback() {
+        mFocusSettled = false;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return;
+        }
+        mCamera.setAutoFocusMoveCallback(new Camera.AutoFocusMoveCallback() {
+            @Override
+            public void onAutoFocusMoving(boolean start, Camera camera) {
+                mFocusSettled = !start;
+            }
+        });
+    }
+
     void takePictureInternal() {
-        if (!isPictureCaptureInProgress.getAndSet(true)) {
+        final CaptureQueue.Request request = mCaptureRequest;
+        final boolean exifOrientation = mExifOrientation;
+        final int rotation = calcCameraRotation(mDeviceOrientation);
+        try {
             mCamera.takePicture(null, null, null, new Camera.PictureCallback() {
                 @Override
                 public void onPictureTaken(byte[] data, Camera camera) {
-                    isPictureCaptureInProgress.set(false);
+                    mCaptureRequest = null;
                     camera.cancelAutoFocus();
                     camera.startPreview();
                     if (mIsScanning) {
-                        camera.setPreviewCallback(Camera1.this);
+                        setUpPreviewCallback();
+                    }
+                    if (exifOrientation) {
+                        data = Exif.applyOrientation(data, rotation);
+                    }
+                    deliverPicture(request, ByteBuffer.wrap(data), null);
+                    takeNextPicture();
+                }
+            });
+        } catch (RuntimeException e) {
+            mCaptureRequest = null;
+            failCapture(request, e);
+            takeNextPicture();
+        }
+    }
+
+    /**
+     * Takes the next pending picture right away. Camera1 cannot pipeline still captures, so the
+     * queued pictures are taken one after another, focusing only before the first one.
+     */
+    private void takeNextPicture() {
+        if (!isCameraOpened()) {
+            return;
+        }
+        mCaptureRequest = mCaptureQueue.nextPending();
+        if (mCaptureRequest == null) {
+            return;
+        }
+        if (mIsRecording || isRecorderStopping()) {
+            takeVideoSnapshot();
+        } else {
+            takePictureInternal();
+        }
+    }
+
+    /**
+     * Takes the next preview frame as the picture, without disturbing the recording, and encodes
+     * it on the encoder thread. Camera1 cannot take pictures safely while recording.
+     */
+    private void takeVideoSnapshot() {
+        final CaptureQueue.Request request = mCaptureRequest;
+        final Camera.Size size = mCameraParameters.getPreviewSize();
+        final int rotation = calcCameraRotation(mDeviceOrientation);
+        try {
+            // Replaces the scanning callback for a single frame
+            mCamera.setOneShotPreviewCallback(new Camera.PreviewCallback() {
+                @Override
+                public void onPreviewFrame(byte[] data, Camera camera) {
+                    mCaptureRequest = null;
+                    if (mIsScanning) {
+                        setUpPreviewCallback();
                     }
-                    mCallback.onPictureTaken(data);
+                    // The array is allocated for this callback, so the encoder can keep it
+                    final ByteArrayFrame frame = new ByteArrayFrame(data, size.width, size.height);
+                    frame.open(size.width, size.height, rotation, System.nanoTime());
+                    encodePicture(request, frame);
+                    takeNextPicture();
                 }
             });
+        } catch (RuntimeException e) {
+            mCaptureRequest = null;
+            failCapture(request, e);
+            takeNextPicture();
+        }
+    }
+
+    @Override
+    void setPictureResolution(final Size size) {
+        if (postToCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                setPictureResolution(size);
+            }
+        })) {
+            return;
+        }
+        super.setPictureResolution(size);
+        updatePictureSize();
+    }
+
+    @Override
+    void setPictureMaxPixels(final int maxPixels) {
+        if (postToCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                setPictureMaxPixels(maxPixels);
+            }
+        })) {
+            return;
+        }
+        super.setPictureMaxPixels(maxPixels);
+        updatePictureSize();
+    }
+
+    private void updatePictureSize() {
+        if (!isCameraOpened()) {
+            // Applied when the camera opens
+            return;
+        }
+        final Size pictureSize = choosePictureSize(mPictureSizes, mAspectRatio);
+        if (pictureSize != null) {
+            mCameraParameters.setPictureSize(pictureSize.getWidth(), pictureSize.getHeight());
+            mCamera.setParameters(mCameraParameters);
+        }
+    }
+
+    @Override
+    void setExifOrientation(final boolean exifOrientation) {
+        if (postToCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                setExifOrientation(exifOrientation);
+            }
+        })) {
+            return;
+        }
+        super.setExifOrientation(exifOrientation);
+        if (isCameraOpened()) {
+            mCameraParameters.setRotation(calcJpegRotation());
+            mCamera.setParameters(mCameraParameters);
+        }
+    }
+
+    @Override
+    void setThumbnailSize(final int maxSize) {
+        if (postToCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                setThumbnailSize(maxSize);
+            }
+        })) {
+            return;
+        }
+        super.setThumbnailSize(maxSize);
+        if (isCameraOpened()) {
+            setThumbnailSizeInternal(maxSize);
+            mCamera.setParameters(mCameraParameters);
+        }
+    }
+
+    /**
+     * Asks the camera to embed a thumbnail of about {@code maxSize} into the pictures, so that
+     * {@link #deliverThumbnail(ByteBuffer)} does not need to decode them.
+     */
+    private void setThumbnailSizeInternal(int maxSize) {
+        if (maxSize <= 0) {
+            return;
+        }
+        final List<Camera.Size> supported = mCameraParameters.getSupportedJpegThumbnailSizes();
+        if (supported == null) {
+            return;
+        }
+        final SizeMap sizes = new SizeMap();
+        for (Camera.Size size : supported) {
+            // 0x0 stands for no thumbnail
+            if (size.width > 0 && size.height > 0) {
+                sizes.add(new Size(size.width, size.height));
+            }
+        }
+        final Size size = JpegThumbnail.chooseSize(sizes, mAspectRatio, maxSize);
+        if (size != null) {
+            mCameraParameters.setJpegThumbnailSize(size.getWidth(), size.getHeight());
         }
     }
 
     @Override
-    boolean record(String path, int maxDuration, int maxFileSize, boolean recordAudio,
-            CamcorderProfile profile) {
+    boolean record(final String path, final int maxDuration, final int maxFileSize,
+            final boolean recordAudio, final CamcorderProfile profile) {
+        final Handler handler = mCameraHandler;
+        if (handler != null && handler.getLooper() != Looper.myLooper()) {
+            // Started without waiting for the camera thread; a failure is reported instead
+            if (mIsRecording) {
+                return false;
+            }
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!record(path, maxDuration, maxFileSize, recordAudio, profile)) {
+                        mCallback.onCameraError(
+                                new IllegalStateException("Failed to start the recording."));
+                    }
+                }
+            });
+            return true;
+        }
         if (!mIsRecording) {
+            awaitRecorderStopped();
             setUpMediaRecorder(path, maxDuration, maxFileSize, recordAudio, profile);
             try {
                 mMediaRecorder.prepare();
                 mMediaRecorder.start();
                 mIsRecording = true;
                 return true;
-            } catch (IOException e) {
+            } catch (IOException | RuntimeException e) {
                 e.printStackTrace();
+                releaseMediaRecorder();
                 return false;
             }
         }
@@ -392,22 +874,35 @@ class Camera1 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
 
     @Override
     void stopRecording() {
+        if (postToCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                stopRecording();
+            }
+        })) {
+            return;
+        }
         if (mIsRecording) {
             stopMediaRecorder();
-            if (mCamera != null) {
-                mCamera.lock();
-            }
         }
     }
 
     @Override
-    void setDisplayOrientation(int displayOrientation, int deviceOrientation) {
+    void setDisplayOrientation(final int displayOrientation, final int deviceOrientation) {
+        if (postToCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                setDisplayOrientation(displayOrientation, deviceOrientation);
+            }
+        })) {
+            return;
+        }
         mDeviceOrientation = deviceOrientation;
         if (mDisplayOrientation != displayOrientation) {
             mDisplayOrientation = displayOrientation;
         }
         if (isCameraOpened()) {
-            mCameraParameters.setRotation(calcCameraRotation(mDeviceOrientation));
+            mCameraParameters.setRotation(calcJpegRotation());
             mCamera.setParameters(mCameraParameters);
 
             if (mDisplayOrientation != displayOrientation) {
@@ -445,6 +940,7 @@ class Camera1 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
         try {
             mCamera = Camera.open(mCameraId);
             mCameraParameters = mCamera.getParameters();
+            setUpAutoFocusMoveCallback();
             // Supported preview sizes
             mPreviewSizes.clear();
             for (Camera.Size size : mCameraParameters.getSupportedPreviewSizes()) {
@@ -488,14 +984,14 @@ class Camera1 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
         Size size = chooseOptimalSize(sizes);
 
         // Always re-apply camera parameters
-        // Largest picture size in this ratio
-        final Size pictureSize = mPictureSizes.sizes(mAspectRatio).last();
+        final Size pictureSize = choosePictureSize(mPictureSizes, mAspectRatio);
         if (mShowingPreview) {
             mCamera.stopPreview();
         }
         mCameraParameters.setPreviewSize(size.getWidth(), size.getHeight());
         mCameraParameters.setPictureSize(pictureSize.getWidth(), pictureSize.getHeight());
-        mCameraParameters.setRotation(calcCameraRotation(mDeviceOrientation));
+        mCameraParameters.setRotation(calcJpegRotation());
+        setThumbnailSizeInternal(mThumbnailSize);
         setAutoFocusInternal(mAutoFocus);
         setFlashInternal(mFlash);
         setAspectRatio(mAspectRatio);
@@ -583,6 +1079,14 @@ class Camera1 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
         }
     }
 
+    /**
+     * @return The rotation the camera applies to pictures; none if it is written as an Exif tag
+     * instead.
+     */
+    private int calcJpegRotation() {
+        return mExifOrientation ? 0 : calcCameraRotation(mDeviceOrientation);
+    }
+
     /**
      * Test if the supplied orientation is in landscape.
      *
@@ -599,6 +1103,8 @@ class Camera1 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
      */
     private boolean setAutoFocusInternal(boolean autoFocus) {
         mAutoFocus = autoFocus;
+        // The focus moves again once the mode changes
+        mFocusSettled = false;
         if (isCameraOpened()) {
             final List<String> modes = mCameraParameters.getSupportedFocusModes();
             if (autoFocus && modes.contains(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE)) {
@@ -610,6 +1116,8 @@ class Camera1 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
             } else {
                 mCameraParameters.setFocusMode(modes.get(0));
             }
+            final String focusMode = mCameraParameters.getFocusMode();
+            mContinuousFocus = focusMode != null && focusMode.contains("continuous");
             return true;
         } else {
             return false;
@@ -685,17 +1193,133 @@ class Camera1 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
         mIsScanning = isScanning;
         if (isCameraOpened()) {
             if (mIsScanning) {
-                mCamera.setPreviewCallback(this);
+                setUpPreviewCallback();
             } else {
-                mCamera.setPreviewCallback(null);
+                mCamera.setPreviewCallbackWithBuffer(null);
+                clearPreviewBuffers();
             }
         }
     }
 
+    /**
+     * Registers this as the preview callback with the buffers of {@link #mPreviewBuffers}, so
+     * that the camera does not allocate a new array for every frame. The buffers are only
+     * allocated again when the preview size or format changed.
+     */
+    private void setUpPreviewCallback() {
+        final Camera.Size size = mCameraParameters.getPreviewSize();
+        final int bufferSize = calcPreviewBufferSize(size.width, size.height,
+                mCameraParameters.getPreviewFormat());
+        final boolean reuse = size.width == mPreviewWidth && size.height == mPreviewHeight
+                && bufferSize == mPreviewBuffers.getBufferSize();
+        mPreviewWidth = size.width;
+        mPreviewHeight = size.height;
+        mFrameSequence = 0;
+        // Installing a null callback clears the buffers still queued from the previous setup
+        mCamera.setPreviewCallbackWithBuffer(null);
+        synchronized (mPreviewFrames) {
+            if (reuse && !mPreviewFrames.isEmpty()) {
+                // The buffers held by consumers or withheld by throttling are queued once they
+                // come back; only those the camera had are queued again
+                for (int i = 0, count = mPreviewFrames.size(); i < count; i++) {
+                    final PreviewFrame frame = mPreviewFrames.get(i);
+                    if (frame.mQueued) {
+                        mCamera.addCallbackBuffer(frame.getData());
+                    }
+                }
+            } else {
+                mPreviewFrames.clear();
+                mPreviewBuffers.reset(bufferSize);
+                byte[] buffer;
+                while ((buffer = mPreviewBuffers.obtain()) != null) {
+                    final PreviewFrame frame = new PreviewFrame(buffer, size.width, size.height);
+                    mPreviewFrames.add(frame);
+                    mCamera.addCallbackBuffer(buffer);
+                    frame.mQueued = true;
+                }
+            }
+        }
+        mCamera.setPreviewCallbackWithBuffer(this);
+    }
+
+    private void clearPreviewBuffers() {
+        synchronized (mPreviewFrames) {
+            mPreviewFrames.clear();
+            mPreviewBuffers.clear();
+        }
+    }
+
+    /**
+     * @return The frame wrapping the preview buffer {@code data}, or {@code null} if the buffer
+     * does not belong to {@link #mPreviewBuffers} anymore.
+     */
+    private PreviewFrame findPreviewFrame(byte[] data) {
+        synchronized (mPreviewFrames) {
+            for (int i = 0, count = mPreviewFrames.size(); i < count; i++) {
+                final PreviewFrame frame = mPreviewFrames.get(i);
+                if (frame.getData() == data) {
+                    return frame;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Hands the {@code buffer} back to the camera so that it can be filled with another frame.
+     */
+    private void queuePreviewBuffer(byte[] buffer) {
+        final Camera camera = mCamera;
+        if (camera == null) {
+            return;
+        }
+        try {
+            camera.addCallbackBuffer(buffer);
+        } catch (RuntimeException e) {
+            // The camera has been released in the meantime
+        }
+    }
+
+    /**
+     * Calculates the size of a preview buffer.
+     * https://developer.android.com/reference/android/hardware/Camera.html#addCallbackBuffer
+     * (byte[])
+     *
+     * @return The number of bytes needed to hold a single preview frame.
+     */
+    private static int calcPreviewBufferSize(int width, int height, int format) {
+        if (format == ImageFormat.YV12) {
+            final int yStride = (int) Math.ceil(width / 16.0) * 16;
+            final int uvStride = (int) Math.ceil((yStride / 2) / 16.0) * 16;
+            return yStride * height + uvStride * height / 2 * 2;
+        }
+        return width * height * ImageFormat.getBitsPerPixel(format) / 8;
+    }
+
     @Override
     public void onPreviewFrame(byte[] data, Camera camera) {
-        Camera.Size previewSize = mCameraParameters.getPreviewSize();
-        mCallback.onFramePreview(data, previewSize.width, previewSize.height, mDisplayOrientation);
+        final PreviewFrame frame = findPreviewFrame(data);
+        if (frame == null) {
+            return;
+        }
+        synchronized (mPreviewFrames) {
+            if (!frame.isIdle()) {
+                // Queued again while a consumer still holds it
+                return;
+            }
+            frame.mQueued = false;
+        }
+        final long timestamp = System.nanoTime();
+        final long sequenceNumber = mFrameSequence++;
+        if (!mFrameRateLimiter.accept(timestamp)) {
+            frame.requeue();
+            return;
+        }
+        frame.open(mPreviewWidth, mPreviewHeight, mDisplayOrientation, timestamp);
+        // Camera1 does not report the exposure of preview frames
+        frame.getMetadata().setSequenceNumber(sequenceNumber);
+        mCallback.onFrameAvailable(frame);
+        frame.close();
     }
 
     private void setUpMediaRecorder(String path, int maxDuration, int maxFileSize,
@@ -727,31 +1351,59 @@ class Camera1 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
         if (maxFileSize != -1) {
             mMediaRecorder.setMaxFileSize(maxFileSize);
         }
+        mSegmenter = mSegmentedRecording && maxFileSize != -1
+                && MediaRecorderSegmenter.isSupported()
+                ? new MediaRecorderSegmenter(mMediaRecorder, path, mCallback) : null;
 
         mMediaRecorder.setOnInfoListener(this);
         mMediaRecorder.setOnErrorListener(this);
     }
 
+    /**
+     * Hands {@link #mMediaRecorder} over to a {@link MediaRecorderStopper}, which reports the
+     * video once the file is complete. The preview goes on in the meantime.
+     */
     private void stopMediaRecorder() {
         mIsRecording = false;
-        if (mMediaRecorder != null) {
-            try {
-                mMediaRecorder.stop();
-            } catch (RuntimeException ex) {
-                ex.printStackTrace();
-            }
-            mMediaRecorder.reset();
-            mMediaRecorder.release();
-            mMediaRecorder = null;
-        }
+        // The events of the stopping recorder no longer concern this camera
+        mMediaRecorder.setOnInfoListener(null);
+        mMediaRecorder.setOnErrorListener(null);
+        mRecorderStopper = new MediaRecorderStopper(mMediaRecorder, mVideoPath, mSegmenter,
+                mCallback);
+        mRecorderStopper.stop(null);
+        mMediaRecorder = null;
+        mSegmenter = null;
+        mVideoPath = null;
+    }
+
+    /**
+     * Releases {@link #mMediaRecorder} if it failed to start, and takes the camera back from it.
+     */
+    private void releaseMediaRecorder() {
+        mMediaRecorder.reset();
+        mMediaRecorder.release();
+        mMediaRecorder = null;
+        mSegmenter = null;
+        mVideoPath = null;
+        mCamera.lock();
+    }
 
-        if (mVideoPath == null || !new File(mVideoPath).exists()) {
-            mCallback.onVideoRecorded(null);
+    private boolean isRecorderStopping() {
+        return mRecorderStopper != null && !mRecorderStopper.isStopped();
+    }
+
+    /**
+     * Waits for the last recorder to be released, and takes the camera back from it.
+     */
+    private void awaitRecorderStopped() {
+        if (mRecorderStopper == null) {
             return;
         }
-
-        mCallback.onVideoRecorded(mVideoPath);
-        mVideoPath = null;
+        mRecorderStopper.await();
+        mRecorderStopper = null;
+        if (mCamera != null) {
+            mCamera.lock();
+        }
     }
 
     private void setCamcorderProfile(CamcorderProfile profile, boolean recordAudio) {
@@ -770,6 +1422,9 @@ class Camera1 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
 
     @Override
     public void onInfo(MediaRecorder mr, int what, int extra) {
+        if (mSegmenter != null && mSegmenter.onInfo(what)) {
+            return;
+        }
         if (what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_DURATION_REACHED ||
                 what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED) {
             stopRecording();
@@ -781,4 +1436,56 @@ class Camera1 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
     public void onError(MediaRecorder mr, int what, int extra) {
         stopRecording();
     }
+
+    /**
+     * A preview frame that hands its buffer back to the camera when it is released.
+     */
+    private class PreviewFrame extends ByteArrayFrame {
+
+        private final Runnable mRequeueRunnable = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mPreviewFrames) {
+                    final byte[] data = getData();
+                    if (mPreviewBuffers.owns(data)) {
+                        queuePreviewBuffer(data);
+                        mQueued = true;
+                    }
+                }
+            }
+        };
+
+        /**
+         * Whether the buffer was handed to the camera and not delivered yet. Guarded by
+         * {@link #mPreviewFrames}.
+         */
+        boolean mQueued;
+
+        PreviewFrame(byte[] data, int width, int height) {
+            super(data, width, height);
+        }
+
+        @Override
+        void onRelease() {
+            requeue();
+        }
+
+        /**
+         * Hands the buffer back to the camera. When throttled, the buffer is withheld until the
+         * next frame is due, so that the camera does not even copy the frames in between.
+         */
+        void requeue() {
+            final long delay = mFrameRateLimiter.getDelay(System.nanoTime());
+            if (delay <= 0) {
+                mRequeueRunnable.run();
+                return;
+            }
+            // Withheld on the thread driving the camera, whichever thread released the frame
+            final Handler handler = mCameraHandler;
+            (handler != null ? handler : mMainHandler).postDelayed(mRequeueRunnable,
+                    delay / 1000000L);
+        }
+
+    }
+
 }
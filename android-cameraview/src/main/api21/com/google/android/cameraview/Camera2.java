@@ -25,6 +25,7 @@ import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
@@ -32,7 +33,13 @@ import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.CamcorderProfile;
 import android.media.Image;
 import android.media.ImageReader;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
 import android.media.MediaRecorder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.support.annotation.NonNull;
 import android.util.Log;
 import android.util.SparseIntArray;
@@ -41,10 +48,17 @@ import android.view.Surface;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.SortedSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @SuppressWarnings("MissingPermission")
 @TargetApi(21)
@@ -70,6 +84,31 @@ class Camera2 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
      */
     private static final int MAX_PREVIEW_HEIGHT = 1080;
 
+    /**
+     * The number of images that can be acquired from the scan reader at the same time, so that
+     * callbacks can retain a few frames without stalling the preview.
+     */
+    private static final int SCAN_IMAGE_COUNT = 3;
+
+    /**
+     * The number of recent capture results kept to be matched with the scanning frames.
+     */
+    private static final int CAPTURE_RESULT_COUNT = 8;
+
+    /**
+     * The number of images the still reader holds, so that the shots of a burst do not wait for
+     * the previous one to be copied out. Once all but one are held by pictures being delivered,
+     * the following pictures are copied out instead, see {@link StillImageListener}.
+     */
+    private static final int STILL_IMAGE_COUNT = 3;
+
+    /**
+     * The number of recent full resolution frames kept for zero shutter lag capture.
+     */
+    private static final int ZSL_FRAME_COUNT = 3;
+
+    private static final int NO_EXIF_ROTATION = -1;
+
     private final CameraManager mCameraManager;
 
     private final CameraDevice.StateCallback mCameraDeviceCallback
@@ -77,7 +116,14 @@ class Camera2 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
 
         @Override
         public void onOpened(@NonNull CameraDevice camera) {
+            if (!isCurrentThread()) {
+                // The camera was stopped while it was being opened
+                camera.close();
+                return;
+            }
+            mOpening = false;
             mCamera = camera;
+            mPlainSessionOnly = false;
             mCallback.onCameraOpened();
             startCaptureSession();
         }
@@ -85,17 +131,29 @@ class Camera2 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
         @Override
         public void onClosed(@NonNull CameraDevice camera) {
             mCallback.onCameraClosed();
+            if (!isCurrentThread()) {
+                // Nothing is posted to a stopped thread after its camera is closed
+                Looper.myLooper().quitSafely();
+            }
         }
 
         @Override
         public void onDisconnected(@NonNull CameraDevice camera) {
-            mCamera = null;
+            if (isCurrentThread()) {
+                mOpening = false;
+                mCamera = null;
+            }
+            camera.close();
         }
 
         @Override
         public void onError(@NonNull CameraDevice camera, int error) {
             Log.e(TAG, "onError: " + camera.getId() + " (" + error + ")");
-            mCamera = null;
+            if (isCurrentThread()) {
+                mOpening = false;
+                mCamera = null;
+            }
+            camera.close();
         }
 
     };
@@ -109,6 +167,11 @@ class Camera2 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
                 return;
             }
             mCaptureSession = session;
+            mCapturing = false;
+            mFocusState = FrameMetadata.UNKNOWN;
+            mExposureState = FrameMetadata.UNKNOWN;
+            mFrameSequence = 0;
+            mCaptureResults.clear();
             updateAutoFocus();
             updateFlash();
             updateFocusDepth();
@@ -116,17 +179,26 @@ class Camera2 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
             updateZoom(mZoom);
             try {
                 mCaptureSession.setRepeatingRequest(mPreviewRequestBuilder.build(),
-                        mCaptureCallback, null);
+                        mCaptureCallback, mBackgroundHandler);
             } catch (CameraAccessException e) {
                 Log.e(TAG, "Failed to start camera preview because it couldn't access camera", e);
             } catch (IllegalStateException e) {
                 Log.e(TAG, "Failed to start camera preview.", e);
             }
+            processCaptureQueue(false);
         }
 
         @Override
         public void onConfigureFailed(@NonNull CameraCaptureSession session) {
             Log.e(TAG, "Failed to configure capture session.");
+            if (!mExtraStreams || !isCurrentThread()) {
+                return;
+            }
+            // The camera does not support the combination; the preview goes on without it
+            mPlainSessionOnly = true;
+            mCallback.onCameraError(new CameraOpenException(
+                    "Failed to configure the video standby or zero shutter lag streams", null));
+            startCaptureSession();
         }
 
         @Override
@@ -144,11 +216,13 @@ class Camera2 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
         public void onPrecaptureRequired() {
             mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER,
                     CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER_START);
+            final CaptureRequest request = mPreviewRequestBuilder.build();
+            // The trigger is sent once; the repeating request must never carry it
+            mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER,
+                    CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER_IDLE);
             setState(STATE_PRECAPTURE);
             try {
-                mCaptureSession.capture(mPreviewRequestBuilder.build(), this, null);
-                mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER,
-                        CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER_IDLE);
+                mCaptureSession.capture(request, this, mBackgroundHandler);
             } catch (CameraAccessException e) {
                 Log.e(TAG, "Failed to run precapture sequence.", e);
             }
@@ -159,40 +233,122 @@ class Camera2 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
             captureStillPicture();
         }
 
+        @Override
+        public void onCaptureCompleted(@NonNull CameraCaptureSession session,
+                @NonNull CaptureRequest request, @NonNull TotalCaptureResult result) {
+            super.onCaptureCompleted(session, request, result);
+            final Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+            if (timestamp == null) {
+                return;
+            }
+            final Long exposureTime = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+            final Integer sensitivity = result.get(CaptureResult.SENSOR_SENSITIVITY);
+            final Integer focusState = result.get(CaptureResult.CONTROL_AF_STATE);
+            final Integer exposureState = result.get(CaptureResult.CONTROL_AE_STATE);
+            mFocusState = focusState != null ? focusState : FrameMetadata.UNKNOWN;
+            mExposureState = exposureState != null ? exposureState : FrameMetadata.UNKNOWN;
+            mCaptureResults.put(timestamp,
+                    exposureTime != null ? exposureTime : FrameMetadata.UNKNOWN,
+                    sensitivity != null ? sensitivity : FrameMetadata.UNKNOWN,
+                    focusState != null ? focusState : FrameMetadata.UNKNOWN,
+                    exposureState != null ? exposureState : FrameMetadata.UNKNOWN);
+        }
+
     };
 
-    private final ImageReader.OnImageAvailableListener mOnImageAvailableListener
+    private final ImageReader.OnImageAvailableListener mOnFrameAvailableListener
             = new ImageReader.OnImageAvailableListener() {
 
         @Override
         public void onImageAvailable(ImageReader reader) {
-            try (Image image = reader.acquireNextImage()) {
-                Image.Plane[] planes = image.getPlanes();
-                if (planes.length > 0) {
-                    ByteBuffer buffer = planes[0].getBuffer();
-                    byte[] data = new byte[buffer.remaining()];
-                    buffer.get(data);
-                    if (image.getFormat() == ImageFormat.JPEG) {
-                        mCallback.onPictureTaken(data);
-                    } else {
-                        mCallback.onFramePreview(data, image.getWidth(), image.getHeight(),
-                                mDisplayOrientation);
-                    }
-                    image.close();
-                }
+            final long sequenceNumber = mFrameSequence++;
+            final Image image;
+            try {
+                image = reader.acquireNextImage();
+            } catch (IllegalStateException e) {
+                // All the images are still retained by the callbacks; skip this frame
+                return;
+            }
+            if (image == null) {
+                return;
+            }
+            if (!mFrameRateLimiter.accept(image.getTimestamp())) {
+                // Hand the buffer straight back to the reader without touching its pixels
+                image.close();
+                return;
+            }
+            final ImageFrame frame = obtainFrame();
+            frame.open(image, mDisplayOrientation);
+            final FrameMetadata metadata = frame.getMetadata();
+            metadata.setSequenceNumber(sequenceNumber);
+            // The result usually arrives before the image; otherwise the exposure is unknown
+            mCaptureResults.get(image.getTimestamp(), metadata);
+            mCallback.onFrameAvailable(frame);
+            frame.close();
+        }
+
+    };
+
+    private final ImageReader.OnImageAvailableListener mOnZslFrameAvailableListener
+            = new ImageReader.OnImageAvailableListener() {
+
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            final Image image;
+            try {
+                image = reader.acquireNextImage();
+            } catch (IllegalStateException e) {
+                // A picture is still being encoded from this reader; skip this frame
+                return;
             }
+            if (image == null) {
+                return;
+            }
+            final ImageFrame frame = obtainFrame();
+            frame.open(image, getOutputRotation());
+            mZslFrames.put(frame);
         }
 
     };
 
+    /**
+     * The frames wrapping the images of {@link #mScanImageReader} and {@link #mZslImageReader},
+     * reused once they are closed.
+     */
+    private final ArrayList<ImageFrame> mFrames = new ArrayList<>(SCAN_IMAGE_COUNT);
+
+    private final CaptureResultRing mCaptureResults = new CaptureResultRing(CAPTURE_RESULT_COUNT);
+
+    private final ZslRingBuffer mZslFrames = new ZslRingBuffer(ZSL_FRAME_COUNT);
+
+    /**
+     * The sequence number of the next scanning frame since the session was configured. Only
+     * touched on the camera thread.
+     */
+    private long mFrameSequence;
+
 
     private String mCameraId;
 
     private CameraCharacteristics mCameraCharacteristics;
 
-    CameraDevice mCamera;
+    volatile CameraDevice mCamera;
+
+    volatile CameraCaptureSession mCaptureSession;
+
+    /**
+     * The thread that owns the camera state: it runs all the camera callbacks, and the calls
+     * that change the state are posted to it. A new thread is started for every camera device,
+     * and quits once that device is closed.
+     */
+    private HandlerThread mBackgroundThread;
 
-    CameraCaptureSession mCaptureSession;
+    private volatile Handler mBackgroundHandler;
+
+    /**
+     * Whether a camera device is being opened on {@link #mBackgroundThread}.
+     */
+    private volatile boolean mOpening;
 
     CaptureRequest.Builder mPreviewRequestBuilder;
 
@@ -202,18 +358,144 @@ class Camera2 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
 
     private ImageReader mScanImageReader;
 
+    /**
+     * Streams the full resolution frames kept in {@link #mZslFrames}, or {@code null} if zero
+     * shutter lag is off or not supported.
+     */
+    private ImageReader mZslImageReader;
+
+    /**
+     * The rotation to write as an Exif tag into the pictures being captured, or
+     * {@link #NO_EXIF_ROTATION} if the camera rotates them.
+     */
+    private volatile int mPictureExifRotation = NO_EXIF_ROTATION;
+
+    /**
+     * The requests of the still captures submitted to the session, in the order their pictures
+     * arrive at {@link #mStillImageReader}.
+     */
+    private final ConcurrentLinkedQueue<CaptureQueue.Request> mStillRequests
+            = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Whether a still capture sequence is in progress. Accessed on the background thread.
+     */
+    private boolean mCapturing;
+
+    /**
+     * The auto focus and auto exposure states of the latest capture result, or
+     * {@link FrameMetadata#UNKNOWN}. Accessed on the background thread.
+     */
+    private int mFocusState = FrameMetadata.UNKNOWN;
+
+    private int mExposureState = FrameMetadata.UNKNOWN;
+
     private int mImageFormat;
 
     private MediaRecorder mMediaRecorder;
 
+    /**
+     * Records instead of {@link #mMediaRecorder} when the recording was started with
+     * {@link VideoEncoderOptions}.
+     */
+    private RecordingPipeline<MediaFormat> mRecordingPipeline;
+
+    /**
+     * Reports the video of {@link #mRecordingPipeline}.
+     */
+    private RecordingListener mRecordingListener;
+
+    /**
+     * Whether {@link #mRecordingPipeline} keeps the latest video in memory instead of recording
+     * it.
+     */
+    private boolean mPreRolling;
+
+    /**
+     * The settings of the pre-roll, or {@code null}.
+     */
+    private VideoEncoderOptions mPreRollOptions;
+
     private String mVideoPath;
 
+    /**
+     * Rolls the recording of {@link #mMediaRecorder} over to new files, or {@code null}.
+     */
+    private MediaRecorderSegmenter mSegmenter;
+
+    /**
+     * Stops the last recording of {@link #mMediaRecorder}, or {@code null}.
+     */
+    private MediaRecorderStopper mRecorderStopper;
+
+    /**
+     * The listener of the last {@link RecordingPipeline} stopped, or {@code null}.
+     */
+    private RecordingListener mStoppingListener;
+
+    /**
+     * The size of the video being recorded.
+     */
+    private Size mVideoSize;
+
+    private Surface mRecorderSurface;
+
+    /**
+     * Receives the video snapshots while recording, or {@code null}. Its size is at most the
+     * video size, which every camera supports alongside a recording.
+     */
+    private ImageReader mSnapshotImageReader;
+
     private boolean mIsRecording;
 
+    /**
+     * The surface the recordings of the video standby are rendered into, from API 23. It is part
+     * of the capture session whether or not a recording is running.
+     */
+    private Surface mPersistentSurface;
+
+    /**
+     * An encoder configured on {@link #mPersistentSurface} while no recording is running, or
+     * {@code null}.
+     */
+    private MediaCodecVideoEncoder mStandbyEncoder;
+
+    /**
+     * The settings {@link #mStandbyEncoder} was configured with, or {@code null}.
+     */
+    private VideoEncoderOptions mStandbyOptions;
+
+    /**
+     * Whether the capture session includes {@link #mPersistentSurface}.
+     */
+    private boolean mStandbySession;
+
+    /**
+     * Whether the preview session being configured has streams beyond the preview, the still
+     * reader and the scan reader.
+     */
+    private boolean mExtraStreams;
+
+    /**
+     * Whether a preview session with extra streams failed to configure on this camera device, so
+     * that only plain preview sessions are created.
+     */
+    private boolean mPlainSessionOnly;
+
     private final SizeMap mPreviewSizes = new SizeMap();
 
     private final SizeMap mPictureSizes = new SizeMap();
 
+    /**
+     * The YUV output sizes, which the scanning frames can be streamed at.
+     */
+    private final SizeMap mScanSizes = new SizeMap();
+
+    /**
+     * The sizes of the thumbnails the camera can embed into the pictures.
+     */
+    private final SizeMap mThumbnailSizes = new SizeMap();
+
     private int mFacing;
 
     private AspectRatio mAspectRatio = Constants.DEFAULT_ASPECT_RATIO;
@@ -259,7 +541,15 @@ class Camera2 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
         mPreview.setCallback(new PreviewImpl.Callback() {
             @Override
             public void onSurfaceChanged() {
-                startCaptureSession();
+                final Handler handler = mBackgroundHandler;
+                if (handler != null) {
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            startCaptureSession();
+                        }
+                    });
+                }
             }
 
             @Override
@@ -278,22 +568,41 @@ class Camera2 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
         collectCameraInfo();
         setAspectRatio(mInitialRatio);
         mInitialRatio = null;
+        startBackgroundThread();
         prepareStillImageReader();
         prepareScanImageReader();
+        prepareZslImageReader();
         startOpeningCamera();
         return true;
     }
 
     @Override
     void stop() {
+        // Synchronous, as the surface may be destroyed once this returns
+        final Handler handler = mBackgroundHandler;
+        if (handler != null && handler.getLooper() != Looper.myLooper()) {
+            callOnCameraThread(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    stop();
+                    return null;
+                }
+            });
+            return;
+        }
+        mStillRequests.clear();
+        cancelCaptures(new IllegalStateException("The camera was stopped."));
         if (mCaptureSession != null) {
             mCaptureSession.close();
             mCaptureSession = null;
         }
+        final boolean closing = mCamera != null || mOpening;
         if (mCamera != null) {
             mCamera.close();
             mCamera = null;
         }
+        mOpening = false;
+        stopBackgroundThread(closing);
         if (mStillImageReader != null) {
             mStillImageReader.close();
             mStillImageReader = null;
@@ -303,18 +612,18 @@ class Camera2 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
             mScanImageReader.close();
             mScanImageReader = null;
         }
+        closeZslImageReader();
+        closeSnapshotImageReader();
 
-        if (mMediaRecorder != null) {
-            mMediaRecorder.stop();
-            mMediaRecorder.reset();
-            mMediaRecorder.release();
-            mMediaRecorder = null;
-
-            if (mIsRecording) {
-                mCallback.onVideoRecorded(mVideoPath);
-                mIsRecording = false;
-            }
+        if (mRecordingPipeline != null) {
+            mPreRolling = false;
+            mPreRollOptions = null;
+            stopRecordingPipeline();
+        } else if (mIsRecording) {
+            stopMediaRecorder();
         }
+        awaitRecorderStopped();
+        releaseVideoStandby();
     }
 
     @Override
@@ -345,7 +654,16 @@ class Camera2 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
     }
 
     @Override
-    boolean setAspectRatio(AspectRatio ratio) {
+    boolean setAspectRatio(final AspectRatio ratio) {
+        final Handler handler = mBackgroundHandler;
+        if (handler != null && handler.getLooper() != Looper.myLooper()) {
+            return callOnCameraThread(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return setAspectRatio(ratio);
+                }
+            });
+        }
         if (ratio != null && mPreviewSizes.isEmpty()) {
             mInitialRatio = ratio;
             return false;
@@ -368,11 +686,8 @@ class Camera2 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
         mAspectRatio = ratio;
         prepareStillImageReader();
         prepareScanImageReader();
-        if (mCaptureSession != null) {
-            mCaptureSession.close();
-            mCaptureSession = null;
-            startCaptureSession();
-        }
+        prepareZslImageReader();
+        restartCaptureSession();
         return true;
     }
 
@@ -382,17 +697,25 @@ class Camera2 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
     }
 
     @Override
-    void setAutoFocus(boolean autoFocus) {
+    void setAutoFocus(final boolean autoFocus) {
         if (mAutoFocus == autoFocus) {
             return;
         }
+        if (postToCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                setAutoFocus(autoFocus);
+            }
+        })) {
+            return;
+        }
         mAutoFocus = autoFocus;
         if (mPreviewRequestBuilder != null) {
             updateAutoFocus();
             if (mCaptureSession != null) {
                 try {
                     mCaptureSession.setRepeatingRequest(mPreviewRequestBuilder.build(),
-                            mCaptureCallback, null);
+                            mCaptureCallback, mBackgroundHandler);
                 } catch (CameraAccessException e) {
                     mAutoFocus = !mAutoFocus; // Revert
                 }
@@ -406,10 +729,18 @@ class Camera2 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
     }
 
     @Override
-    void setFlash(int flash) {
+    void setFlash(final int flash) {
         if (mFlash == flash) {
             return;
         }
+        if (postToCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                setFlash(flash);
+            }
+        })) {
+            return;
+        }
         int saved = mFlash;
         mFlash = flash;
         if (mPreviewRequestBuilder != null) {
@@ -417,7 +748,7 @@ class Camera2 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
             if (mCaptureSession != null) {
                 try {
                     mCaptureSession.setRepeatingRequest(mPreviewRequestBuilder.build(),
-                            mCaptureCallback, null);
+                            mCaptureCallback, mBackgroundHandler);
                 } catch (CameraAccessException e) {
                     mFlash = saved; // Revert
                 }
@@ -431,42 +762,121 @@ class Camera2 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
     }
 
     @Override
-    void takePicture() {
-        if (mAutoFocus) {
+    void startCapture() {
+        postCaptureQueue(false);
+    }
+
+    @Override
+    void startBurst() {
+        postCaptureQueue(true);
+    }
+
+    private void postCaptureQueue(final boolean burst) {
+        final Handler handler = mBackgroundHandler;
+        if (handler == null) {
+            cancelCaptures(new IllegalStateException(
+                    "Camera is not ready. Call start() before takePicture()."));
+            return;
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                processCaptureQueue(burst);
+            }
+        });
+    }
+
+    /**
+     * Starts capturing the pending requests unless a capture is in progress, in which case they
+     * are captured right after it. Called on the background thread.
+     *
+     * @param burst {@code true} to capture them without locking the focus and metering first.
+     */
+    void processCaptureQueue(boolean burst) {
+        if (mCapturing || mCaptureSession == null || !mCaptureQueue.hasPending()) {
+            return;
+        }
+        if (!burst) {
+            takeZslPictures();
+            if (!mCaptureQueue.hasPending()) {
+                return;
+            }
+        }
+        mCapturing = true;
+        if (burst || mRecorderSurface != null) {
+            // Video snapshots are taken without interrupting the recording
+            captureStillPictures(burst);
+        } else if (mAutoFocus && !(mFastCapture && is3aConverged())) {
             lockFocus();
         } else {
             captureStillPicture();
         }
     }
 
+    /**
+     * @return {@code true} if the preview reports that continuous auto focus has settled and auto
+     * exposure has converged, so that a still picture can be captured without locking them first.
+     * Pictures that may need the flash are never considered converged, as only the precapture
+     * sequence meters it.
+     */
+    private boolean is3aConverged() {
+        if (mFlash != Constants.FLASH_OFF && mFlash != Constants.FLASH_TORCH) {
+            return false;
+        }
+        final int focusState = mFocusState;
+        final int exposureState = mExposureState;
+        return (focusState == CaptureResult.CONTROL_AF_STATE_PASSIVE_FOCUSED
+                || focusState == CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED)
+                && (exposureState == CaptureResult.CONTROL_AE_STATE_CONVERGED
+                || exposureState == CaptureResult.CONTROL_AE_STATE_LOCKED);
+    }
+
     @Override
-    boolean record(String path, int maxDuration, int maxFileSize, boolean recordAudio,
-                   CamcorderProfile profile) {
+    boolean record(final String path, final int maxDuration, final int maxFileSize,
+            final boolean recordAudio, final CamcorderProfile profile) {
+        final Handler handler = mBackgroundHandler;
+        if (handler != null && handler.getLooper() != Looper.myLooper()) {
+            return callOnCameraThread(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return record(path, maxDuration, maxFileSize, recordAudio, profile);
+                }
+            });
+        }
         if (!mIsRecording) {
-            setUpMediaRecorder(path, maxDuration, maxFileSize, recordAudio, profile);
+            stopPreRoll();
+            final boolean standby = mStandbySession && mStandbyEncoder != null
+                    && mVideoSize.equals(mStandbyEncoder.getVideoSize());
+            boolean sessionReplaced = false;
             try {
+                setUpMediaRecorder(path, maxDuration, maxFileSize, recordAudio, profile);
+                if (standby) {
+                    // The persistent surface feeds one recorder at a time
+                    mStandbyEncoder.release();
+                    mStandbyEncoder = null;
+                    setRecorderInputSurface();
+                }
                 mMediaRecorder.prepare();
-
-                if (mCaptureSession != null) {
-                    mCaptureSession.close();
-                    mCaptureSession = null;
+                if (standby) {
+                    startStandbyRecording();
+                } else {
+                    sessionReplaced = true;
+                    startRecordingSession(mMediaRecorder.getSurface());
                 }
-
-                Size size = chooseOptimalSize();
-                mPreview.setBufferSize(size.getWidth(), size.getHeight());
-                Surface surface = mPreview.getSurface();
-                Surface mMediaRecorderSurface = mMediaRecorder.getSurface();
-
-                mPreviewRequestBuilder = mCamera.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
-                mPreviewRequestBuilder.addTarget(surface);
-                mPreviewRequestBuilder.addTarget(mMediaRecorderSurface);
-                mCamera.createCaptureSession(Arrays.asList(surface, mMediaRecorderSurface),
-                        mSessionCallback, null);
                 mMediaRecorder.start();
                 mIsRecording = true;
                 return true;
-            } catch (CameraAccessException | IOException e) {
-                e.printStackTrace();
+            } catch (CameraAccessException | IOException | RuntimeException e) {
+                Log.e(TAG, "Failed to start the recording.", e);
+                if (standby || sessionReplaced) {
+                    restorePreviewSession(standby);
+                }
+                if (mMediaRecorder != null) {
+                    releaseMediaRecorder();
+                }
+                if (standby) {
+                    prepareStandbyEncoder();
+                }
                 return false;
             }
         }
@@ -474,72 +884,548 @@ class Camera2 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
     }
 
     @Override
-    boolean isRecording() {
-        return mIsRecording;
-    }
-
-    @Override
-    void stopRecording() {
-        if (mIsRecording) {
-            stopMediaRecorder();
-
-            if (mCaptureSession != null) {
-                mCaptureSession.close();
-                mCaptureSession = null;
-            }
-            startCaptureSession();
+    boolean record(final String path, final VideoEncoderOptions options, final int maxDuration,
+            final int maxFileSize) {
+        final Handler handler = mBackgroundHandler;
+        if (handler != null && handler.getLooper() != Looper.myLooper()) {
+            return callOnCameraThread(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return record(path, options, maxDuration, maxFileSize);
+                }
+            });
+        }
+        if (mIsRecording || mCamera == null) {
+            return false;
+        }
+        if (mPreRolling && options.equals(mPreRollOptions)) {
+            return recordPreRoll(path, maxDuration, maxFileSize);
+        }
+        stopPreRoll();
+        if (!startPipeline(path, options, maxDuration, maxFileSize, null)) {
+            return false;
         }
+        mVideoPath = path;
+        mIsRecording = true;
+        return true;
     }
 
     @Override
-    public void setFocusDepth(float value) {
-        if (mFocusDepth == value) {
-            return;
+    boolean startPreRoll(final VideoEncoderOptions options, final int maxDuration,
+            final int maxBytes) {
+        final Handler handler = mBackgroundHandler;
+        if (handler != null && handler.getLooper() != Looper.myLooper()) {
+            return callOnCameraThread(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return startPreRoll(options, maxDuration, maxBytes);
+                }
+            });
         }
-        float saved = mFocusDepth;
-        mFocusDepth = value;
-        if (mCaptureSession != null) {
-            updateFocusDepth();
-            try {
-                mCaptureSession.setRepeatingRequest(mPreviewRequestBuilder.build(),
-                        mCaptureCallback, null);
-            } catch (CameraAccessException e) {
-                mFocusDepth = saved;  // Revert
-            }
+        if (mIsRecording || mPreRolling || mCamera == null) {
+            return false;
         }
+        final SampleRing ring = new SampleRing(maxDuration * 1000L, maxBytes);
+        if (!startPipeline(null, options, -1, -1, ring)) {
+            return false;
+        }
+        mPreRollOptions = options;
+        mPreRolling = true;
+        return true;
     }
 
     @Override
-    float getFocusDepth() {
-        return mFocusDepth;
+    boolean isPreRolling() {
+        return mPreRolling;
     }
 
     @Override
-    public void setZoom(float zoom) {
-        if (mZoom == zoom) {
+    void stopPreRoll() {
+        if (postToCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                stopPreRoll();
+            }
+        })) {
             return;
         }
-        float saved = mZoom;
-        mZoom = zoom;
-        if (mCaptureSession != null) {
-            updateZoom(saved);
-            try {
-                mCaptureSession.setRepeatingRequest(mPreviewRequestBuilder.build(),
-                        mCaptureCallback, null);
-            } catch (CameraAccessException e) {
-                mZoom = saved;  // Revert
-            }
+        if (mPreRolling) {
+            mPreRolling = false;
+            mPreRollOptions = null;
+            stopRecorder();
         }
     }
 
-    @Override
-    float getZoom() {
-        return mZoom;
-    }
-
-    @Override
-    public void setWhiteBalance(int whiteBalance) {
-        if (mWhiteBalance == whiteBalance) {
+    /**
+     * Turns the pre-roll into a recording into {@code path}, which starts with the video kept in
+     * the ring.
+     */
+    private boolean recordPreRoll(String path, int maxDuration, int maxFileSize) {
+        final MediaMuxerSampleMuxer muxer;
+        try {
+            muxer = new MediaMuxerSampleMuxer(path, getOutputRotation());
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to create the video file.", e);
+            return false;
+        }
+        // The limits and the output are set before the muxer is handed over to the recorder thread
+        mRecordingListener.setOutput(path, maxDuration, maxFileSize);
+        mRecordingPipeline.write(muxer);
+        mPreRolling = false;
+        mPreRollOptions = null;
+        mVideoPath = path;
+        mIsRecording = true;
+        return true;
+    }
+
+    /**
+     * Starts {@link #mRecordingPipeline} with a new {@link #mRecordingListener}.
+     *
+     * @param path    The file to record into, or {@code null} to keep the video in
+     *                {@code preRoll} until {@link #recordPreRoll(String, int, int)}.
+     * @param preRoll The ring of a pre-roll, or {@code null}.
+     * @return {@code false} if the pipeline failed to start.
+     */
+    private boolean startPipeline(String path, VideoEncoderOptions options, int maxDuration,
+            int maxFileSize, SampleRing preRoll) {
+        final boolean standby = mStandbySession && mStandbyEncoder != null
+                && options.equals(mStandbyOptions);
+        final MediaCodecVideoEncoder encoder;
+        MediaMuxerSampleMuxer muxer = null;
+        if (standby) {
+            encoder = mStandbyEncoder;
+            mStandbyEncoder = null;
+        } else {
+            try {
+                encoder = new MediaCodecVideoEncoder(options, getHighQualityProfile(), null);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to create the video encoder.", e);
+                return false;
+            }
+        }
+        if (path != null) {
+            try {
+                muxer = new MediaMuxerSampleMuxer(path, getOutputRotation());
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to create the video file.", e);
+                encoder.release();
+                if (standby) {
+                    prepareStandbyEncoder();
+                }
+                return false;
+            }
+        }
+        final RecordingListener listener = new RecordingListener();
+        final RecordingPipeline<MediaFormat> pipeline =
+                new RecordingPipeline<>(encoder, muxer, listener);
+        listener.mPipeline = pipeline;
+        if (path != null) {
+            listener.setOutput(path, maxDuration, maxFileSize);
+        }
+        pipeline.setPreRoll(preRoll);
+        mVideoSize = encoder.getVideoSize();
+        try {
+            if (standby) {
+                // The frames reach the encoder as soon as the repeating request targets it
+                pipeline.start();
+                startStandbyRecording();
+            } else {
+                startRecordingSession(encoder.getInputSurface());
+                // The session is configured asynchronously, so no frame is lost
+                pipeline.start();
+            }
+        } catch (CameraAccessException | IllegalStateException e) {
+            Log.e(TAG, "Failed to start the recording.", e);
+            restorePreviewSession(standby);
+            pipeline.stop();
+            if (path != null) {
+                new File(path).delete();
+            }
+            if (standby) {
+                prepareStandbyEncoder();
+            }
+            return false;
+        }
+        listener.mStarted = true;
+        mRecordingPipeline = pipeline;
+        mRecordingListener = listener;
+        return true;
+    }
+
+    /**
+     * Goes back to previewing after a recording failed to start, so that the camera does not keep
+     * streaming to a recorder that is released.
+     *
+     * @param standby {@code true} if the recording was to start in the standby session, which
+     *                is kept without {@link #mPersistentSurface} as a target.
+     */
+    private void restorePreviewSession(boolean standby) {
+        if (standby) {
+            if (mRecorderSurface == null) {
+                return;
+            }
+            mPreviewRequestBuilder.removeTarget(mPersistentSurface);
+            mRecorderSurface = null;
+            if (mCaptureSession != null) {
+                try {
+                    mCaptureSession.setRepeatingRequest(mPreviewRequestBuilder.build(),
+                            mCaptureCallback, mBackgroundHandler);
+                } catch (CameraAccessException | IllegalStateException e) {
+                    Log.e(TAG, "Failed to stop streaming to the recorder.", e);
+                }
+            }
+            return;
+        }
+        if (mCaptureSession != null) {
+            mCaptureSession.close();
+            mCaptureSession = null;
+        }
+        closeSnapshotImageReader();
+        mRecorderSurface = null;
+        startCaptureSession();
+    }
+
+    /**
+     * Releases {@link #mMediaRecorder} if it failed to start.
+     */
+    private void releaseMediaRecorder() {
+        mMediaRecorder.reset();
+        mMediaRecorder.release();
+        mMediaRecorder = null;
+        mSegmenter = null;
+        mVideoPath = null;
+    }
+
+    /**
+     * Replaces the preview session by one that previews, records into {@code recorderSurface}
+     * and takes video snapshots.
+     */
+    private void startRecordingSession(Surface recorderSurface) throws CameraAccessException {
+        if (mCaptureSession != null) {
+            mCaptureSession.close();
+            mCaptureSession = null;
+        }
+        mStandbySession = false;
+        mExtraStreams = false;
+
+        Size size = chooseOptimalSize();
+        mPreview.setBufferSize(size.getWidth(), size.getHeight());
+        Surface surface = mPreview.getSurface();
+        // Closing an earlier snapshot reader clears the recorder surface
+        prepareSnapshotImageReader();
+        mRecorderSurface = recorderSurface;
+
+        mPreviewRequestBuilder = mCamera.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
+        mPreviewRequestBuilder.addTarget(surface);
+        mPreviewRequestBuilder.addTarget(mRecorderSurface);
+        final List<Surface> outputs = new ArrayList<>(Arrays.asList(surface, mRecorderSurface));
+        if (mSnapshotImageReader != null) {
+            outputs.add(mSnapshotImageReader.getSurface());
+        }
+        mCamera.createCaptureSession(outputs, mSessionCallback, mBackgroundHandler);
+    }
+
+    @Override
+    boolean isRecording() {
+        return mIsRecording;
+    }
+
+    /**
+     * Starts recording into {@link #mPersistentSurface} by adding it to the targets of the
+     * repeating request, without changing the capture session.
+     */
+    private void startStandbyRecording() throws CameraAccessException {
+        mRecorderSurface = mPersistentSurface;
+        mPreviewRequestBuilder.addTarget(mPersistentSurface);
+        if (mCaptureSession == null) {
+            // Applied once the session is configured
+            return;
+        }
+        try {
+            mCaptureSession.setRepeatingRequest(mPreviewRequestBuilder.build(),
+                    mCaptureCallback, mBackgroundHandler);
+        } catch (CameraAccessException e) {
+            mPreviewRequestBuilder.removeTarget(mPersistentSurface);
+            mRecorderSurface = null;
+            throw e;
+        }
+    }
+
+    @Override
+    void stopRecording() {
+        if (postToCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                stopRecording();
+            }
+        })) {
+            return;
+        }
+        if (mIsRecording) {
+            stopRecorder();
+        }
+    }
+
+    /**
+     * Stops the recording or the pre-roll, and restores the preview session.
+     */
+    private void stopRecorder() {
+        final boolean persistent = mRecorderSurface != null
+                && mRecorderSurface == mPersistentSurface;
+        boolean standby = persistent;
+        if (standby) {
+            // The preview goes on; only the recorder stops receiving frames
+            mPreviewRequestBuilder.removeTarget(mPersistentSurface);
+            if (mCaptureSession != null) {
+                try {
+                    mCaptureSession.setRepeatingRequest(mPreviewRequestBuilder.build(),
+                            mCaptureCallback, mBackgroundHandler);
+                } catch (CameraAccessException | IllegalStateException e) {
+                    Log.e(TAG, "Failed to stop streaming to the recorder.", e);
+                    // The session still streams to the recorder; it is recreated without it
+                    mPreviewRequestBuilder.addTarget(mPersistentSurface);
+                    standby = false;
+                }
+            }
+        } else if (mCaptureSession != null) {
+            try {
+                mCaptureSession.stopRepeating();
+                mCaptureSession.abortCaptures();
+            } catch (CameraAccessException | IllegalStateException e) {
+                // The session is closed below all the same
+                Log.e(TAG, "Failed to stop the recording session.", e);
+            }
+        }
+        if (mRecordingPipeline != null) {
+            stopRecordingPipeline();
+        } else {
+            stopMediaRecorder();
+        }
+        if (persistent && !standby) {
+            // The new session prepares a standby encoder on the surface the recorder still uses
+            awaitRecorderStopped();
+        }
+
+        if (standby && mVideoStandby != null && mVideoStandby.equals(mStandbyOptions)) {
+            mRecorderSurface = null;
+            resumeVideoStandby();
+            return;
+        }
+        if (mCaptureSession != null) {
+            mCaptureSession.close();
+            mCaptureSession = null;
+        }
+        closeSnapshotImageReader();
+        startCaptureSession();
+    }
+
+    @Override
+    void setVideoStandby(final VideoEncoderOptions options) {
+        if (postToCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                setVideoStandby(options);
+            }
+        })) {
+            return;
+        }
+        super.setVideoStandby(options);
+        if (mIsRecording || mPreRolling) {
+            // Applied when the recording or the pre-roll stops
+            return;
+        }
+        if (options == null ? mStandbyOptions == null : options.equals(mStandbyOptions)) {
+            return;
+        }
+        restartCaptureSession();
+    }
+
+    /**
+     * Prepares {@link #mPersistentSurface} and {@link #mStandbyEncoder} for
+     * {@link #mVideoStandby}, or releases them if the video standby is off.
+     *
+     * @return {@code true} if the capture session is to include {@link #mPersistentSurface}.
+     */
+    private boolean prepareVideoStandby() {
+        if (mStandbyOptions != null && !mStandbyOptions.equals(mVideoStandby)) {
+            releaseVideoStandby();
+        }
+        if (mVideoStandby == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.M
+                || !prepareStandbyEncoder()) {
+            return false;
+        }
+        mVideoSize = mStandbyEncoder.getVideoSize();
+        return true;
+    }
+
+    /**
+     * Configures {@link #mStandbyEncoder} on {@link #mPersistentSurface}, creating the surface if
+     * needed. A configured encoder sets the size of the surface, which the capture session
+     * requires.
+     *
+     * @return {@code false} if the encoder cannot be configured.
+     */
+    @TargetApi(23)
+    private boolean prepareStandbyEncoder() {
+        if (mStandbyEncoder != null) {
+            return true;
+        }
+        if (mPersistentSurface == null) {
+            mPersistentSurface = MediaCodec.createPersistentInputSurface();
+        }
+        try {
+            mStandbyEncoder = new MediaCodecVideoEncoder(mVideoStandby, getHighQualityProfile(),
+                    mPersistentSurface);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to prepare the video standby.", e);
+            return false;
+        }
+        mStandbyOptions = mVideoStandby;
+        return true;
+    }
+
+    /**
+     * Prepares {@link #mStandbyEncoder} again after a standby recording, once its recorder has
+     * released {@link #mPersistentSurface}. Called again when the recorder is released.
+     */
+    private void resumeVideoStandby() {
+        if (mRecorderStopper != null) {
+            if (!mRecorderStopper.isStopped()) {
+                return;
+            }
+            mRecorderStopper = null;
+        }
+        if (mStoppingListener != null) {
+            if (!mStoppingListener.mReleased) {
+                return;
+            }
+            mStoppingListener = null;
+        }
+        if (mCamera == null || !mStandbySession || mRecorderSurface != null) {
+            return;
+        }
+        if (mVideoStandby != null && mVideoStandby.equals(mStandbyOptions)) {
+            prepareStandbyEncoder();
+        }
+    }
+
+    /**
+     * Waits for the last recorder stopped to be released.
+     */
+    private void awaitRecorderStopped() {
+        if (mRecorderStopper != null) {
+            mRecorderStopper.await();
+            mRecorderStopper = null;
+        }
+        if (mStoppingListener != null) {
+            mStoppingListener.mPipeline.stop();
+            mStoppingListener = null;
+        }
+    }
+
+    /**
+     * Releases {@link #mStandbyEncoder} and {@link #mPersistentSurface}. The capture session must
+     * not include the surface anymore.
+     */
+    private void releaseVideoStandby() {
+        if (mPersistentSurface != null) {
+            // A recorder may still be stopping on the surface
+            awaitRecorderStopped();
+        }
+        if (mStandbyEncoder != null) {
+            mStandbyEncoder.release();
+            mStandbyEncoder = null;
+        }
+        if (mPersistentSurface != null) {
+            mPersistentSurface.release();
+            mPersistentSurface = null;
+        }
+        mStandbyOptions = null;
+        mStandbySession = false;
+    }
+
+    @TargetApi(23)
+    private void setRecorderInputSurface() {
+        mMediaRecorder.setInputSurface(mPersistentSurface);
+    }
+
+    private CamcorderProfile getHighQualityProfile() {
+        return CamcorderProfile.get(Integer.parseInt(mCameraId), CamcorderProfile.QUALITY_HIGH);
+    }
+
+    @Override
+    public void setFocusDepth(final float value) {
+        if (mFocusDepth == value) {
+            return;
+        }
+        if (postToCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                setFocusDepth(value);
+            }
+        })) {
+            return;
+        }
+        float saved = mFocusDepth;
+        mFocusDepth = value;
+        if (mCaptureSession != null) {
+            updateFocusDepth();
+            try {
+                mCaptureSession.setRepeatingRequest(mPreviewRequestBuilder.build(),
+                        mCaptureCallback, mBackgroundHandler);
+            } catch (CameraAccessException e) {
+                mFocusDepth = saved;  // Revert
+            }
+        }
+    }
+
+    @Override
+    float getFocusDepth() {
+        return mFocusDepth;
+    }
+
+    @Override
+    public void setZoom(final float zoom) {
+        if (mZoom == zoom) {
+            return;
+        }
+        if (postToCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                setZoom(zoom);
+            }
+        })) {
+            return;
+        }
+        float saved = mZoom;
+        mZoom = zoom;
+        if (mCaptureSession != null) {
+            updateZoom(saved);
+            try {
+                mCaptureSession.setRepeatingRequest(mPreviewRequestBuilder.build(),
+                        mCaptureCallback, mBackgroundHandler);
+            } catch (CameraAccessException e) {
+                mZoom = saved;  // Revert
+            }
+        }
+    }
+
+    @Override
+    float getZoom() {
+        return mZoom;
+    }
+
+    @Override
+    public void setWhiteBalance(final int whiteBalance) {
+        if (mWhiteBalance == whiteBalance) {
+            return;
+        }
+        if (postToCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                setWhiteBalance(whiteBalance);
+            }
+        })) {
             return;
         }
         int saved = mWhiteBalance;
@@ -548,7 +1434,7 @@ class Camera2 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
             updateWhiteBalance();
             try {
                 mCaptureSession.setRepeatingRequest(mPreviewRequestBuilder.build(),
-                        mCaptureCallback, null);
+                        mCaptureCallback, mBackgroundHandler);
             } catch (CameraAccessException e) {
                 mWhiteBalance = saved;  // Revert
             }
@@ -561,16 +1447,27 @@ class Camera2 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
     }
 
     @Override
-    void setScanning(boolean isScanning) {
+    void setScanning(final boolean isScanning) {
         if (mIsScanning == isScanning) {
             return;
         }
+        if (postToCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                setScanning(isScanning);
+            }
+        })) {
+            return;
+        }
         mIsScanning = isScanning;
         if (!mIsScanning) {
             mImageFormat = ImageFormat.JPEG;
         } else {
             mImageFormat = ImageFormat.YUV_420_888;
         }
+        if (mStillImageReader != null) {
+            prepareZslImageReader();
+        }
         if (mCaptureSession != null) {
             mCaptureSession.close();
             mCaptureSession = null;
@@ -593,6 +1490,30 @@ class Camera2 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
         }
     }
 
+    @Override
+    void retainFrame(byte[] data) {
+        // Byte array frames are copied out of the image; nothing to retain
+    }
+
+    @Override
+    void releaseFrame(byte[] data) {
+        // Byte array frames are copied out of the image; nothing to release
+    }
+
+    private ImageFrame obtainFrame() {
+        synchronized (mFrames) {
+            for (int i = 0, count = mFrames.size(); i < count; i++) {
+                final ImageFrame frame = mFrames.get(i);
+                if (frame.isIdle()) {
+                    return frame;
+                }
+            }
+            final ImageFrame frame = new ImageFrame();
+            mFrames.add(frame);
+            return frame;
+        }
+    }
+
     @Override
     void setDisplayOrientation(int displayOrientation, int deviceOrientation) {
         mDisplayOrientation = displayOrientation;
@@ -702,6 +1623,21 @@ class Camera2 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
         }
         mPictureSizes.clear();
         collectPictureSizes(mPictureSizes, map);
+        mScanSizes.clear();
+        for (android.util.Size size : map.getOutputSizes(ImageFormat.YUV_420_888)) {
+            mScanSizes.add(new Size(size.getWidth(), size.getHeight()));
+        }
+        mThumbnailSizes.clear();
+        final android.util.Size[] thumbnailSizes = mCameraCharacteristics.get(
+                CameraCharacteristics.JPEG_AVAILABLE_THUMBNAIL_SIZES);
+        if (thumbnailSizes != null) {
+            for (android.util.Size size : thumbnailSizes) {
+                // 0x0 stands for no thumbnail
+                if (size.getWidth() > 0 && size.getHeight() > 0) {
+                    mThumbnailSizes.add(new Size(size.getWidth(), size.getHeight()));
+                }
+            }
+        }
         for (AspectRatio ratio : mPreviewSizes.ratios()) {
             if (!mPictureSizes.ratios().contains(ratio)) {
                 mPreviewSizes.remove(ratio);
@@ -719,24 +1655,326 @@ class Camera2 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
         }
     }
 
-    private void prepareStillImageReader() {
-        if (mStillImageReader != null) {
-            mStillImageReader.close();
+    private void prepareStillImageReader() {
+        if (mStillImageReader != null) {
+            mStillImageReader.close();
+        }
+        final Size yuvSize = mPictureEncoder != null
+                ? choosePictureSize(mScanSizes, mAspectRatio) : null;
+        if (yuvSize != null) {
+            // Encoded on the encoder thread
+            mStillImageReader = ImageReader.newInstance(yuvSize.getWidth(), yuvSize.getHeight(),
+                    ImageFormat.YUV_420_888, STILL_IMAGE_COUNT);
+            mStillImageReader.setOnImageAvailableListener(new YuvStillListener(),
+                    mBackgroundHandler);
+            return;
+        }
+        final Size size = choosePictureSize(mPictureSizes, mAspectRatio);
+        mStillImageReader = ImageReader.newInstance(size.getWidth(), size.getHeight(),
+                ImageFormat.JPEG, STILL_IMAGE_COUNT);
+        mStillImageReader.setOnImageAvailableListener(new JpegStillListener(),
+                mBackgroundHandler);
+    }
+
+    private void prepareScanImageReader() {
+        if (mScanImageReader != null) {
+            mScanImageReader.close();
+        }
+        Size size = chooseScanSize();
+        mScanImageReader = ImageReader.newInstance(size.getWidth(), size.getHeight(),
+                ImageFormat.YUV_420_888, SCAN_IMAGE_COUNT);
+        mScanImageReader.setOnImageAvailableListener(mOnFrameAvailableListener,
+                mBackgroundHandler);
+    }
+
+    /**
+     * Creates {@link #mZslImageReader} at the largest YUV size of the current aspect ratio if zero
+     * shutter lag is on and the camera can stream it next to the preview and the still reader.
+     */
+    private void prepareZslImageReader() {
+        closeZslImageReader();
+        if (!isZeroShutterLagSupported()) {
+            return;
+        }
+        // The frames become the pictures
+        final Size size = choosePictureSize(mScanSizes, mAspectRatio);
+        // One more image for the frame being encoded, and one to acquire while the buffer is full
+        mZslImageReader = ImageReader.newInstance(size.getWidth(), size.getHeight(),
+                ImageFormat.YUV_420_888, ZSL_FRAME_COUNT + 2);
+        mZslImageReader.setOnImageAvailableListener(mOnZslFrameAvailableListener,
+                mBackgroundHandler);
+        final Float minimumFocusDistance = mCameraCharacteristics.get(
+                CameraCharacteristics.LENS_INFO_MINIMUM_FOCUS_DISTANCE);
+        mZslFrames.setFixedFocus(minimumFocusDistance == null || minimumFocusDistance == 0.f);
+    }
+
+    /**
+     * Creates {@link #mSnapshotImageReader} at the largest JPEG size within the video size,
+     * preferably of the same aspect ratio. Video snapshots are not supported when no JPEG size
+     * fits, in which case the reader is left out.
+     */
+    private void prepareSnapshotImageReader() {
+        closeSnapshotImageReader();
+        final Size size = chooseSnapshotSize();
+        if (size == null) {
+            Log.w(TAG, "No JPEG size fits within the video size " + mVideoSize);
+            return;
+        }
+        mSnapshotImageReader = ImageReader.newInstance(size.getWidth(), size.getHeight(),
+                ImageFormat.JPEG, STILL_IMAGE_COUNT);
+        mSnapshotImageReader.setOnImageAvailableListener(new JpegStillListener(),
+                mBackgroundHandler);
+    }
+
+    /**
+     * @return The largest supported JPEG size within {@link #mVideoSize}, preferably of the same
+     * aspect ratio, or {@code null} if there is none.
+     */
+    private Size chooseSnapshotSize() {
+        final StreamConfigurationMap map = mCameraCharacteristics.get(
+                CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        if (map == null) {
+            return null;
+        }
+        final int maxWidth = mVideoSize.getWidth();
+        final int maxHeight = mVideoSize.getHeight();
+        final AspectRatio ratio = AspectRatio.of(maxWidth, maxHeight);
+        Size largest = null;
+        Size largestOfRatio = null;
+        for (android.util.Size s : map.getOutputSizes(ImageFormat.JPEG)) {
+            if (s.getWidth() > maxWidth || s.getHeight() > maxHeight) {
+                continue;
+            }
+            final Size size = new Size(s.getWidth(), s.getHeight());
+            if (largest == null || area(size) > area(largest)) {
+                largest = size;
+            }
+            if (ratio.matches(size)
+                    && (largestOfRatio == null || area(size) > area(largestOfRatio))) {
+                largestOfRatio = size;
+            }
+        }
+        return largestOfRatio != null ? largestOfRatio : largest;
+    }
+
+    private static long area(Size size) {
+        return (long) size.getWidth() * size.getHeight();
+    }
+
+    /**
+     * Closes {@link #mSnapshotImageReader}, failing the snapshots it has not delivered yet.
+     */
+    private void closeSnapshotImageReader() {
+        if (mSnapshotImageReader == null) {
+            return;
+        }
+        mSnapshotImageReader.close();
+        mSnapshotImageReader = null;
+        mRecorderSurface = null;
+        CaptureQueue.Request request;
+        while ((request = mStillRequests.poll()) != null) {
+            failCapture(request, new IllegalStateException("The recording was stopped."));
+        }
+    }
+
+    private void closeZslImageReader() {
+        // The images must be closed before their reader
+        mZslFrames.clear();
+        if (mZslImageReader != null) {
+            mZslImageReader.close();
+            mZslImageReader = null;
+        }
+    }
+
+    /**
+     * Only FULL devices guarantee a maximum size YUV stream next to the preview and a JPEG
+     * stream. The scan stream would exceed that, so scanning turns zero shutter lag off.
+     */
+    private boolean isZeroShutterLagSupported() {
+        if (!mZeroShutterLag || mIsScanning || mCameraCharacteristics == null
+                || mScanSizes.sizes(mAspectRatio) == null) {
+            return false;
+        }
+        Integer level = mCameraCharacteristics.get(
+                CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+        return level != null && (level == CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_FULL
+                || level == CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_3);
+    }
+
+    @Override
+    void setZeroShutterLag(final boolean zeroShutterLag) {
+        if (mZeroShutterLag == zeroShutterLag) {
+            return;
+        }
+        if (postToCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                setZeroShutterLag(zeroShutterLag);
+            }
+        })) {
+            return;
+        }
+        super.setZeroShutterLag(zeroShutterLag);
+        if (mStillImageReader == null) {
+            // Applied when the camera starts
+            return;
+        }
+        prepareZslImageReader();
+        restartCaptureSession();
+    }
+
+    @Override
+    void setPictureResolution(final Size size) {
+        if (postToCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                setPictureResolution(size);
+            }
+        })) {
+            return;
+        }
+        super.setPictureResolution(size);
+        restartStillCapture();
+    }
+
+    @Override
+    void setPictureMaxPixels(final int maxPixels) {
+        if (postToCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                setPictureMaxPixels(maxPixels);
+            }
+        })) {
+            return;
+        }
+        super.setPictureMaxPixels(maxPixels);
+        restartStillCapture();
+    }
+
+    /**
+     * Recreates the still and zero shutter lag readers with the current picture size, and the
+     * session using them.
+     */
+    private void restartStillCapture() {
+        if (mStillImageReader == null) {
+            // Applied when the camera starts
+            return;
+        }
+        prepareStillImageReader();
+        prepareZslImageReader();
+        restartCaptureSession();
+    }
+
+    private void restartCaptureSession() {
+        if (mCaptureSession != null) {
+            mCaptureSession.close();
+            mCaptureSession = null;
+            startCaptureSession();
+        }
+    }
+
+    @Override
+    void setPictureEncoder(final PictureEncoder encoder) {
+        if (postToCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                setPictureEncoder(encoder);
+            }
+        })) {
+            return;
+        }
+        final boolean yuv = mPictureEncoder != null;
+        super.setPictureEncoder(encoder);
+        if (yuv == (encoder != null)) {
+            // The still format does not change
+            return;
+        }
+        if (mStillImageReader == null) {
+            // Applied when the camera starts
+            return;
+        }
+        prepareStillImageReader();
+        restartCaptureSession();
+    }
+
+    /**
+     * Encodes the sharpest recent frames with converged 3A instead of capturing new ones, one for
+     * each pending request as long as there are such frames. Pictures that may need the flash
+     * are left to the precapture sequence, as the preview frames are not lit by it.
+     */
+    private void takeZslPictures() {
+        if (mZslImageReader == null || mRecorderSurface != null || mIsScanning) {
+            return;
+        }
+        if (mFlash != Constants.FLASH_OFF && mFlash != Constants.FLASH_TORCH) {
+            return;
+        }
+        while (mCaptureQueue.hasPending()) {
+            final Frame frame = mZslFrames.take(mCaptureResults);
+            if (frame == null) {
+                return;
+            }
+            encodePicture(mCaptureQueue.nextPending(), frame);
+        }
+    }
+
+    /**
+     * Chooses the size of the scanning frames among the YUV output sizes of the current aspect
+     * ratio. The camera scales the stream, so a smaller size costs nothing on the CPU.
+     */
+    private Size chooseScanSize() {
+        final SortedSet<Size> previewSizes = mPreviewSizes.sizes(mAspectRatio);
+        if (mScanSizes.sizes(mAspectRatio) == null) {
+            return previewSizes.last();
+        }
+        if (mScanningResolution != null) {
+            return mScanSizes.nearest(mAspectRatio,
+                    (long) mScanningResolution.getWidth() * mScanningResolution.getHeight());
+        }
+        if (mScanningMaxPixels > 0) {
+            return mScanSizes.largestWithin(mAspectRatio, mScanningMaxPixels);
+        }
+        return previewSizes.last();
+    }
+
+    @Override
+    void setScanningResolution(final Size size) {
+        if (postToCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                setScanningResolution(size);
+            }
+        })) {
+            return;
+        }
+        super.setScanningResolution(size);
+        restartScanning();
+    }
+
+    @Override
+    void setScanningMaxPixels(final int maxPixels) {
+        if (postToCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                setScanningMaxPixels(maxPixels);
+            }
+        })) {
+            return;
         }
-        Size largest = mPictureSizes.sizes(mAspectRatio).last();
-        mStillImageReader = ImageReader.newInstance(largest.getWidth(), largest.getHeight(),
-                ImageFormat.JPEG, 1);
-        mStillImageReader.setOnImageAvailableListener(mOnImageAvailableListener, null);
+        super.setScanningMaxPixels(maxPixels);
+        restartScanning();
     }
 
-    private void prepareScanImageReader() {
-        if (mScanImageReader != null) {
-            mScanImageReader.close();
+    /**
+     * Recreates the scan reader with the current scanning size, and the session using it.
+     */
+    private void restartScanning() {
+        if (mScanImageReader == null) {
+            // Applied when the camera starts
+            return;
         }
-        Size largest = mPreviewSizes.sizes(mAspectRatio).last();
-        mScanImageReader = ImageReader.newInstance(largest.getWidth(), largest.getHeight(),
-                ImageFormat.YUV_420_888, 1);
-        mScanImageReader.setOnImageAvailableListener(mOnImageAvailableListener, null);
+        prepareScanImageReader();
+        restartCaptureSession();
     }
 
     /**
@@ -745,20 +1983,96 @@ class Camera2 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
      */
     private void startOpeningCamera() {
         try {
-            mCameraManager.openCamera(mCameraId, mCameraDeviceCallback, null);
+            mOpening = true;
+            mCameraManager.openCamera(mCameraId, mCameraDeviceCallback, mBackgroundHandler);
             /*
             //存在打开摄像头比registerAvailabilityCallback先执行的问题 先注掉
             if (mAvailableCameras.contains(String.valueOf(mCameraId))) {
-                mCameraManager.openCamera(mCameraId, mCameraDeviceCallback, null);
+                mCameraManager.openCamera(mCameraId, mCameraDeviceCallback, mBackgroundHandler);
             } else {
                 mCallback.onMountError();
             }
             */
         } catch (CameraAccessException e) {
+            mOpening = false;
             throw new RuntimeException("Failed to open camera: " + mCameraId, e);
         }
     }
 
+    private void startBackgroundThread() {
+        if (mBackgroundThread != null) {
+            return;
+        }
+        mBackgroundThread = new HandlerThread("CameraBackground");
+        mBackgroundThread.start();
+        mBackgroundHandler = new Handler(mBackgroundThread.getLooper());
+    }
+
+    /**
+     * Detaches {@link #mBackgroundThread}; later callbacks of the stopped camera are recognized
+     * by {@link #isCurrentThread()}.
+     *
+     * @param closing {@code true} if a camera device is still being opened or closed on the
+     *                thread. The thread then quits by itself once the device is closed.
+     */
+    private void stopBackgroundThread(boolean closing) {
+        if (mBackgroundThread == null) {
+            return;
+        }
+        if (!closing) {
+            mBackgroundThread.quitSafely();
+        }
+        mBackgroundThread = null;
+        mBackgroundHandler = null;
+    }
+
+    /**
+     * @return {@code true} if called on the thread of the camera that is currently in use.
+     */
+    private boolean isCurrentThread() {
+        final Handler handler = mBackgroundHandler;
+        return handler != null && handler.getLooper() == Looper.myLooper();
+    }
+
+    /**
+     * Posts the {@code task} to {@link #mBackgroundThread}, which owns the camera state, unless
+     * this is already that thread. Tasks are run in the order they are posted.
+     *
+     * @return {@code true} if the task was posted, {@code false} if the caller should run it,
+     * which is the case while no camera is started.
+     */
+    private boolean postToCameraThread(Runnable task) {
+        final Handler handler = mBackgroundHandler;
+        if (handler == null || handler.getLooper() == Looper.myLooper()) {
+            return false;
+        }
+        // The thread quits once its camera is stopped and closed
+        return handler.post(task);
+    }
+
+    /**
+     * Runs the {@code task} on {@link #mBackgroundThread}, after all the tasks already posted
+     * there, and waits for its result. Runs it right away while no camera is started.
+     */
+    private <T> T callOnCameraThread(Callable<T> task) {
+        final FutureTask<T> future = new FutureTask<>(task);
+        if (!postToCameraThread(future)) {
+            future.run();
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
     /**
      * <p>Starts a capture session for camera preview.</p>
      * <p>This rewrites {@link #mPreviewRequestBuilder}.</p>
@@ -778,8 +2092,34 @@ class Camera2 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
             if (mIsScanning) {
                 mPreviewRequestBuilder.addTarget(mScanImageReader.getSurface());
             }
-            mCamera.createCaptureSession(Arrays.asList(surface, mStillImageReader.getSurface(),
-                    mScanImageReader.getSurface()), mSessionCallback, null);
+            final List<Surface> outputs = new ArrayList<>(Arrays.asList(surface,
+                    mStillImageReader.getSurface()));
+            if (mIsScanning) {
+                outputs.add(mScanImageReader.getSurface());
+            }
+            if (mSnapshotImageReader != null) {
+                closeSnapshotImageReader();
+            }
+            mStandbySession = !mPlainSessionOnly && prepareVideoStandby();
+            if (mStandbySession) {
+                // Recordings start and stop by changing the targets of the repeating request.
+                // Video snapshots go to the still reader, as the camera can only stream one
+                // JPEG output next to the recorder. The zero shutter lag stream is left out to
+                // keep the number of streams down.
+                outputs.add(mPersistentSurface);
+            }
+            mExtraStreams = mStandbySession;
+            if (!mStandbySession && !mPlainSessionOnly && !mIsScanning
+                    && mZslImageReader != null) {
+                // The guaranteed combination has room for a single YUV stream, so the zero
+                // shutter lag stream is never configured next to the scan stream.
+                // Frames of an earlier session may not match the current settings.
+                mZslFrames.clear();
+                mPreviewRequestBuilder.addTarget(mZslImageReader.getSurface());
+                outputs.add(mZslImageReader.getSurface());
+                mExtraStreams = true;
+            }
+            mCamera.createCaptureSession(outputs, mSessionCallback, mBackgroundHandler);
         } catch (Exception e) {
             mCallback.onCameraError(new CameraOpenException("Failed to start camera session", e));
         }
@@ -960,68 +2300,222 @@ class Camera2 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
     private void lockFocus() {
         mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER,
                 CaptureRequest.CONTROL_AF_TRIGGER_START);
+        final CaptureRequest request = mPreviewRequestBuilder.build();
+        // The trigger is sent once; the repeating request must never carry it
+        mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER,
+                CaptureRequest.CONTROL_AF_TRIGGER_IDLE);
         try {
             mCaptureCallback.setState(PictureCaptureCallback.STATE_LOCKING);
-            mCaptureSession.capture(mPreviewRequestBuilder.build(), mCaptureCallback, null);
+            mCaptureSession.capture(request, mCaptureCallback, mBackgroundHandler);
         } catch (CameraAccessException e) {
             Log.e(TAG, "Failed to lock focus.", e);
         }
     }
 
     /**
-     * Captures a still picture.
+     * Captures a still picture for every pending request, once the focus and exposure are ready.
      */
     void captureStillPicture() {
+        captureStillPictures(false);
+    }
+
+    /**
+     * Submits a still capture for every pending request in a single burst, so that the camera
+     * pipelines them. While recording, the captures are video snapshots that leave the repeating
+     * request and the recording running.
+     *
+     * @param burst {@code true} to keep the preview running between the captures, lit only by
+     *              the torch.
+     */
+    private void captureStillPictures(boolean burst) {
+        // Standby sessions have no separate snapshot reader
+        final ImageReader snapshotReader = mStandbySession
+                ? mStillImageReader : mSnapshotImageReader;
+        final boolean snapshot = mRecorderSurface != null && snapshotReader != null;
+        final boolean repeating = burst || snapshot;
+        final List<CaptureQueue.Request> pending = new ArrayList<>();
+        CaptureQueue.Request next;
+        while ((next = mCaptureQueue.nextPending()) != null) {
+            pending.add(next);
+        }
+        if (pending.isEmpty()) {
+            mCapturing = false;
+            return;
+        }
+        if (mRecorderSurface != null && !snapshot) {
+            failStillCaptures(pending, new IllegalStateException(
+                    "Video snapshots are not supported at this video size."));
+            return;
+        }
         try {
-            CaptureRequest.Builder captureRequestBuilder = mCamera.createCaptureRequest(
-                    CameraDevice.TEMPLATE_STILL_CAPTURE);
-            if (mIsScanning) {
-                mImageFormat = ImageFormat.JPEG;
-                captureRequestBuilder.removeTarget(mScanImageReader.getSurface());
-            }
-            captureRequestBuilder.addTarget(mStillImageReader.getSurface());
-            captureRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE,
-                    mPreviewRequestBuilder.get(CaptureRequest.CONTROL_AF_MODE));
-            switch (mFlash) {
-                case Constants.FLASH_OFF:
-                    captureRequestBuilder.set(CaptureRequest.CONTROL_AE_MODE,
-                            CaptureRequest.CONTROL_AE_MODE_ON);
-                    captureRequestBuilder.set(CaptureRequest.FLASH_MODE,
-                            CaptureRequest.FLASH_MODE_OFF);
-                    break;
-                case Constants.FLASH_ON:
-                    captureRequestBuilder.set(CaptureRequest.CONTROL_AE_MODE,
-                            CaptureRequest.CONTROL_AE_MODE_ON_ALWAYS_FLASH);
-                    break;
-                case Constants.FLASH_TORCH:
+            final CaptureRequest.Builder captureRequestBuilder;
+            if (snapshot) {
+                // The exposure and flash of the recording are kept
+                captureRequestBuilder = createStillCaptureRequest(
+                        CameraDevice.TEMPLATE_VIDEO_SNAPSHOT, snapshotReader);
+                // The snapshot frame is recorded and previewed as well, so none is dropped
+                captureRequestBuilder.addTarget(mPreview.getSurface());
+                captureRequestBuilder.addTarget(mRecorderSurface);
+            } else {
+                captureRequestBuilder = createStillCaptureRequest(
+                        CameraDevice.TEMPLATE_STILL_CAPTURE, mStillImageReader);
+                if (burst) {
+                    // Without a precapture sequence, only the torch can light a burst
                     captureRequestBuilder.set(CaptureRequest.CONTROL_AE_MODE,
                             CaptureRequest.CONTROL_AE_MODE_ON);
                     captureRequestBuilder.set(CaptureRequest.FLASH_MODE,
-                            CaptureRequest.FLASH_MODE_TORCH);
-                    break;
-                case Constants.FLASH_AUTO:
-                    captureRequestBuilder.set(CaptureRequest.CONTROL_AE_MODE,
-                            CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
-                    break;
-                case Constants.FLASH_RED_EYE:
-                    captureRequestBuilder.set(CaptureRequest.CONTROL_AE_MODE,
-                            CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
-                    break;
+                            mFlash == Constants.FLASH_TORCH
+                                    ? CaptureRequest.FLASH_MODE_TORCH
+                                    : CaptureRequest.FLASH_MODE_OFF);
+                } else {
+                    if (mIsScanning) {
+                        mImageFormat = ImageFormat.JPEG;
+                        captureRequestBuilder.removeTarget(mScanImageReader.getSurface());
+                    }
+                    setFlashForStillCapture(captureRequestBuilder);
+                }
             }
-            captureRequestBuilder.set(CaptureRequest.JPEG_ORIENTATION, getOutputRotation());
-            // Stop preview and capture a still picture.
-            mCaptureSession.stopRepeating();
-            mCaptureSession.capture(captureRequestBuilder.build(),
-                    new CameraCaptureSession.CaptureCallback() {
-                        @Override
-                        public void onCaptureCompleted(@NonNull CameraCaptureSession session,
-                                                       @NonNull CaptureRequest request,
-                                                       @NonNull TotalCaptureResult result) {
-                            unlockFocus();
+            final List<CaptureRequest> requests = new ArrayList<>(pending.size());
+            for (CaptureQueue.Request request : pending) {
+                captureRequestBuilder.setTag(request.getId());
+                requests.add(captureRequestBuilder.build());
+            }
+            mStillRequests.addAll(pending);
+            if (!repeating) {
+                // Stop preview and capture the still pictures.
+                mCaptureSession.stopRepeating();
+            }
+            mCaptureSession.captureBurst(requests, new CameraCaptureSession.CaptureCallback() {
+                @Override
+                public void onCaptureFailed(@NonNull CameraCaptureSession session,
+                                            @NonNull CaptureRequest request,
+                                            @NonNull CaptureFailure failure) {
+                    final CaptureQueue.Request failed = findStillRequest(request.getTag());
+                    if (failed != null) {
+                        mStillRequests.remove(failed);
+                        failCapture(failed, new IllegalStateException(
+                                "Failed to capture the picture, reason " + failure.getReason()));
+                    }
+                }
+
+                @Override
+                public void onCaptureSequenceCompleted(@NonNull CameraCaptureSession session,
+                                                       int sequenceId, long frameNumber) {
+                    finishStillCapture(repeating);
+                }
+
+                @Override
+                public void onCaptureSequenceAborted(@NonNull CameraCaptureSession session,
+                                                     int sequenceId) {
+                    for (CaptureQueue.Request request : pending) {
+                        if (mStillRequests.remove(request)) {
+                            failCapture(request, new IllegalStateException(
+                                    "The capture was aborted."));
                         }
-                    }, null);
+                    }
+                    finishStillCapture(repeating);
+                }
+            }, mBackgroundHandler);
         } catch (CameraAccessException e) {
             Log.e(TAG, "Cannot capture a still picture.", e);
+            failStillCaptures(pending, e);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Cannot capture a still picture.", e);
+            failStillCaptures(pending, e);
+        }
+    }
+
+    private void failStillCaptures(List<CaptureQueue.Request> requests, Throwable cause) {
+        for (CaptureQueue.Request request : requests) {
+            mStillRequests.remove(request);
+            failCapture(request, cause);
+        }
+        mCapturing = false;
+    }
+
+    private CaptureQueue.Request findStillRequest(Object tag) {
+        for (CaptureQueue.Request request : mStillRequests) {
+            if (tag instanceof Integer && request.getId() == (Integer) tag) {
+                return request;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Restarts the preview after a still capture sequence and captures the requests queued
+     * meanwhile.
+     *
+     * @param repeating {@code true} if the preview was kept running during the sequence.
+     */
+    private void finishStillCapture(boolean repeating) {
+        mCapturing = false;
+        if (mCaptureSession == null) {
+            return;
+        }
+        if (!repeating) {
+            unlockFocus();
+        }
+        processCaptureQueue(false);
+    }
+
+    /**
+     * @return A capture request of the {@code template} to the {@code reader} with the focus mode
+     * of the preview and the output rotation.
+     */
+    private CaptureRequest.Builder createStillCaptureRequest(int template, ImageReader reader)
+            throws CameraAccessException {
+        CaptureRequest.Builder captureRequestBuilder = mCamera.createCaptureRequest(template);
+        captureRequestBuilder.addTarget(reader.getSurface());
+        captureRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE,
+                mPreviewRequestBuilder.get(CaptureRequest.CONTROL_AF_MODE));
+        final int rotation = getOutputRotation();
+        if (mExifOrientation) {
+            // Many HALs rotate the pixels for JPEG_ORIENTATION, which is slow
+            captureRequestBuilder.set(CaptureRequest.JPEG_ORIENTATION, 0);
+            mPictureExifRotation = rotation;
+        } else {
+            captureRequestBuilder.set(CaptureRequest.JPEG_ORIENTATION, rotation);
+            mPictureExifRotation = NO_EXIF_ROTATION;
+        }
+        if (mThumbnailSize > 0) {
+            final Size thumbnailSize = JpegThumbnail.chooseSize(mThumbnailSizes, mAspectRatio,
+                    mThumbnailSize);
+            if (thumbnailSize != null) {
+                captureRequestBuilder.set(CaptureRequest.JPEG_THUMBNAIL_SIZE,
+                        new android.util.Size(thumbnailSize.getWidth(),
+                                thumbnailSize.getHeight()));
+            }
+        }
+        return captureRequestBuilder;
+    }
+
+    private void setFlashForStillCapture(CaptureRequest.Builder captureRequestBuilder) {
+        switch (mFlash) {
+            case Constants.FLASH_OFF:
+                captureRequestBuilder.set(CaptureRequest.CONTROL_AE_MODE,
+                        CaptureRequest.CONTROL_AE_MODE_ON);
+                captureRequestBuilder.set(CaptureRequest.FLASH_MODE,
+                        CaptureRequest.FLASH_MODE_OFF);
+                break;
+            case Constants.FLASH_ON:
+                captureRequestBuilder.set(CaptureRequest.CONTROL_AE_MODE,
+                        CaptureRequest.CONTROL_AE_MODE_ON_ALWAYS_FLASH);
+                break;
+            case Constants.FLASH_TORCH:
+                captureRequestBuilder.set(CaptureRequest.CONTROL_AE_MODE,
+                        CaptureRequest.CONTROL_AE_MODE_ON);
+                captureRequestBuilder.set(CaptureRequest.FLASH_MODE,
+                        CaptureRequest.FLASH_MODE_TORCH);
+                break;
+            case Constants.FLASH_AUTO:
+                captureRequestBuilder.set(CaptureRequest.CONTROL_AE_MODE,
+                        CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
+                break;
+            case Constants.FLASH_RED_EYE:
+                captureRequestBuilder.set(CaptureRequest.CONTROL_AE_MODE,
+                        CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
+                break;
         }
     }
 
@@ -1060,6 +2554,9 @@ class Camera2 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
         if (maxFileSize != -1) {
             mMediaRecorder.setMaxFileSize(maxFileSize);
         }
+        mSegmenter = mSegmentedRecording && maxFileSize != -1
+                && MediaRecorderSegmenter.isSupported()
+                ? new MediaRecorderSegmenter(mMediaRecorder, path, mCallback) : null;
 
         mMediaRecorder.setOnInfoListener(this);
         mMediaRecorder.setOnErrorListener(this);
@@ -1069,6 +2566,7 @@ class Camera2 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
         mMediaRecorder.setOutputFormat(profile.fileFormat);
         mMediaRecorder.setVideoFrameRate(profile.videoFrameRate);
         mMediaRecorder.setVideoSize(profile.videoFrameWidth, profile.videoFrameHeight);
+        mVideoSize = new Size(profile.videoFrameWidth, profile.videoFrameHeight);
         mMediaRecorder.setVideoEncodingBitRate(profile.videoBitRate);
         mMediaRecorder.setVideoEncoder(profile.videoCodec);
         if (recordAudio) {
@@ -1079,27 +2577,163 @@ class Camera2 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
         }
     }
 
+    /**
+     * Hands {@link #mMediaRecorder} over to a {@link MediaRecorderStopper}, which reports the
+     * video once the file is complete.
+     */
     private void stopMediaRecorder() {
         mIsRecording = false;
-        try {
-            mCaptureSession.stopRepeating();
-            mCaptureSession.abortCaptures();
-            mMediaRecorder.stop();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        mMediaRecorder.reset();
-        mMediaRecorder.release();
+        // The events of the stopping recorder no longer concern this camera
+        mMediaRecorder.setOnInfoListener(null);
+        mMediaRecorder.setOnErrorListener(null);
+        mRecorderStopper = new MediaRecorderStopper(mMediaRecorder, mVideoPath, mSegmenter,
+                mCallback);
+        mRecorderStopper.stop(new Runnable() {
+            @Override
+            public void run() {
+                postResumeVideoStandby();
+            }
+        });
         mMediaRecorder = null;
+        mSegmenter = null;
+        mVideoPath = null;
+    }
 
-        if (mVideoPath == null || !new File(mVideoPath).exists()) {
-            mCallback.onVideoRecorded(null);
-            return;
-        }
-        mCallback.onVideoRecorded(mVideoPath);
+    /**
+     * Ends the stream of {@link #mRecordingPipeline} without waiting. The recorder thread
+     * finalizes the file, and its {@link RecordingListener} reports the video.
+     */
+    private void stopRecordingPipeline() {
+        mIsRecording = false;
+        mRecordingPipeline.requestStop();
+        mStoppingListener = mRecordingListener;
+        mRecordingPipeline = null;
+        mRecordingListener = null;
         mVideoPath = null;
     }
 
+    private void postResumeVideoStandby() {
+        final Handler handler = mBackgroundHandler;
+        if (handler != null) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // Unless the camera was stopped in the meantime
+                    if (isCurrentThread()) {
+                        resumeVideoStandby();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Reports the video of a {@link RecordingPipeline}, and stops the recording if the pipeline
+     * reaches a limit or fails while recording.
+     */
+    private class RecordingListener implements RecordingPipeline.Listener {
+
+        /**
+         * The file the pipeline records into, or {@code null} while it pre-rolls.
+         */
+        private volatile String mPath;
+
+        private volatile boolean mSegmented;
+
+        RecordingPipeline<MediaFormat> mPipeline;
+
+        /**
+         * Whether the recording started. The results of a pipeline that failed to start are not
+         * reported; {@link #record(String, VideoEncoderOptions, int, int)} returned
+         * {@code false} instead.
+         */
+        volatile boolean mStarted;
+
+        /**
+         * Whether the pipeline has released its encoder, and with it {@link #mPersistentSurface}.
+         */
+        volatile boolean mReleased;
+
+        /**
+         * Sets the file and the limits of the recording, before the pipeline writes into it.
+         */
+        void setOutput(final String path, int maxDuration, int maxFileSize) {
+            mSegmented = mSegmentedRecording;
+            mPath = path;
+            mPipeline.setLimits(maxDuration != -1 ? maxDuration * 1000L : 0,
+                    maxFileSize != -1 ? maxFileSize : 0);
+            if (mSegmented) {
+                final int rotation = getOutputRotation();
+                mPipeline.setMuxerFactory(new RecordingPipeline.MuxerFactory<MediaFormat>() {
+                    @Override
+                    public SampleMuxer<MediaFormat> createMuxer(int segment)
+                            throws IOException {
+                        return new MediaMuxerSampleMuxer(VideoSegments.path(path, segment),
+                                rotation);
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void onSegmentFinished(int segment) {
+            if (mStarted && mSegmented) {
+                mCallback.onVideoSegmentRecorded(VideoSegments.path(mPath, segment));
+            }
+        }
+
+        @Override
+        public void onLimitReached() {
+            postStop();
+        }
+
+        @Override
+        public void onRecordingFinished() {
+            mReleased = true;
+            postResumeVideoStandby();
+            final String path = mPath;
+            if (!mStarted || path == null) {
+                // Nothing was recorded from the pre-roll
+                return;
+            }
+            mCallback.onVideoRecorded(VideoSegments.path(path, mPipeline.getSegment()));
+        }
+
+        @Override
+        public void onRecordingFailed(Exception e) {
+            mReleased = true;
+            if (!mStarted) {
+                return;
+            }
+            Log.e(TAG, "Failed to record the video.", e);
+            if (mPath != null) {
+                mCallback.onVideoRecorded(null);
+            }
+            postStop();
+        }
+
+        private void postStop() {
+            final Handler handler = mBackgroundHandler;
+            if (handler != null) {
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Unless the recording or the pre-roll is already stopped
+                        if (!isCurrentThread() || mRecordingPipeline != mPipeline) {
+                            return;
+                        }
+                        if (mPreRolling) {
+                            stopPreRoll();
+                        } else {
+                            stopRecording();
+                        }
+                    }
+                });
+            }
+        }
+
+    }
+
     /**
      * Unlocks the auto-focus and restart camera preview. This is supposed to be called after
      * capturing a still picture.
@@ -1107,19 +2741,20 @@ class Camera2 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
     void unlockFocus() {
         mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER,
                 CaptureRequest.CONTROL_AF_TRIGGER_CANCEL);
+        final CaptureRequest request = mPreviewRequestBuilder.build();
+        mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER,
+                CaptureRequest.CONTROL_AF_TRIGGER_IDLE);
         try {
-            mCaptureSession.capture(mPreviewRequestBuilder.build(), mCaptureCallback, null);
+            mCaptureSession.capture(request, mCaptureCallback, mBackgroundHandler);
             updateAutoFocus();
             updateFlash();
             if (mIsScanning) {
                 mImageFormat = ImageFormat.YUV_420_888;
                 startCaptureSession();
             } else {
-                mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER,
-                        CaptureRequest.CONTROL_AF_TRIGGER_IDLE);
                 mCaptureSession.setRepeatingRequest(mPreviewRequestBuilder.build(),
                         mCaptureCallback,
-                        null);
+                        mBackgroundHandler);
                 mCaptureCallback.setState(PictureCaptureCallback.STATE_PREVIEW);
             }
         } catch (CameraAccessException e) {
@@ -1131,6 +2766,9 @@ class Camera2 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
      * Called when an something occurs while recording.
      */
     public void onInfo(MediaRecorder mr, int what, int extra) {
+        if (mSegmenter != null && mSegmenter.onInfo(what)) {
+            return;
+        }
         if (what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_DURATION_REACHED ||
                 what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED) {
             stopRecording();
@@ -1230,4 +2868,143 @@ class Camera2 extends CameraViewImpl implements MediaRecorder.OnInfoListener,
 
     }
 
+
+    /**
+     * Receives the still pictures of a single reader, and counts the images that are held until
+     * their pictures are delivered or encoded. One image is always left for the reader to
+     * acquire: once the others are held, the pictures are copied out and their images closed
+     * right away.
+     */
+    private abstract class StillImageListener implements ImageReader.OnImageAvailableListener {
+
+        private final AtomicInteger mHeldImages = new AtomicInteger();
+
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            final Image image;
+            try {
+                image = reader.acquireNextImage();
+            } catch (IllegalStateException e) {
+                if (mHeldImages.get() >= reader.getMaxImages()) {
+                    Log.e(TAG, "The still reader is full.", e);
+                } else {
+                    // The reader was closed by stop() on another thread
+                    Log.w(TAG, "Failed to acquire the picture.", e);
+                }
+                final CaptureQueue.Request request = mStillRequests.poll();
+                if (request != null) {
+                    failCapture(request, e);
+                }
+                return;
+            }
+            if (image == null) {
+                return;
+            }
+            final CaptureQueue.Request request = mStillRequests.poll();
+            if (request == null) {
+                // The request was cancelled by stop()
+                image.close();
+                return;
+            }
+            final boolean hold = mHeldImages.incrementAndGet() < reader.getMaxImages();
+            if (!hold) {
+                mHeldImages.decrementAndGet();
+            }
+            final Runnable release = new Runnable() {
+
+                private boolean mReleased;
+
+                @Override
+                public synchronized void run() {
+                    if (mReleased) {
+                        return;
+                    }
+                    mReleased = true;
+                    image.close();
+                    if (hold) {
+                        mHeldImages.decrementAndGet();
+                    }
+                }
+
+            };
+            try {
+                onStillImage(request, image, hold, release);
+            } catch (IllegalStateException e) {
+                // The reader was closed by stop() on another thread
+                Log.w(TAG, "Failed to read the picture.", e);
+                release.run();
+                failCapture(request, e);
+            }
+        }
+
+        /**
+         * Delivers or encodes the picture in the {@code image} for the {@code request}.
+         *
+         * @param hold    {@code true} if the image may stay open until the picture is delivered,
+         *                or {@code false} if it must be copied out and released right away.
+         * @param release Closes the image. Running it again has no effect.
+         */
+        abstract void onStillImage(CaptureQueue.Request request, Image image, boolean hold,
+                Runnable release);
+
+    }
+
+    private class JpegStillListener extends StillImageListener {
+
+        @Override
+        void onStillImage(CaptureQueue.Request request, Image image, boolean hold,
+                Runnable release) {
+            final Image.Plane[] planes = image.getPlanes();
+            if (planes.length == 0) {
+                release.run();
+                failCapture(request, new IllegalStateException("The picture is empty."));
+                return;
+            }
+            ByteBuffer buffer = planes[0].getBuffer();
+            final int exifRotation = mPictureExifRotation;
+            if (exifRotation != NO_EXIF_ROTATION) {
+                buffer = Exif.applyOrientation(buffer, exifRotation);
+            }
+            if (hold) {
+                // The image stays open until the JPEG is delivered or written from its buffer
+                deliverPicture(request, buffer, release);
+                return;
+            }
+            final byte[] jpeg = new byte[buffer.remaining()];
+            buffer.get(jpeg);
+            release.run();
+            deliverPicture(request, ByteBuffer.wrap(jpeg), null);
+        }
+
+    }
+
+    private class YuvStillListener extends StillImageListener {
+
+        @Override
+        void onStillImage(CaptureQueue.Request request, Image image, boolean hold,
+                Runnable release) {
+            final int orientation = getOutputRotation();
+            final int width = image.getWidth();
+            final int height = image.getHeight();
+            final long timestamp = image.getTimestamp();
+            final ImageFrame frame = obtainFrame();
+            frame.open(image, orientation, release);
+            if (hold) {
+                // Encoded on the encoder thread, which closes the frame and the image
+                encodePicture(request, frame);
+                return;
+            }
+            final byte[] nv21;
+            try {
+                nv21 = frame.pack(Constants.FRAME_FORMAT_NV21, null);
+            } finally {
+                frame.close();
+            }
+            final ByteArrayFrame copy = new ByteArrayFrame(nv21, width, height);
+            copy.open(width, height, orientation, timestamp);
+            encodePicture(request, copy);
+        }
+
+    }
+
 }
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.cameraview;
+
+import android.annotation.TargetApi;
+import android.media.Image;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link Frame} that wraps an {@link Image} and closes it when the frame is released.
+ */
+@TargetApi(21)
+class ImageFrame extends Frame {
+
+    private Image mImage;
+
+    private Image.Plane[] mPlanes;
+
+    private Runnable mRelease;
+
+    /**
+     * Opens this frame for the {@code image}. The image is closed when the frame is released.
+     */
+    void open(Image image, int orientation) {
+        open(image, orientation, null);
+    }
+
+    /**
+     * Opens this frame for the {@code image}. When the frame is released, {@code release} is run
+     * instead of closing the image, and must close it.
+     */
+    void open(Image image, int orientation, Runnable release) {
+        mImage = image;
+        mPlanes = image.getPlanes();
+        mRelease = release;
+        open(image.getWidth(), image.getHeight(), orientation, image.getTimestamp());
+    }
+
+    @Override
+    public int getFormat() {
+        return mImage.getFormat();
+    }
+
+    @Override
+    public int getPlaneCount() {
+        return mPlanes.length;
+    }
+
+    @Override
+    public ByteBuffer getBuffer(int plane) {
+        return mPlanes[plane].getBuffer();
+    }
+
+    @Override
+    public int getRowStride(int plane) {
+        return mPlanes[plane].getRowStride();
+    }
+
+    @Override
+    public int getPixelStride(int plane) {
+        return mPlanes[plane].getPixelStride();
+    }
+
+    @Override
+    void onRelease() {
+        if (mRelease != null) {
+            mRelease.run();
+        } else {
+            mImage.close();
+        }
+        mImage = null;
+        mPlanes = null;
+        mRelease = null;
+    }
+
+    @Override
+    byte[] getData() {
+        // Only the luminance plane, including its row padding
+        final ByteBuffer buffer = mPlanes[0].getBuffer().duplicate();
+        final byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        return data;
+    }
+
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.cameraview;
+
+import android.annotation.TargetApi;
+import android.media.CamcorderProfile;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link VideoEncoder} on {@link MediaCodec}, fed through its input surface.
+ */
+@TargetApi(21)
+class MediaCodecVideoEncoder implements VideoEncoder<MediaFormat> {
+
+    /**
+     * {@code MediaFormat.KEY_MAX_B_FRAMES}, from API 29.
+     */
+    private static final String KEY_MAX_B_FRAMES = "max-bframes";
+
+    /**
+     * {@code MediaFormat.KEY_LATENCY}, from API 30.
+     */
+    private static final String KEY_LATENCY = "latency";
+
+    private final MediaCodec mCodec;
+
+    private final Surface mInputSurface;
+
+    /**
+     * Whether {@link #mInputSurface} is a persistent surface, which outlives the encoder.
+     */
+    private final boolean mPersistent;
+
+    private final Size mVideoSize;
+
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+
+    /**
+     * Creates and configures the encoder.
+     *
+     * @param options           The encoder settings.
+     * @param profile           The profile to take the settings left unset from.
+     * @param persistentSurface A surface from {@link MediaCodec#createPersistentInputSurface()}
+     *                          to take the frames from, or {@code null} for a surface of the
+     *                          encoder's own. Only from API 23.
+     * @throws IOException if the encoder cannot be created or does not support the settings.
+     */
+    @TargetApi(23)
+    MediaCodecVideoEncoder(VideoEncoderOptions options, CamcorderProfile profile,
+            Surface persistentSurface) throws IOException {
+        mVideoSize = getVideoSize(options, profile);
+        mCodec = MediaCodec.createEncoderByType(options.getMimeType());
+        try {
+            mCodec.configure(createFormat(options, profile), null, null,
+                    MediaCodec.CONFIGURE_FLAG_ENCODE);
+            if (persistentSurface != null) {
+                mCodec.setInputSurface(persistentSurface);
+                mInputSurface = persistentSurface;
+            } else {
+                mInputSurface = mCodec.createInputSurface();
+            }
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            mCodec.release();
+            throw new IOException("Failed to configure the video encoder.", e);
+        }
+        mPersistent = persistentSurface != null;
+    }
+
+    /**
+     * @return The size of the videos encoded with the {@code options}.
+     */
+    static Size getVideoSize(VideoEncoderOptions options, CamcorderProfile profile) {
+        final Size size = options.getVideoSize();
+        return size != null ? size
+                : new Size(profile.videoFrameWidth, profile.videoFrameHeight);
+    }
+
+    private MediaFormat createFormat(VideoEncoderOptions options, CamcorderProfile profile) {
+        final MediaFormat format = MediaFormat.createVideoFormat(options.getMimeType(),
+                mVideoSize.getWidth(), mVideoSize.getHeight());
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, options.getBitRate() > 0
+                ? options.getBitRate() : profile.videoBitRate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, options.getFrameRate() > 0
+                ? options.getFrameRate() : profile.videoFrameRate);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N_MR1) {
+            format.setFloat(MediaFormat.KEY_I_FRAME_INTERVAL, options.getKeyFrameInterval());
+        } else {
+            // Only whole seconds before API 25; 0 still makes every frame a key frame
+            final float interval = options.getKeyFrameInterval();
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL,
+                    interval > 0 ? Math.max(1, Math.round(interval)) : 0);
+        }
+        final MediaCodecInfo.EncoderCapabilities capabilities = mCodec.getCodecInfo()
+                .getCapabilitiesForType(options.getMimeType()).getEncoderCapabilities();
+        if (capabilities.isBitrateModeSupported(options.getBitrateMode())) {
+            format.setInteger(MediaFormat.KEY_BITRATE_MODE, options.getBitrateMode());
+        }
+        // Older encoders ignore the keys they do not know
+        format.setInteger(KEY_MAX_B_FRAMES, options.getMaxBFrames());
+        if (options.getLatency() > 0) {
+            format.setInteger(KEY_LATENCY, options.getLatency());
+        }
+        return format;
+    }
+
+    /**
+     * @return The surface for the camera to render the frames to encode into.
+     */
+    Surface getInputSurface() {
+        return mInputSurface;
+    }
+
+    Size getVideoSize() {
+        return mVideoSize;
+    }
+
+    @Override
+    public void start() {
+        mCodec.start();
+    }
+
+    @Override
+    public int dequeueOutputBuffer(EncodedSample sample, long timeoutUs) {
+        final int index = mCodec.dequeueOutputBuffer(mInfo, timeoutUs);
+        if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+            return INFO_OUTPUT_FORMAT_CHANGED;
+        }
+        if (index < 0) {
+            // Including INFO_OUTPUT_BUFFERS_CHANGED, which does not matter with getOutputBuffer
+            return INFO_TRY_AGAIN_LATER;
+        }
+        ByteBuffer buffer = null;
+        if (mInfo.size > 0) {
+            buffer = mCodec.getOutputBuffer(index);
+            buffer.limit(mInfo.offset + mInfo.size);
+            buffer.position(mInfo.offset);
+        }
+        sample.set(buffer, mInfo.presentationTimeUs, mInfo.flags);
+        return index;
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        return mCodec.getOutputFormat();
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index) {
+        mCodec.releaseOutputBuffer(index, false);
+    }
+
+    @Override
+    public void requestKeyFrame() {
+        final Bundle parameters = new Bundle();
+        parameters.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        mCodec.setParameters(parameters);
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        mCodec.signalEndOfInputStream();
+    }
+
+    @Override
+    public void release() {
+        try {
+            mCodec.stop();
+        } catch (IllegalStateException e) {
+            // Not started, or failed
+        }
+        mCodec.release();
+        if (!mPersistent) {
+            mInputSurface.release();
+        }
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.cameraview;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link SampleMuxer} writing MP4 files with {@link MediaMuxer}.
+ */
+@TargetApi(21)
+class MediaMuxerSampleMuxer implements SampleMuxer<MediaFormat> {
+
+    private final MediaMuxer mMuxer;
+
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+
+    /**
+     * @param path     The file to write.
+     * @param rotation The clockwise rotation to play the video with, in degrees.
+     */
+    MediaMuxerSampleMuxer(String path, int rotation) throws IOException {
+        mMuxer = new MediaMuxer(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        mMuxer.setOrientationHint(rotation);
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        return mMuxer.addTrack(format);
+    }
+
+    @Override
+    public void start() {
+        mMuxer.start();
+    }
+
+    @Override
+    public void writeSampleData(int track, EncodedSample sample) {
+        final ByteBuffer data = sample.getData();
+        mInfo.set(data.position(), data.remaining(), sample.getPresentationTimeUs(),
+                sample.getFlags());
+        mMuxer.writeSampleData(track, data, mInfo);
+    }
+
+    @Override
+    public void stop() throws IOException {
+        try {
+            mMuxer.stop();
+        } catch (IllegalStateException e) {
+            throw new IOException("Failed to finalize the video.", e);
+        }
+    }
+
+    @Override
+    public void release() {
+        try {
+            mMuxer.release();
+        } catch (IllegalStateException e) {
+            // Failed to stop
+        }
+    }
+
+}
@@ -31,16 +31,14 @@ class Camera2Api23 extends Camera2 {
 
     @Override
     protected void collectPictureSizes(SizeMap sizes, StreamConfigurationMap map) {
-        // Try to get hi-res output sizes
+        super.collectPictureSizes(sizes, map);
+        // Add the hi-res output sizes, so that they are preferred when no size is requested
         android.util.Size[] outputSizes = map.getHighResolutionOutputSizes(ImageFormat.JPEG);
         if (outputSizes != null) {
-            for (android.util.Size size : map.getHighResolutionOutputSizes(ImageFormat.JPEG)) {
+            for (android.util.Size size : outputSizes) {
                 sizes.add(new Size(size.getWidth(), size.getHeight()));
             }
         }
-        if (sizes.isEmpty()) {
-            super.collectPictureSizes(sizes, map);
-        }
     }
 
 }
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.cameraview;
+
+import android.graphics.Bitmap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Encodes the pictures as a {@link Bitmap.CompressFormat}, for instance WebP, rotated upright
+ * and optionally scaled down.
+ *
+ * <p>Scaling down is done while converting the frame to RGB, so a small picture for upload costs
+ * much less than a full resolution one.</p>
+ */
+public class BitmapEncoder implements PictureEncoder {
+
+    private final Bitmap.CompressFormat mFormat;
+
+    private final int mQuality;
+
+    private final int mMaxSize;
+
+    /**
+     * @param format  The format to encode the pictures to.
+     * @param quality The quality, from 0 to 100. Ignored by lossless formats.
+     * @param maxSize The maximum width and height of the pictures, in pixels, or 0 to keep the
+     *                full resolution.
+     */
+    public BitmapEncoder(Bitmap.CompressFormat format, int quality, int maxSize) {
+        if (format == null) {
+            throw new NullPointerException("format == null");
+        }
+        if (quality < 0 || quality > 100) {
+            throw new IllegalArgumentException("The quality must be between 0 and 100: "
+                    + quality);
+        }
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("The size must not be negative: " + maxSize);
+        }
+        mFormat = format;
+        mQuality = quality;
+        mMaxSize = maxSize;
+    }
+
+    @Override
+    public byte[] encode(Frame frame) throws IOException {
+        final int width = frame.getWidth();
+        final int height = frame.getHeight();
+        final int maxSize = mMaxSize > 0 ? mMaxSize : Integer.MAX_VALUE;
+        final int sampleSize = JpegThumbnail.calculateSampleSize(width, height, maxSize);
+        final int sampledWidth = width / sampleSize;
+        final int sampledHeight = height / sampleSize;
+        final int[] argb = new int[sampledWidth * sampledHeight];
+        toArgb(frame.pack(Constants.FRAME_FORMAT_NV21, null), width, height, sampleSize, argb);
+        Bitmap bitmap = Bitmap.createBitmap(argb, sampledWidth, sampledHeight,
+                Bitmap.Config.ARGB_8888);
+        bitmap = JpegThumbnail.transform(bitmap, frame.getOrientation(), maxSize);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(argb.length / 4);
+        try {
+            if (!bitmap.compress(mFormat, mQuality, out)) {
+                throw new IOException("Failed to encode the picture as " + mFormat + ".");
+            }
+        } finally {
+            bitmap.recycle();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Converts an NV21 image to ARGB with the full range BT.601 coefficients used by JPEG,
+     * keeping one pixel out of {@code sampleSize} in each direction.
+     *
+     * @param out Receives {@code (width / sampleSize) * (height / sampleSize)} pixels.
+     */
+    static void toArgb(byte[] nv21, int width, int height, int sampleSize, int[] out) {
+        final int outWidth = width / sampleSize;
+        final int outHeight = height / sampleSize;
+        final int chromaOffset = width * height;
+        final int chromaStride = 2 * ((width + 1) / 2);
+        int i = 0;
+        for (int outY = 0; outY < outHeight; outY++) {
+            final int y = outY * sampleSize;
+            final int lumaRow = y * width;
+            final int chromaRow = chromaOffset + (y / 2) * chromaStride;
+            for (int outX = 0; outX < outWidth; outX++) {
+                final int x = outX * sampleSize;
+                final int luma = nv21[lumaRow + x] & 0xff;
+                final int chroma = chromaRow + (x / 2) * 2;
+                final int v = (nv21[chroma] & 0xff) - 128;
+                final int u = (nv21[chroma + 1] & 0xff) - 128;
+                // Coefficients scaled by 1024
+                final int r = luma + ((1436 * v) >> 10);
+                final int g = luma - ((352 * u + 731 * v) >> 10);
+                final int b = luma + ((1815 * u) >> 10);
+                out[i++] = 0xff000000 | (clamp(r) << 16) | (clamp(g) << 8) | clamp(b);
+            }
+        }
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : value > 255 ? 255 : value;
+    }
+
+}
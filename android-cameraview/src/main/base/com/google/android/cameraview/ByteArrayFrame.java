@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.cameraview;
+
+import android.graphics.ImageFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link Frame} backed by a byte array in the NV21 layout.
+ */
+class ByteArrayFrame extends Frame {
+
+    private final byte[] mData;
+
+    private final ByteBuffer[] mPlanes;
+
+    private final int mRowStride;
+
+    /**
+     * @param data   The NV21 data. This is wrapped, not copied.
+     * @param width  The width of the frame, in pixels.
+     * @param height The height of the frame, in pixels.
+     */
+    ByteArrayFrame(byte[] data, int width, int height) {
+        mData = data;
+        mRowStride = width;
+        final int ySize = width * height;
+        final int vuSize = ySize / 2;
+        mPlanes = new ByteBuffer[]{
+                ByteBuffer.wrap(data, 0, ySize).slice(),
+                // NV21 interleaves V and U, starting with V
+                ByteBuffer.wrap(data, ySize + 1, vuSize - 1).slice(),
+                ByteBuffer.wrap(data, ySize, vuSize - 1).slice(),
+        };
+    }
+
+    @Override
+    public int getFormat() {
+        return ImageFormat.NV21;
+    }
+
+    @Override
+    public int getPlaneCount() {
+        return mPlanes.length;
+    }
+
+    @Override
+    public ByteBuffer getBuffer(int plane) {
+        return mPlanes[plane];
+    }
+
+    @Override
+    public int getRowStride(int plane) {
+        return mRowStride;
+    }
+
+    @Override
+    public int getPixelStride(int plane) {
+        return plane == 0 ? 1 : 2;
+    }
+
+    @Override
+    void onRelease() {
+    }
+
+    @Override
+    byte[] getData() {
+        return mData;
+    }
+
+}
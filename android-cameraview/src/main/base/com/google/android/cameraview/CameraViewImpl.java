@@ -16,10 +16,19 @@
 
 package com.google.android.cameraview;
 
+import android.graphics.Bitmap;
 import android.media.CamcorderProfile;
 import android.view.View;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 abstract class CameraViewImpl {
 
@@ -27,9 +36,82 @@ abstract class CameraViewImpl {
 
     protected final PreviewImpl mPreview;
 
-    CameraViewImpl(Callback callback, PreviewImpl preview) {
+    /**
+     * Drops scanning frames before they are delivered or copied.
+     */
+    protected final FrameRateLimiter mFrameRateLimiter = new FrameRateLimiter();
+
+    protected Size mScanningResolution;
+
+    protected int mScanningMaxPixels;
+
+    protected Size mPictureResolution;
+
+    protected int mPictureMaxPixels;
+
+    protected boolean mZeroShutterLag;
+
+    protected boolean mExifOrientation;
+
+    protected int mThumbnailSize;
+
+    protected boolean mFastCapture;
+
+    protected VideoEncoderOptions mVideoStandby;
+
+    protected boolean mSegmentedRecording;
+
+    protected PictureEncoder mPictureEncoder;
+
+    private static final int DEFAULT_JPEG_QUALITY = 95;
+
+    /**
+     * Encodes the pictures captured as frames when no encoder is set.
+     */
+    private final PictureEncoder mDefaultEncoder = new JpegEncoder(DEFAULT_JPEG_QUALITY);
+
+    private static Executor sEncoderExecutor;
+
+    /**
+     * The pictures requested and not yet delivered, saved or failed.
+     */
+    protected final CaptureQueue mCaptureQueue = new CaptureQueue(CaptureQueue.DEFAULT_CAPACITY);
+
+    /**
+     * Writes the pictures requested with {@link #takePicture(File)}.
+     */
+    private final PictureSaver mPictureSaver;
+
+    CameraViewImpl(final Callback callback, PreviewImpl preview) {
         mCallback = callback;
         mPreview = preview;
+        mPictureSaver = new PictureSaver(new PictureSaver.Listener() {
+            @Override
+            public void onPictureSaved(CaptureQueue.Request request, long elapsedMillis) {
+                callback.onPictureSaved(request.getFile(), elapsedMillis);
+                completeCapture(request);
+            }
+
+            @Override
+            public void onPictureSaveFailed(CaptureQueue.Request request, IOException cause) {
+                failCapture(request, cause);
+            }
+        });
+    }
+
+    private static synchronized Executor getEncoderExecutor() {
+        if (sEncoderExecutor == null) {
+            // A single thread keeps the pictures in the order they were taken
+            sEncoderExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "CameraViewEncoder");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sEncoderExecutor;
     }
 
     View getView() {
@@ -43,6 +125,18 @@ abstract class CameraViewImpl {
 
     abstract void stop();
 
+    /**
+     * Sets whether {@link #start()} opens and configures the camera on a background thread and
+     * reports the result to {@link Callback#onCameraOpened()} instead of blocking the caller.
+     * Implementations that always open the camera asynchronously ignore this.
+     */
+    void setAsyncStart(boolean async) {
+    }
+
+    boolean isAsyncStart() {
+        return false;
+    }
+
     abstract boolean isCameraOpened();
 
     abstract void setFacing(int facing);
@@ -66,11 +160,229 @@ abstract class CameraViewImpl {
 
     abstract int getFlash();
 
-    abstract void takePicture();
+    /**
+     * Takes a picture and delivers it to {@link Callback#onPictureTaken(byte[])}.
+     *
+     * @return The ID of the request, reported to {@link Callback#onCaptureCompleted(int)} or
+     * {@link Callback#onCaptureFailed(int, Throwable)}.
+     */
+    int takePicture() {
+        return takePicture(null);
+    }
+
+    /**
+     * Takes a picture and writes it to the {@code file} without copying it to the heap. The result
+     * is reported to {@link Callback#onPictureSaved(File, long)}.
+     *
+     * @param file The file, or {@code null} to deliver the picture instead.
+     * @return The ID of the request.
+     */
+    int takePicture(File file) {
+        final CaptureQueue.Request request = mCaptureQueue.create(file);
+        if (!mCaptureQueue.offer(request)) {
+            mCallback.onCaptureFailed(request.getId(),
+                    new IllegalStateException("The capture queue is full."));
+            return request.getId();
+        }
+        notifyCaptureQueueChanged();
+        startCapture();
+        return request.getId();
+    }
+
+    /**
+     * Takes {@code count} pictures as fast as possible, each delivered separately to
+     * {@link Callback#onPictureTaken(byte[])}.
+     *
+     * @return The ID of the first request; the others follow consecutively.
+     */
+    int takePictureBurst(int count) {
+        int firstId = -1;
+        for (int i = 0; i < count; i++) {
+            final CaptureQueue.Request request = mCaptureQueue.create(null);
+            if (firstId == -1) {
+                firstId = request.getId();
+            }
+            if (!mCaptureQueue.offer(request)) {
+                mCallback.onCaptureFailed(request.getId(),
+                        new IllegalStateException("The capture queue is full."));
+            }
+        }
+        notifyCaptureQueueChanged();
+        startBurst();
+        return firstId;
+    }
+
+    /**
+     * Starts capturing the pending requests of {@link #mCaptureQueue}, unless a capture is already
+     * in progress. Implementations take {@link CaptureQueue#nextPending()} requests for as long as
+     * there are any, and hand every picture to {@link #deliverPicture}.
+     */
+    abstract void startCapture();
+
+    /**
+     * Like {@link #startCapture()}, for requests queued by {@link #takePictureBurst(int)}.
+     * Implementations that can pipeline several captures override this.
+     */
+    void startBurst() {
+        startCapture();
+    }
+
+    void setCaptureQueueSize(int size) {
+        mCaptureQueue.setCapacity(size);
+    }
+
+    int getCaptureQueueSize() {
+        return mCaptureQueue.getCapacity();
+    }
+
+    int getCaptureQueueDepth() {
+        return mCaptureQueue.size();
+    }
+
+    /**
+     * Delivers or saves the picture taken for the {@code request}. Called on a camera thread.
+     * With thumbnails, the thumbnail is decoded and the picture handed over on the encoder thread.
+     *
+     * @param jpeg    The picture, from its position to its limit.
+     * @param release Run once {@code jpeg} is no longer needed, or {@code null}.
+     */
+    void deliverPicture(final CaptureQueue.Request request, final ByteBuffer jpeg,
+            final Runnable release) {
+        mCaptureQueue.captured(request);
+        if (mThumbnailSize <= 0) {
+            handOverPicture(request, jpeg, release);
+            return;
+        }
+        // Without an embedded thumbnail, the picture is decoded; the camera thread goes on
+        getEncoderExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                deliverThumbnail(jpeg);
+                handOverPicture(request, jpeg, release);
+            }
+        });
+    }
+
+    private void handOverPicture(CaptureQueue.Request request, ByteBuffer jpeg,
+            Runnable release) {
+        if (request.getFile() != null) {
+            mPictureSaver.save(jpeg, request, release);
+            return;
+        }
+        final byte[] data = new byte[jpeg.remaining()];
+        jpeg.get(data);
+        if (release != null) {
+            release.run();
+        }
+        mCallback.onPictureTaken(data);
+        completeCapture(request);
+    }
+
+    /**
+     * Encodes the {@code frame} taken for the {@code request} on the encoder thread, with the
+     * encoder set by {@link #setPictureEncoder(PictureEncoder)} or as JPEG, then delivers or saves
+     * it. The {@code frame} is closed once it is encoded.
+     */
+    void encodePicture(final CaptureQueue.Request request, final Frame frame) {
+        final PictureEncoder encoder = mPictureEncoder != null ? mPictureEncoder : mDefaultEncoder;
+        mCaptureQueue.captured(request);
+        getEncoderExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                final byte[] data;
+                try {
+                    data = encoder.encode(frame);
+                } catch (IOException e) {
+                    failCapture(request, e);
+                    return;
+                } catch (RuntimeException e) {
+                    // The camera was stopped and the frame released while it was being encoded
+                    failCapture(request, e);
+                    return;
+                } finally {
+                    frame.close();
+                }
+                if (data == null) {
+                    // Consumed by the encoder
+                    completeCapture(request);
+                    return;
+                }
+                deliverPicture(request, ByteBuffer.wrap(data), null);
+            }
+        });
+    }
+
+    private void completeCapture(CaptureQueue.Request request) {
+        if (mCaptureQueue.complete(request, System.nanoTime())) {
+            mCallback.onCaptureCompleted(request.getId());
+            notifyCaptureQueueChanged();
+        }
+    }
+
+    /**
+     * Removes the {@code request} from the queue and reports the {@code cause}.
+     */
+    void failCapture(CaptureQueue.Request request, Throwable cause) {
+        if (mCaptureQueue.remove(request)) {
+            mCallback.onCaptureFailed(request.getId(), cause);
+            notifyCaptureQueueChanged();
+        }
+    }
+
+    /**
+     * Fails all the queued requests whose picture is not captured yet, typically when the camera
+     * is stopped. The pictures already captured are still delivered or saved.
+     */
+    void cancelCaptures(Throwable cause) {
+        final List<CaptureQueue.Request> requests = mCaptureQueue.clear();
+        if (requests.isEmpty()) {
+            return;
+        }
+        for (CaptureQueue.Request request : requests) {
+            mCallback.onCaptureFailed(request.getId(), cause);
+        }
+        notifyCaptureQueueChanged();
+    }
+
+    private void notifyCaptureQueueChanged() {
+        mCallback.onCaptureQueueChanged(mCaptureQueue.size(), mCaptureQueue.getThroughput());
+    }
 
     abstract boolean record(String path, int maxDuration, int maxFileSize,
                             boolean recordAudio, CamcorderProfile profile);
 
+    /**
+     * Records with {@code MediaCodec} and {@code MediaMuxer} instead of {@code MediaRecorder}.
+     *
+     * @param maxDuration The maximum duration, in milliseconds, or -1.
+     * @param maxFileSize The maximum file size, in bytes, or -1.
+     * @return {@code false} if the recording did not start, or if the implementation cannot
+     * record this way.
+     */
+    boolean record(String path, VideoEncoderOptions options, int maxDuration, int maxFileSize) {
+        return false;
+    }
+
+    /**
+     * Encodes into a {@link SampleRing} until {@link #record(String, VideoEncoderOptions, int,
+     * int)} with equal options writes it out and goes on recording.
+     *
+     * @param maxDuration The duration of video to keep, in milliseconds.
+     * @param maxBytes    The maximum size of the video kept, in bytes.
+     * @return {@code false} if the pre-roll did not start, or if the implementation cannot
+     * pre-roll.
+     */
+    boolean startPreRoll(VideoEncoderOptions options, int maxDuration, int maxBytes) {
+        return false;
+    }
+
+    boolean isPreRolling() {
+        return false;
+    }
+
+    void stopPreRoll() {
+    }
+
     abstract boolean isRecording();
 
     abstract void stopRecording();
@@ -95,6 +407,210 @@ abstract class CameraViewImpl {
 
     abstract int getCurrentCameraId();
 
+    void setScanningFrameRate(int fps) {
+        mFrameRateLimiter.setFrameRate(fps);
+    }
+
+    int getScanningFrameRate() {
+        return mFrameRateLimiter.getFrameRate();
+    }
+
+    /**
+     * Requests a resolution for the scanning frames, independent of the preview resolution.
+     * Implementations that deliver the preview frames themselves ignore this.
+     *
+     * @param size The requested resolution, or {@code null} for the default.
+     */
+    void setScanningResolution(Size size) {
+        mScanningResolution = size;
+    }
+
+    Size getScanningResolution() {
+        return mScanningResolution;
+    }
+
+    /**
+     * Caps the number of pixels of the scanning frames. Ignored if a resolution is requested
+     * with {@link #setScanningResolution(Size)}.
+     *
+     * @param maxPixels The maximum number of pixels, or 0 for no limit.
+     */
+    void setScanningMaxPixels(int maxPixels) {
+        mScanningMaxPixels = maxPixels;
+    }
+
+    int getScanningMaxPixels() {
+        return mScanningMaxPixels;
+    }
+
+    /**
+     * Requests a resolution for the pictures, instead of the largest one of the aspect ratio.
+     *
+     * @param size The requested resolution, or {@code null} for the largest.
+     */
+    void setPictureResolution(Size size) {
+        mPictureResolution = size;
+    }
+
+    Size getPictureResolution() {
+        return mPictureResolution;
+    }
+
+    /**
+     * Caps the number of pixels of the pictures. Ignored if a resolution is requested with
+     * {@link #setPictureResolution(Size)}.
+     *
+     * @param maxPixels The maximum number of pixels, or 0 for no limit.
+     */
+    void setPictureMaxPixels(int maxPixels) {
+        mPictureMaxPixels = maxPixels;
+    }
+
+    int getPictureMaxPixels() {
+        return mPictureMaxPixels;
+    }
+
+    /**
+     * Chooses the size of the pictures among the {@code sizes} of the {@code ratio}: the one
+     * nearest to the requested resolution, the largest one within the pixel cap, or the largest
+     * one.
+     *
+     * @return The size, or {@code null} if there is no size of the {@code ratio}.
+     */
+    Size choosePictureSize(SizeMap sizes, AspectRatio ratio) {
+        final SortedSet<Size> candidates = sizes.sizes(ratio);
+        if (candidates == null || candidates.isEmpty()) {
+            return null;
+        }
+        if (mPictureResolution != null) {
+            return sizes.nearest(ratio,
+                    (long) mPictureResolution.getWidth() * mPictureResolution.getHeight());
+        }
+        if (mPictureMaxPixels > 0) {
+            return sizes.largestWithin(ratio, mPictureMaxPixels);
+        }
+        return candidates.last();
+    }
+
+    /**
+     * Sets whether {@link #takePicture()} encodes a recently streamed frame instead of capturing a
+     * new one. Implementations that cannot stream full resolution frames ignore this and always
+     * capture.
+     */
+    void setZeroShutterLag(boolean zeroShutterLag) {
+        mZeroShutterLag = zeroShutterLag;
+    }
+
+    boolean isZeroShutterLag() {
+        return mZeroShutterLag;
+    }
+
+    /**
+     * Sets whether pictures are captured unrotated, with their rotation written as an Exif
+     * orientation tag instead of applied by the camera.
+     */
+    void setExifOrientation(boolean exifOrientation) {
+        mExifOrientation = exifOrientation;
+    }
+
+    boolean isExifOrientation() {
+        return mExifOrientation;
+    }
+
+    /**
+     * Sets the size of the thumbnails delivered to {@link Callback#onThumbnailTaken(Bitmap)}
+     * before every picture. Implementations that can ask the camera to embed a thumbnail of about
+     * this size into the pictures do.
+     *
+     * @param maxSize The maximum width and height of the thumbnails, in pixels, or 0 for none.
+     */
+    void setThumbnailSize(int maxSize) {
+        mThumbnailSize = maxSize;
+    }
+
+    int getThumbnailSize() {
+        return mThumbnailSize;
+    }
+
+    /**
+     * Sets whether pictures are captured right away, without running the auto focus and auto
+     * exposure sequences, when the preview reports that both have already converged.
+     */
+    void setFastCapture(boolean fastCapture) {
+        mFastCapture = fastCapture;
+    }
+
+    boolean isFastCapture() {
+        return mFastCapture;
+    }
+
+    /**
+     * Sets the encoder settings to keep a recorder ready for in the capture session, so that
+     * recordings start and stop without reconfiguring the camera. Implementations that cannot do
+     * so ignore it.
+     *
+     * @param options The settings, or {@code null} to stop keeping a recorder ready.
+     */
+    void setVideoStandby(VideoEncoderOptions options) {
+        mVideoStandby = options;
+    }
+
+    VideoEncoderOptions getVideoStandby() {
+        return mVideoStandby;
+    }
+
+    /**
+     * Sets whether recordings roll over to a new file when they reach their maximum duration or
+     * file size, instead of stopping.
+     */
+    void setSegmentedRecording(boolean segmented) {
+        mSegmentedRecording = segmented;
+    }
+
+    boolean isSegmentedRecording() {
+        return mSegmentedRecording;
+    }
+
+    /**
+     * Sets the encoder of the pictures. Implementations that can capture YUV stills do so and
+     * encode them with it; the others ignore it and capture JPEG.
+     *
+     * @param encoder The encoder, or {@code null} to capture JPEG.
+     */
+    void setPictureEncoder(PictureEncoder encoder) {
+        mPictureEncoder = encoder;
+    }
+
+    PictureEncoder getPictureEncoder() {
+        return mPictureEncoder;
+    }
+
+    /**
+     * Delivers a thumbnail of the picture {@code jpeg}, if thumbnails are enabled. Called on the
+     * encoder thread before the picture itself is delivered or saved.
+     */
+    void deliverThumbnail(ByteBuffer jpeg) {
+        final int maxSize = mThumbnailSize;
+        if (maxSize <= 0) {
+            return;
+        }
+        final Bitmap thumbnail = JpegThumbnail.decode(jpeg, maxSize);
+        if (thumbnail != null) {
+            mCallback.onThumbnailTaken(thumbnail);
+        }
+    }
+
+    /**
+     * Keeps the preview frame {@code data} from being reused after
+     * {@link Callback#onFrameAvailable(Frame)} returns.
+     */
+    abstract void retainFrame(byte[] data);
+
+    /**
+     * Hands back the preview frame {@code data} previously kept by {@link #retainFrame(byte[])}.
+     */
+    abstract void releaseFrame(byte[] data);
+
     interface Callback {
 
         void onCameraOpened();
@@ -103,9 +619,24 @@ abstract class CameraViewImpl {
 
         void onPictureTaken(byte[] data);
 
+        void onPictureSaved(File file, long elapsedMillis);
+
+        void onThumbnailTaken(Bitmap thumbnail);
+
+        void onCaptureCompleted(int requestId);
+
+        void onCaptureFailed(int requestId, Throwable cause);
+
+        void onCaptureQueueChanged(int depth, float throughput);
+
         void onVideoRecorded(String path);
 
-        void onFramePreview(byte[] data, int width, int height, int orientation);
+        void onVideoSegmentRecorded(String path);
+
+        /**
+         * The {@code frame} is closed by the caller as soon as this method returns.
+         */
+        void onFrameAvailable(Frame frame);
 
         void onCameraError(Throwable cause);
     }
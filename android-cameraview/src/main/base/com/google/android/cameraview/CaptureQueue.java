@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.cameraview;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A bounded queue of picture requests.
+ *
+ * <p>Requests wait in the queue until the camera submits them, and stay there until their
+ * picture is captured or they fail. The queue also measures the capture throughput. All methods
+ * are thread-safe.</p>
+ */
+class CaptureQueue {
+
+    static final int DEFAULT_CAPACITY = 8;
+
+    /**
+     * The number of recent captures the throughput is measured over.
+     */
+    private static final int THROUGHPUT_WINDOW = 8;
+
+    private final ArrayList<Request> mRequests = new ArrayList<>();
+
+    private final long[] mCompletionTimes = new long[THROUGHPUT_WINDOW];
+
+    private int mCompletionCount;
+
+    private int mCapacity;
+
+    private int mNextId;
+
+    CaptureQueue(int capacity) {
+        mCapacity = capacity;
+    }
+
+    synchronized void setCapacity(int capacity) {
+        mCapacity = capacity;
+    }
+
+    synchronized int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Creates a request with a new ID, without queuing it.
+     *
+     * @param file The file to save the picture to, or {@code null} to deliver it.
+     */
+    synchronized Request create(File file) {
+        return new Request(mNextId++, file, System.nanoTime());
+    }
+
+    /**
+     * @return {@code false} if the queue is full and the {@code request} is not queued.
+     */
+    synchronized boolean offer(Request request) {
+        if (mRequests.size() >= mCapacity) {
+            return false;
+        }
+        mRequests.add(request);
+        return true;
+    }
+
+    /**
+     * Marks the oldest request that is not submitted yet as submitted.
+     *
+     * @return The request, or {@code null} if all the requests are submitted.
+     */
+    synchronized Request nextPending() {
+        for (int i = 0, count = mRequests.size(); i < count; i++) {
+            final Request request = mRequests.get(i);
+            if (!request.mSubmitted) {
+                request.mSubmitted = true;
+                return request;
+            }
+        }
+        return null;
+    }
+
+    synchronized boolean hasPending() {
+        for (int i = 0, count = mRequests.size(); i < count; i++) {
+            if (!mRequests.get(i).mSubmitted) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes the {@code request} once its picture is captured, and counts it in the throughput.
+     *
+     * @return {@code false} if the request is not in the queue.
+     */
+    synchronized boolean complete(Request request, long timeNanos) {
+        if (!mRequests.remove(request)) {
+            return false;
+        }
+        mCompletionTimes[mCompletionCount % THROUGHPUT_WINDOW] = timeNanos;
+        mCompletionCount++;
+        return true;
+    }
+
+    /**
+     * Removes the {@code request} without counting it in the throughput.
+     *
+     * @return {@code false} if the request is not in the queue.
+     */
+    synchronized boolean remove(Request request) {
+        return mRequests.remove(request);
+    }
+
+    /**
+     * @return The request with the {@code id}, or {@code null} if it is not in the queue.
+     */
+    synchronized Request find(int id) {
+        for (int i = 0, count = mRequests.size(); i < count; i++) {
+            final Request request = mRequests.get(i);
+            if (request.mId == id) {
+                return request;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The number of requests that are waiting or being captured.
+     */
+    synchronized int size() {
+        return mRequests.size();
+    }
+
+    /**
+     * @return The number of pictures captured per second over the last few captures, or 0 if
+     * fewer than two pictures were captured.
+     */
+    synchronized float getThroughput() {
+        final int count = Math.min(mCompletionCount, THROUGHPUT_WINDOW);
+        if (count < 2) {
+            return 0.f;
+        }
+        final long newest = mCompletionTimes[(mCompletionCount - 1) % THROUGHPUT_WINDOW];
+        final long oldest = mCompletionTimes[(mCompletionCount - count) % THROUGHPUT_WINDOW];
+        if (newest <= oldest) {
+            return 0.f;
+        }
+        return (count - 1) * 1e9f / (newest - oldest);
+    }
+
+    /**
+     * Marks the picture of the {@code request} as captured; it stays in the queue until it is
+     * delivered or saved.
+     */
+    synchronized void captured(Request request) {
+        request.mCaptured = true;
+    }
+
+    /**
+     * Removes all the requests whose picture is not captured yet.
+     *
+     * @return The removed requests, oldest first.
+     */
+    synchronized List<Request> clear() {
+        final List<Request> requests = new ArrayList<>();
+        for (Iterator<Request> i = mRequests.iterator(); i.hasNext(); ) {
+            final Request request = i.next();
+            if (!request.mCaptured) {
+                requests.add(request);
+                i.remove();
+            }
+        }
+        return requests;
+    }
+
+    static class Request {
+
+        private final int mId;
+
+        private final File mFile;
+
+        private final long mRequestTime;
+
+        private boolean mSubmitted;
+
+        private boolean mCaptured;
+
+        Request(int id, File file, long requestTime) {
+            mId = id;
+            mFile = file;
+            mRequestTime = requestTime;
+        }
+
+        int getId() {
+            return mId;
+        }
+
+        /**
+         * @return The file to save the picture to, or {@code null} to deliver it.
+         */
+        File getFile() {
+            return mFile;
+        }
+
+        /**
+         * @return The time the picture was requested, as {@link System#nanoTime()}.
+         */
+        long getRequestTime() {
+            return mRequestTime;
+        }
+
+    }
+
+}
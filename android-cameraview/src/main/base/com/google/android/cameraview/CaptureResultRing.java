@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.cameraview;
+
+/**
+ * Remembers the metadata of the most recent capture results by sensor timestamp, so that frames
+ * can be matched with their results without allocating.
+ *
+ * <p>All methods are thread-safe.</p>
+ */
+class CaptureResultRing {
+
+    private final long[] mTimestamps;
+
+    private final long[] mExposureTimes;
+
+    private final int[] mSensitivities;
+
+    private final int[] mFocusStates;
+
+    private final int[] mExposureStates;
+
+    private int mNext;
+
+    private int mCount;
+
+    /**
+     * @param capacity The number of results to remember.
+     */
+    CaptureResultRing(int capacity) {
+        mTimestamps = new long[capacity];
+        mExposureTimes = new long[capacity];
+        mSensitivities = new int[capacity];
+        mFocusStates = new int[capacity];
+        mExposureStates = new int[capacity];
+    }
+
+    /**
+     * Remembers a capture result, replacing the oldest one if full. Unknown values are
+     * {@link FrameMetadata#UNKNOWN}.
+     */
+    synchronized void put(long timestamp, long exposureTime, int sensitivity, int focusState,
+            int exposureState) {
+        mTimestamps[mNext] = timestamp;
+        mExposureTimes[mNext] = exposureTime;
+        mSensitivities[mNext] = sensitivity;
+        mFocusStates[mNext] = focusState;
+        mExposureStates[mNext] = exposureState;
+        mNext = (mNext + 1) % mTimestamps.length;
+        if (mCount < mTimestamps.length) {
+            mCount++;
+        }
+    }
+
+    /**
+     * Copies the result with the {@code timestamp} into {@code metadata}.
+     *
+     * @return {@code true} if the result was found.
+     */
+    synchronized boolean get(long timestamp, FrameMetadata metadata) {
+        final int capacity = mTimestamps.length;
+        // Most recent first
+        for (int i = 1; i <= mCount; i++) {
+            final int index = (mNext - i + capacity) % capacity;
+            if (mTimestamps[index] == timestamp) {
+                metadata.setCaptureResult(mExposureTimes[index], mSensitivities[index],
+                        mFocusStates[index], mExposureStates[index]);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized void clear() {
+        mNext = 0;
+        mCount = 0;
+    }
+
+}
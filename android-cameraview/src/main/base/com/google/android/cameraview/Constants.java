@@ -39,4 +39,13 @@ public interface Constants {
     int WB_FLUORESCENT = 4;
     int WB_INCANDESCENT = 5;
 
+    int BACKPRESSURE_NONE = 0;
+    int BACKPRESSURE_KEEP_LATEST = 1;
+    int BACKPRESSURE_DROP_WHILE_BUSY = 2;
+    int BACKPRESSURE_QUEUE = 3;
+
+    int FRAME_FORMAT_DEFAULT = 0;
+    int FRAME_FORMAT_NV21 = 1;
+    int FRAME_FORMAT_I420 = 2;
+
 }
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.cameraview;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An encoded video sample, as an access unit from the encoder to the muxer.
+ *
+ * <p>Samples are reused: the encoder overwrites the same sample for each buffer it dequeues, and
+ * its data is only valid until the buffer is released.</p>
+ */
+class EncodedSample {
+
+    /**
+     * The sample is a key frame. The same value as {@code MediaCodec.BUFFER_FLAG_KEY_FRAME}.
+     */
+    static final int FLAG_KEY_FRAME = 1;
+
+    /**
+     * The sample holds codec specific data instead of a frame. The same value as
+     * {@code MediaCodec.BUFFER_FLAG_CODEC_CONFIG}.
+     */
+    static final int FLAG_CODEC_CONFIG = 2;
+
+    /**
+     * The sample is the last one. The same value as {@code MediaCodec.BUFFER_FLAG_END_OF_STREAM}.
+     */
+    static final int FLAG_END_OF_STREAM = 4;
+
+    private ByteBuffer mData;
+
+    private long mPresentationTimeUs;
+
+    private int mFlags;
+
+    /**
+     * @param data The sample, from its position to its limit.
+     */
+    void set(ByteBuffer data, long presentationTimeUs, int flags) {
+        mData = data;
+        mPresentationTimeUs = presentationTimeUs;
+        mFlags = flags;
+    }
+
+    /**
+     * @return The sample, from its position to its limit, or {@code null} if there is none.
+     */
+    ByteBuffer getData() {
+        return mData;
+    }
+
+    int getSize() {
+        return mData == null ? 0 : mData.remaining();
+    }
+
+    long getPresentationTimeUs() {
+        return mPresentationTimeUs;
+    }
+
+    int getFlags() {
+        return mFlags;
+    }
+
+    boolean isKeyFrame() {
+        return (mFlags & FLAG_KEY_FRAME) != 0;
+    }
+
+    boolean isCodecConfig() {
+        return (mFlags & FLAG_CODEC_CONFIG) != 0;
+    }
+
+    boolean isEndOfStream() {
+        return (mFlags & FLAG_END_OF_STREAM) != 0;
+    }
+
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.cameraview;
+
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+
+/**
+ * Reads and writes the few Exif fields of a JPEG the library needs, without decoding or
+ * re-encoding the image.
+ *
+ * <p>The orientation tag in the Exif APP1 segment is patched in place. A JPEG without an Exif
+ * segment gets a minimal one holding only the orientation.</p>
+ */
+class Exif {
+
+    /**
+     * The values of the orientation tag, indexed by the clockwise rotation / 90.
+     */
+    private static final int[] ORIENTATIONS = {1, 6, 3, 8};
+
+    private static final int TAG_ORIENTATION = 0x0112;
+
+    private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+
+    private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+
+    private static final int TYPE_SHORT = 3;
+
+    private static final int TYPE_LONG = 4;
+
+    private static final int MARKER_SOI = 0xD8;
+
+    private static final int MARKER_APP1 = 0xE1;
+
+    private static final int MARKER_SOS = 0xDA;
+
+    private static final byte[] EXIF_HEADER = {'E', 'x', 'i', 'f', 0, 0};
+
+    /**
+     * The size of the segment written by {@link #insert(byte[], int)}: the marker, the length,
+     * the Exif header, the TIFF header, and an IFD with a single entry.
+     */
+    private static final int SEGMENT_SIZE = 2 + 2 + 6 + 8 + 2 + 12 + 4;
+
+    private Exif() {
+    }
+
+    /**
+     * @param degrees The clockwise rotation that makes the image upright; a multiple of 90.
+     * @return The value of the Exif orientation tag for the rotation.
+     */
+    static int toExifOrientation(int degrees) {
+        return ORIENTATIONS[((degrees % 360 + 360) % 360) / 90];
+    }
+
+    /**
+     * @return The clockwise rotation for the Exif {@code orientation}, or 0 for the mirrored and
+     * unknown orientations.
+     */
+    static int toDegrees(int orientation) {
+        for (int i = 0; i < ORIENTATIONS.length; i++) {
+            if (ORIENTATIONS[i] == orientation) {
+                return i * 90;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Sets the orientation of the {@code jpeg}.
+     *
+     * @param jpeg    The JPEG image.
+     * @param degrees The clockwise rotation that makes the image upright; a multiple of 90.
+     * @return Either {@code jpeg}, patched in place, or a copy with an Exif segment added.
+     */
+    static byte[] applyOrientation(byte[] jpeg, int degrees) {
+        if (!isJpeg(ByteBuffer.wrap(jpeg))) {
+            throw new IllegalArgumentException("Not a JPEG image.");
+        }
+        if (patchOrientation(jpeg, degrees)) {
+            return jpeg;
+        }
+        return insert(jpeg, degrees);
+    }
+
+    /**
+     * Sets the orientation of the {@code jpeg}, from its position to its limit. The position of
+     * the buffer is not changed.
+     *
+     * @return Either {@code jpeg}, patched in place, or a copy with an Exif segment added if the
+     * image has none or the buffer is read-only.
+     */
+    static ByteBuffer applyOrientation(ByteBuffer jpeg, int degrees) {
+        try {
+            if (patchOrientation(jpeg, degrees)) {
+                return jpeg;
+            }
+        } catch (ReadOnlyBufferException e) {
+            // Fall through and copy
+        }
+        final byte[] data = new byte[jpeg.remaining()];
+        jpeg.duplicate().get(data);
+        return ByteBuffer.wrap(applyOrientation(data, degrees));
+    }
+
+    /**
+     * Overwrites the orientation tag of the Exif segment of the {@code jpeg}.
+     *
+     * @return {@code false} if the image has no Exif segment with an orientation tag.
+     */
+    static boolean patchOrientation(byte[] jpeg, int degrees) {
+        return patchOrientation(ByteBuffer.wrap(jpeg), degrees);
+    }
+
+    /**
+     * Overwrites the orientation tag of the Exif segment of the {@code jpeg}, from its position
+     * to its limit. The position of the buffer is not changed.
+     *
+     * @return {@code false} if the image has no Exif segment with an orientation tag.
+     */
+    static boolean patchOrientation(ByteBuffer jpeg, int degrees) {
+        final Tiff tiff = Tiff.find(jpeg);
+        if (tiff == null) {
+            return false;
+        }
+        final int entry = tiff.findEntry(tiff.getFirstIfd(), TAG_ORIENTATION);
+        if (entry < 0 || tiff.readShort(entry + 2) != TYPE_SHORT) {
+            return false;
+        }
+        // A single SHORT is stored in the value field itself
+        tiff.writeShort(entry + 8, toExifOrientation(degrees));
+        return true;
+    }
+
+    /**
+     * @return The clockwise rotation that makes the {@code jpeg} upright, according to its
+     * orientation tag, or 0 if it has none.
+     */
+    static int getRotation(ByteBuffer jpeg) {
+        final Tiff tiff = Tiff.find(jpeg);
+        if (tiff == null) {
+            return 0;
+        }
+        final int entry = tiff.findEntry(tiff.getFirstIfd(), TAG_ORIENTATION);
+        if (entry < 0) {
+            return 0;
+        }
+        return toDegrees(tiff.readShort(entry + 8));
+    }
+
+    /**
+     * Locates the JPEG thumbnail embedded in the second IFD of the Exif segment.
+     *
+     * @param jpeg The JPEG image, from its position to its limit.
+     * @param out  Receives the index of the thumbnail in {@code jpeg} and its length, in bytes.
+     * @return {@code false} if the image has no thumbnail.
+     */
+    static boolean findThumbnail(ByteBuffer jpeg, int[] out) {
+        final Tiff tiff = Tiff.find(jpeg);
+        if (tiff == null) {
+            return false;
+        }
+        final int ifd = tiff.getNextIfd(tiff.getFirstIfd());
+        if (ifd < 0) {
+            return false;
+        }
+        final int offset = tiff.readValue(tiff.findEntry(ifd, TAG_THUMBNAIL_OFFSET));
+        final int length = tiff.readValue(tiff.findEntry(ifd, TAG_THUMBNAIL_LENGTH));
+        if (offset <= 0 || length <= 0 || tiff.mStart + offset + length > tiff.mEnd) {
+            return false;
+        }
+        out[0] = tiff.mStart + offset;
+        out[1] = length;
+        return true;
+    }
+
+    /**
+     * @return A copy of the {@code jpeg} with a minimal Exif segment right after the SOI marker.
+     */
+    private static byte[] insert(byte[] jpeg, int degrees) {
+        final byte[] out = new byte[jpeg.length + SEGMENT_SIZE];
+        final ByteBuffer buffer = ByteBuffer.wrap(out);
+        buffer.put((byte) 0xFF).put((byte) MARKER_SOI);
+        buffer.put((byte) 0xFF).put((byte) MARKER_APP1);
+        buffer.putShort((short) (SEGMENT_SIZE - 2));
+        buffer.put(EXIF_HEADER);
+        // TIFF header: big endian, IFD0 right after the header
+        buffer.put((byte) 'M').put((byte) 'M').putShort((short) 42).putInt(8);
+        buffer.putShort((short) 1);
+        buffer.putShort((short) TAG_ORIENTATION).putShort((short) TYPE_SHORT).putInt(1);
+        buffer.putShort((short) toExifOrientation(degrees)).putShort((short) 0);
+        // No next IFD
+        buffer.putInt(0);
+        buffer.put(jpeg, 2, jpeg.length - 2);
+        return out;
+    }
+
+    private static boolean isJpeg(ByteBuffer jpeg) {
+        final int start = jpeg.position();
+        return jpeg.remaining() >= 4 && (jpeg.get(start) & 0xFF) == 0xFF
+                && (jpeg.get(start + 1) & 0xFF) == MARKER_SOI;
+    }
+
+    /**
+     * The TIFF structure inside the Exif segment of a JPEG. All the indices are absolute in the
+     * buffer.
+     */
+    private static class Tiff {
+
+        final ByteBuffer mBuffer;
+
+        final int mStart;
+
+        final int mEnd;
+
+        final boolean mBigEndian;
+
+        private Tiff(ByteBuffer buffer, int start, int end, boolean bigEndian) {
+            mBuffer = buffer;
+            mStart = start;
+            mEnd = end;
+            mBigEndian = bigEndian;
+        }
+
+        /**
+         * @return The TIFF structure of the Exif segment of the {@code jpeg}, or {@code null} if
+         * it has none.
+         */
+        static Tiff find(ByteBuffer jpeg) {
+            if (!isJpeg(jpeg)) {
+                return null;
+            }
+            final int limit = jpeg.limit();
+            int offset = jpeg.position() + 2;
+            while (offset + 4 <= limit && (jpeg.get(offset) & 0xFF) == 0xFF) {
+                final int marker = jpeg.get(offset + 1) & 0xFF;
+                if (marker == MARKER_SOS) {
+                    break;
+                }
+                final int length = ((jpeg.get(offset + 2) & 0xFF) << 8)
+                        | (jpeg.get(offset + 3) & 0xFF);
+                final int data = offset + 4;
+                if (marker == MARKER_APP1 && isExifHeader(jpeg, data, limit)) {
+                    final int start = data + EXIF_HEADER.length;
+                    final int end = Math.min(offset + 2 + length, limit);
+                    if (start + 8 > end) {
+                        return null;
+                    }
+                    if (jpeg.get(start) == 'M' && jpeg.get(start + 1) == 'M') {
+                        return new Tiff(jpeg, start, end, true);
+                    } else if (jpeg.get(start) == 'I' && jpeg.get(start + 1) == 'I') {
+                        return new Tiff(jpeg, start, end, false);
+                    }
+                    return null;
+                }
+                offset += 2 + length;
+            }
+            return null;
+        }
+
+        private static boolean isExifHeader(ByteBuffer data, int offset, int limit) {
+            if (offset + EXIF_HEADER.length > limit) {
+                return false;
+            }
+            for (int i = 0; i < EXIF_HEADER.length; i++) {
+                if (data.get(offset + i) != EXIF_HEADER[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return The index of IFD0, or -1 if it is out of the segment.
+         */
+        int getFirstIfd() {
+            return toIndex(readInt(mStart + 4));
+        }
+
+        /**
+         * @return The index of the IFD following the one at {@code ifd}, or -1 if there is none.
+         */
+        int getNextIfd(int ifd) {
+            if (ifd < 0) {
+                return -1;
+            }
+            final int next = ifd + 2 + readShort(ifd) * 12;
+            if (next + 4 > mEnd) {
+                return -1;
+            }
+            final int offset = readInt(next);
+            return offset == 0 ? -1 : toIndex(offset);
+        }
+
+        /**
+         * @return The index of the entry for {@code tag} in the IFD at {@code ifd}, or -1.
+         */
+        int findEntry(int ifd, int tag) {
+            if (ifd < 0) {
+                return -1;
+            }
+            final int count = readShort(ifd);
+            for (int i = 0; i < count; i++) {
+                final int entry = ifd + 2 + i * 12;
+                if (entry + 12 > mEnd) {
+                    return -1;
+                }
+                if (readShort(entry) == tag) {
+                    return entry;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return The single SHORT or LONG value of the entry at {@code entry}, or -1.
+         */
+        int readValue(int entry) {
+            if (entry < 0) {
+                return -1;
+            }
+            final int type = readShort(entry + 2);
+            if (type == TYPE_SHORT) {
+                return readShort(entry + 8);
+            } else if (type == TYPE_LONG) {
+                return readInt(entry + 8);
+            }
+            return -1;
+        }
+
+        private int toIndex(int offset) {
+            final int index = mStart + offset;
+            return offset < 8 || index + 2 > mEnd ? -1 : index;
+        }
+
+        int readShort(int index) {
+            final int b0 = mBuffer.get(index) & 0xFF;
+            final int b1 = mBuffer.get(index + 1) & 0xFF;
+            return mBigEndian ? (b0 << 8) | b1 : (b1 << 8) | b0;
+        }
+
+        int readInt(int index) {
+            final int first = readShort(index);
+            final int second = readShort(index + 2);
+            return mBigEndian ? (first << 16) | second : (second << 16) | first;
+        }
+
+        void writeShort(int index, int value) {
+            if (mBigEndian) {
+                mBuffer.put(index, (byte) (value >> 8));
+                mBuffer.put(index + 1, (byte) value);
+            } else {
+                mBuffer.put(index, (byte) value);
+                mBuffer.put(index + 1, (byte) (value >> 8));
+            }
+        }
+
+    }
+
+}
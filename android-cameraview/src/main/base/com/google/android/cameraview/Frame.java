@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.cameraview;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+
+/**
+ * A preview frame in a YUV 4:2:0 layout, delivered to
+ * {@link CameraView.Callback#onFrameAvailable(CameraView, Frame)} without being copied.
+ *
+ * <p>Every plane is exposed as a {@link ByteBuffer} together with its row and pixel strides, in
+ * the same way as {@link android.media.Image}. Plane 0 is Y, plane 1 is U (Cb) and plane 2 is V
+ * (Cr).</p>
+ *
+ * <p>Frames are reference counted and recycled. A frame is only valid until it is closed; the
+ * camera closes it as soon as the callback returns. Call {@link #retain()} to keep the frame for
+ * longer, and {@link #close()} it once it is no longer needed.</p>
+ */
+public abstract class Frame implements Closeable {
+
+    private int mRefCount;
+
+    private boolean mIdle = true;
+
+    private int mWidth;
+
+    private int mHeight;
+
+    private int mOrientation;
+
+    private long mTimestamp;
+
+    private final FrameMetadata mMetadata = new FrameMetadata();
+
+    /**
+     * Packs this frame. It lives as long as the frame, which is recycled, so that packing only
+     * allocates the array when none is given.
+     */
+    private final YuvPacker mPacker = new YuvPacker();
+
+    /**
+     * Prepares this frame for delivery and resets its metadata. The caller owns the initial
+     * reference.
+     */
+    final synchronized void open(int width, int height, int orientation, long timestamp) {
+        mWidth = width;
+        mHeight = height;
+        mOrientation = orientation;
+        mTimestamp = timestamp;
+        mMetadata.reset();
+        mRefCount = 1;
+        mIdle = false;
+    }
+
+    /**
+     * @return The format of the frame, one of the {@link android.graphics.ImageFormat} constants.
+     */
+    public abstract int getFormat();
+
+    /**
+     * @return The width of the frame, in pixels.
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * @return The height of the frame, in pixels.
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return The display orientation when the frame was captured, in degrees.
+     */
+    public int getOrientation() {
+        return mOrientation;
+    }
+
+    /**
+     * @return The timestamp of the frame, in nanoseconds. On Camera2, this is the sensor
+     * timestamp of the matching capture result; on Camera1, the {@link System#nanoTime()} the
+     * frame was received at. Only the differences between timestamps are meaningful.
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * @return The capture information of the frame, such as its sequence number and exposure.
+     */
+    public FrameMetadata getMetadata() {
+        return mMetadata;
+    }
+
+    /**
+     * @return The number of planes in this frame.
+     */
+    public abstract int getPlaneCount();
+
+    /**
+     * Gets the pixel data of a plane. The buffer is shared with the other consumers of this
+     * frame; use absolute reads or {@link ByteBuffer#duplicate()} it before changing its position.
+     *
+     * @param plane The index of the plane.
+     * @return The pixel data of the plane.
+     */
+    public abstract ByteBuffer getBuffer(int plane);
+
+    /**
+     * @param plane The index of the plane.
+     * @return The distance between the start of two consecutive rows of pixels, in bytes.
+     */
+    public abstract int getRowStride(int plane);
+
+    /**
+     * @param plane The index of the plane.
+     * @return The distance between two consecutive pixels in a row, in bytes.
+     */
+    public abstract int getPixelStride(int plane);
+
+    /**
+     * Copies this frame into a tightly packed byte array, without any row or pixel padding.
+     *
+     * @param format {@link CameraView#FRAME_FORMAT_NV21} or {@link CameraView#FRAME_FORMAT_I420}.
+     * @param buffer An array to reuse, or {@code null}. It is only reused if its length is
+     *               exactly the packed size, {@code width * height * 3 / 2} for even sizes.
+     * @return The packed frame; either {@code buffer} or a new array.
+     */
+    public byte[] pack(int format, byte[] buffer) {
+        synchronized (mPacker) {
+            return mPacker.pack(this, format, buffer);
+        }
+    }
+
+    /**
+     * Keeps this frame valid after the callback returns. Each call must be balanced by a call to
+     * {@link #close()}.
+     *
+     * @return This frame.
+     * @throws IllegalStateException if the frame is already closed.
+     */
+    public synchronized Frame retain() {
+        if (mRefCount <= 0) {
+            throw new IllegalStateException("The frame is already closed.");
+        }
+        mRefCount++;
+        return this;
+    }
+
+    /**
+     * Releases a reference to this frame. The frame is recycled once all the references are
+     * released, and must not be used anymore.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (mRefCount <= 0 || --mRefCount > 0) {
+                return;
+            }
+        }
+        onRelease();
+        synchronized (this) {
+            mIdle = true;
+        }
+    }
+
+    /**
+     * @return {@code true} if this frame is closed and can be opened again.
+     */
+    synchronized boolean isIdle() {
+        return mIdle;
+    }
+
+    /**
+     * Called when the last reference to this frame is released.
+     */
+    abstract void onRelease();
+
+    /**
+     * @return The frame as a byte array, as delivered to
+     * {@link CameraView.Callback#onFramePreview(CameraView, byte[], int, int, int)}. This may copy
+     * the pixel data.
+     */
+    abstract byte[] getData();
+
+}
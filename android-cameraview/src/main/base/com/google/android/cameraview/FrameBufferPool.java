@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.cameraview;
+
+import java.util.ArrayList;
+
+/**
+ * A bounded pool of equally sized byte arrays used as preview frame buffers.
+ *
+ * <p>The pool only allocates up to its capacity, and remembers which buffers it allocated since
+ * the last reset. All methods are thread-safe.</p>
+ */
+class FrameBufferPool {
+
+    private final int mCapacity;
+
+    private final ArrayList<byte[]> mBuffers;
+
+    private int mBufferSize;
+
+    /**
+     * @param capacity The maximum number of buffers this pool allocates.
+     */
+    FrameBufferPool(int capacity) {
+        mCapacity = capacity;
+        mBuffers = new ArrayList<>(capacity);
+    }
+
+    /**
+     * Drops all the buffers and starts allocating buffers of the new size.
+     *
+     * @param bufferSize The size of the buffers, in bytes.
+     */
+    synchronized void reset(int bufferSize) {
+        mBuffers.clear();
+        mBufferSize = bufferSize;
+    }
+
+    /**
+     * Drops all the buffers.
+     */
+    synchronized void clear() {
+        reset(0);
+    }
+
+    /**
+     * Allocates a new buffer.
+     *
+     * @return A new buffer, or {@code null} if the pool has already allocated all of its buffers.
+     */
+    synchronized byte[] obtain() {
+        if (mBufferSize <= 0 || mBuffers.size() >= mCapacity) {
+            return null;
+        }
+        final byte[] buffer = new byte[mBufferSize];
+        mBuffers.add(buffer);
+        return buffer;
+    }
+
+    /**
+     * @return {@code true} if the {@code buffer} was allocated by this pool since the last reset.
+     */
+    synchronized boolean owns(byte[] buffer) {
+        for (int i = 0, count = mBuffers.size(); i < count; i++) {
+            if (mBuffers.get(i) == buffer) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized int getBufferSize() {
+        return mBufferSize;
+    }
+
+    int getCapacity() {
+        return mCapacity;
+    }
+
+}
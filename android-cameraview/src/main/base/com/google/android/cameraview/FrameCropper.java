@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.cameraview;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Crops a region of interest out of YUV 4:2:0 frames and downscales it, writing the result into
+ * pooled NV21 frames.
+ *
+ * <p>The region is given as fractions of the frame size, and is rounded to even pixels so that
+ * chroma samples stay aligned. Downscaling samples the nearest pixel, which is enough for
+ * detectors and avoids any per-frame allocation. {@link #crop(Frame)} must not be called from
+ * several threads at once; the other methods are thread-safe.</p>
+ */
+class FrameCropper {
+
+    /**
+     * The maximum number of cropped frames in use at the same time.
+     */
+    private static final int MAX_FRAMES = 4;
+
+    private float mLeft = 0.f;
+
+    private float mTop = 0.f;
+
+    private float mRight = 1.f;
+
+    private float mBottom = 1.f;
+
+    private int mMaxWidth;
+
+    private final ArrayList<CroppedFrame> mFrames = new ArrayList<>(MAX_FRAMES);
+
+    private byte[] mRow;
+
+    /**
+     * The source column of every output column, relative to {@link #mColumnsLeft}.
+     */
+    private int[] mColumns;
+
+    private int mColumnsLeft;
+
+    private int mColumnsWidth;
+
+    /**
+     * Sets the region to keep, as fractions of the frame width and height.
+     */
+    synchronized void setRegion(float left, float top, float right, float bottom) {
+        if (left < 0.f || top < 0.f || right > 1.f || bottom > 1.f
+                || left >= right || top >= bottom) {
+            throw new IllegalArgumentException("Invalid region: " + left + ", " + top + ", "
+                    + right + ", " + bottom);
+        }
+        mLeft = left;
+        mTop = top;
+        mRight = right;
+        mBottom = bottom;
+    }
+
+    /**
+     * @return The region as {@code {left, top, right, bottom}} fractions.
+     */
+    synchronized float[] getRegion() {
+        return new float[]{mLeft, mTop, mRight, mBottom};
+    }
+
+    /**
+     * @param maxWidth The maximum width of the cropped frames, in pixels, or 0 to keep the
+     *                 resolution of the camera.
+     */
+    synchronized void setMaxWidth(int maxWidth) {
+        if (maxWidth < 0) {
+            throw new IllegalArgumentException("The width must not be negative: " + maxWidth);
+        }
+        mMaxWidth = maxWidth;
+    }
+
+    synchronized int getMaxWidth() {
+        return mMaxWidth;
+    }
+
+    /**
+     * @return {@code true} if frames are cropped or downscaled.
+     */
+    synchronized boolean isEnabled() {
+        return mMaxWidth > 0 || mLeft > 0.f || mTop > 0.f || mRight < 1.f || mBottom < 1.f;
+    }
+
+    /**
+     * Crops and downscales the {@code source} frame.
+     *
+     * @return A new open frame that the caller must close, or {@code null} if all the pooled
+     * frames are still in use.
+     */
+    Frame crop(Frame source) {
+        final int width = source.getWidth();
+        final int height = source.getHeight();
+        final int cropLeft;
+        final int cropTop;
+        final int cropWidth;
+        final int cropHeight;
+        final int maxWidth;
+        synchronized (this) {
+            final int left = even(mLeft * width);
+            final int top = even(mTop * height);
+            // At least 2 pixels for the chroma, moved back inside the frame if needed
+            cropWidth = Math.min(width & ~1, Math.max(2, even(mRight * width) - left));
+            cropHeight = Math.min(height & ~1, Math.max(2, even(mBottom * height) - top));
+            cropLeft = Math.min(left, (width & ~1) - cropWidth);
+            cropTop = Math.min(top, (height & ~1) - cropHeight);
+            maxWidth = mMaxWidth;
+        }
+        int outWidth = cropWidth;
+        int outHeight = cropHeight;
+        if (maxWidth > 0 && cropWidth > maxWidth) {
+            outWidth = Math.max(2, even(maxWidth));
+            outHeight = Math.max(2, even((float) cropHeight * outWidth / cropWidth));
+        }
+        final CroppedFrame frame = obtainFrame(outWidth, outHeight);
+        if (frame == null) {
+            return null;
+        }
+        final byte[] out = frame.getData();
+        // Luminance
+        prepareColumns(cropLeft, cropWidth, outWidth);
+        copyPlane(source, 0, cropTop, cropHeight, outWidth, outHeight, out, 0, 1);
+        // Chroma, interleaved as V then U
+        final int ySize = outWidth * outHeight;
+        prepareColumns(cropLeft / 2, cropWidth / 2, outWidth / 2);
+        copyPlane(source, 2, cropTop / 2, cropHeight / 2, outWidth / 2, outHeight / 2,
+                out, ySize, 2);
+        copyPlane(source, 1, cropTop / 2, cropHeight / 2, outWidth / 2, outHeight / 2,
+                out, ySize + 1, 2);
+        frame.open(outWidth, outHeight, source.getOrientation(), source.getTimestamp());
+        frame.getMetadata().set(source.getMetadata());
+        return frame;
+    }
+
+    private static int even(float value) {
+        return Math.round(value) & ~1;
+    }
+
+    /**
+     * Maps every output column to a source column.
+     */
+    private void prepareColumns(int left, int width, int outWidth) {
+        if (mColumns == null || mColumns.length < outWidth) {
+            mColumns = new int[outWidth];
+        }
+        for (int x = 0; x < outWidth; x++) {
+            mColumns[x] = (int) ((long) x * width / outWidth);
+        }
+        mColumnsLeft = left;
+        mColumnsWidth = width;
+    }
+
+    private void copyPlane(Frame source, int plane, int top, int height, int outWidth,
+            int outHeight, byte[] out, int offset, int outPixelStride) {
+        final ByteBuffer buffer = source.getBuffer(plane).duplicate();
+        final int start = buffer.position();
+        final int rowStride = source.getRowStride(plane);
+        final int pixelStride = source.getPixelStride(plane);
+        final int rowLength = (mColumnsWidth - 1) * pixelStride + 1;
+        if (mRow == null || mRow.length < rowLength) {
+            mRow = new byte[rowLength];
+        }
+        final byte[] row = mRow;
+        final int[] columns = mColumns;
+        int o = offset;
+        for (int y = 0; y < outHeight; y++) {
+            final int sourceY = top + (int) ((long) y * height / outHeight);
+            buffer.position(start + sourceY * rowStride + mColumnsLeft * pixelStride);
+            buffer.get(row, 0, rowLength);
+            for (int x = 0; x < outWidth; x++) {
+                out[o] = row[columns[x] * pixelStride];
+                o += outPixelStride;
+            }
+        }
+    }
+
+    private CroppedFrame obtainFrame(int width, int height) {
+        synchronized (mFrames) {
+            for (int i = mFrames.size() - 1; i >= 0; i--) {
+                final CroppedFrame frame = mFrames.get(i);
+                if (!frame.isIdle()) {
+                    continue;
+                }
+                if (frame.mWidth == width && frame.mHeight == height) {
+                    return frame;
+                }
+                // The size changed; drop the old frame
+                mFrames.remove(i);
+            }
+            if (mFrames.size() >= MAX_FRAMES) {
+                return null;
+            }
+            final CroppedFrame frame = new CroppedFrame(width, height);
+            mFrames.add(frame);
+            return frame;
+        }
+    }
+
+    private static class CroppedFrame extends ByteArrayFrame {
+
+        final int mWidth;
+
+        final int mHeight;
+
+        CroppedFrame(int width, int height) {
+            super(new byte[YuvPacker.getPackedSize(width, height)], width, height);
+            mWidth = width;
+            mHeight = height;
+        }
+
+    }
+
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.cameraview;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Hands frames over to a consumer on an {@link Executor}, dropping frames according to a
+ * backpressure strategy when the consumer is slower than the camera.
+ *
+ * <p>Frames waiting for the consumer are retained, and closed once consumed or dropped. The
+ * consumer receives the frames one at a time, in order.</p>
+ */
+class FrameDispatcher {
+
+    interface Consumer {
+
+        void onFrame(Frame frame);
+
+    }
+
+    private final Consumer mConsumer;
+
+    private final ArrayDeque<Frame> mPending = new ArrayDeque<>();
+
+    private int mStrategy = Constants.BACKPRESSURE_NONE;
+
+    private int mQueueSize = 1;
+
+    private Executor mExecutor;
+
+    /**
+     * Whether a drain of {@link #mPending} is scheduled or running.
+     */
+    private boolean mRunning;
+
+    private long mDeliveredCount;
+
+    private long mDroppedCount;
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    FrameDispatcher(Consumer consumer) {
+        mConsumer = consumer;
+    }
+
+    /**
+     * @param strategy  One of the {@code BACKPRESSURE_} constants in {@link Constants}.
+     * @param queueSize The maximum number of frames waiting for the consumer with
+     *                  {@link Constants#BACKPRESSURE_QUEUE}.
+     */
+    synchronized void setStrategy(int strategy, int queueSize) {
+        if (queueSize < 1) {
+            throw new IllegalArgumentException("The queue size must be positive: " + queueSize);
+        }
+        mStrategy = strategy;
+        mQueueSize = queueSize;
+    }
+
+    synchronized int getStrategy() {
+        return mStrategy;
+    }
+
+    synchronized int getQueueSize() {
+        return mQueueSize;
+    }
+
+    /**
+     * @param executor The executor to run the consumer on, or {@code null} to run it on the
+     *                 thread calling {@link #dispatch(Frame)}.
+     */
+    synchronized void setExecutor(Executor executor) {
+        mExecutor = executor;
+    }
+
+    synchronized Executor getExecutor() {
+        return mExecutor;
+    }
+
+    /**
+     * Queues the {@code frame} for the consumer, or drops it. The caller keeps its own reference
+     * to the frame.
+     */
+    void dispatch(Frame frame) {
+        Frame replaced = null;
+        final Executor executor;
+        final boolean schedule;
+        synchronized (this) {
+            switch (mStrategy) {
+                case Constants.BACKPRESSURE_DROP_WHILE_BUSY:
+                    if (mRunning) {
+                        mDroppedCount++;
+                        return;
+                    }
+                    break;
+                case Constants.BACKPRESSURE_KEEP_LATEST:
+                    replaced = mPending.poll();
+                    if (replaced != null) {
+                        mDroppedCount++;
+                    }
+                    break;
+                case Constants.BACKPRESSURE_QUEUE:
+                    if (mPending.size() >= mQueueSize) {
+                        mDroppedCount++;
+                        return;
+                    }
+                    break;
+            }
+            mPending.add(frame.retain());
+            if (mRunning) {
+                // The running drain picks the frame up
+                executor = null;
+                schedule = false;
+            } else {
+                mRunning = true;
+                executor = mExecutor;
+                schedule = true;
+            }
+        }
+        if (replaced != null) {
+            replaced.close();
+        }
+        if (!schedule) {
+            return;
+        }
+        if (executor == null) {
+            drain();
+            return;
+        }
+        try {
+            executor.execute(mDrain);
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                mRunning = false;
+            }
+            clear();
+        }
+    }
+
+    /**
+     * Drops all the frames waiting for the consumer.
+     */
+    void clear() {
+        while (true) {
+            final Frame frame;
+            synchronized (this) {
+                frame = mPending.poll();
+                if (frame == null) {
+                    return;
+                }
+                mDroppedCount++;
+            }
+            frame.close();
+        }
+    }
+
+    /**
+     * Counts a frame that was dropped before reaching this dispatcher.
+     */
+    synchronized void countDropped() {
+        mDroppedCount++;
+    }
+
+    synchronized long getDeliveredCount() {
+        return mDeliveredCount;
+    }
+
+    synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    synchronized void resetCounts() {
+        mDeliveredCount = 0;
+        mDroppedCount = 0;
+    }
+
+    private void drain() {
+        while (true) {
+            final Frame frame;
+            synchronized (this) {
+                frame = mPending.poll();
+                if (frame == null) {
+                    mRunning = false;
+                    return;
+                }
+            }
+            boolean delivered = false;
+            try {
+                mConsumer.onFrame(frame);
+                delivered = true;
+            } finally {
+                frame.close();
+                synchronized (this) {
+                    if (delivered) {
+                        mDeliveredCount++;
+                    } else {
+                        // Let the next frame schedule a new drain
+                        mRunning = false;
+                    }
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.cameraview;
+
+/**
+ * Capture information of a {@link Frame}.
+ *
+ * <p>Every frame owns one instance, which is reused together with the frame; it is only valid
+ * while the frame is open. Values the camera does not report are {@link #UNKNOWN}.</p>
+ */
+public final class FrameMetadata {
+
+    /**
+     * The value of the fields the camera does not report.
+     */
+    public static final int UNKNOWN = -1;
+
+    private long mSequenceNumber;
+
+    private long mExposureTime;
+
+    private int mSensitivity;
+
+    private int mFocusState;
+
+    private int mExposureState;
+
+    FrameMetadata() {
+        reset();
+    }
+
+    /**
+     * @return The number of the frame since the camera session started, counting from 0. Frames
+     * skipped before delivery still take a number, so gaps reveal dropped frames.
+     */
+    public long getSequenceNumber() {
+        return mSequenceNumber;
+    }
+
+    /**
+     * @return The exposure time of the frame, in nanoseconds, or {@link #UNKNOWN}.
+     */
+    public long getExposureTime() {
+        return mExposureTime;
+    }
+
+    /**
+     * @return The sensitivity of the sensor for the frame, in ISO, or {@link #UNKNOWN}.
+     */
+    public int getSensitivity() {
+        return mSensitivity;
+    }
+
+    /**
+     * @return The auto focus state for the frame, one of the
+     * {@code android.hardware.camera2.CaptureResult.CONTROL_AF_STATE_} constants, or
+     * {@link #UNKNOWN}.
+     */
+    public int getFocusState() {
+        return mFocusState;
+    }
+
+    /**
+     * @return The auto exposure state for the frame, one of the
+     * {@code android.hardware.camera2.CaptureResult.CONTROL_AE_STATE_} constants, or
+     * {@link #UNKNOWN}.
+     */
+    public int getExposureState() {
+        return mExposureState;
+    }
+
+    void reset() {
+        mSequenceNumber = 0;
+        mExposureTime = UNKNOWN;
+        mSensitivity = UNKNOWN;
+        mFocusState = UNKNOWN;
+        mExposureState = UNKNOWN;
+    }
+
+    void set(FrameMetadata other) {
+        mSequenceNumber = other.mSequenceNumber;
+        mExposureTime = other.mExposureTime;
+        mSensitivity = other.mSensitivity;
+        mFocusState = other.mFocusState;
+        mExposureState = other.mExposureState;
+    }
+
+    void setSequenceNumber(long sequenceNumber) {
+        mSequenceNumber = sequenceNumber;
+    }
+
+    void setCaptureResult(long exposureTime, int sensitivity, int focusState,
+            int exposureState) {
+        mExposureTime = exposureTime;
+        mSensitivity = sensitivity;
+        mFocusState = focusState;
+        mExposureState = exposureState;
+    }
+
+}
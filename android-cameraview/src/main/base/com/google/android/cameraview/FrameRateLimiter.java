@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.cameraview;
+
+/**
+ * Decides which frames to keep so that frames are delivered at a target rate, independently of
+ * the rate of the camera.
+ *
+ * <p>Frames are accepted on a fixed schedule rather than a minimum interval, so that the average
+ * rate matches the target even when it is not a divisor of the camera rate. All methods are
+ * thread-safe.</p>
+ */
+class FrameRateLimiter {
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private int mFrameRate;
+
+    private long mInterval;
+
+    private boolean mStarted;
+
+    private long mNextFrame;
+
+    /**
+     * @param fps The target rate, in frames per second, or 0 to accept every frame.
+     */
+    synchronized void setFrameRate(int fps) {
+        if (fps < 0) {
+            throw new IllegalArgumentException("The frame rate must not be negative: " + fps);
+        }
+        mFrameRate = fps;
+        mInterval = fps > 0 ? NANOS_PER_SECOND / fps : 0;
+        mStarted = false;
+    }
+
+    synchronized int getFrameRate() {
+        return mFrameRate;
+    }
+
+    /**
+     * @return {@code true} if frames are dropped to meet a target rate.
+     */
+    synchronized boolean isLimited() {
+        return mInterval > 0;
+    }
+
+    /**
+     * @param timestamp The timestamp of the frame, in nanoseconds.
+     * @return {@code true} if the frame should be delivered.
+     */
+    synchronized boolean accept(long timestamp) {
+        if (mInterval <= 0) {
+            return true;
+        }
+        if (!mStarted) {
+            mStarted = true;
+            mNextFrame = timestamp + mInterval;
+            return true;
+        }
+        if (timestamp < mNextFrame) {
+            return false;
+        }
+        // Resynchronize after a pause instead of delivering a burst of frames
+        mNextFrame = timestamp - mNextFrame >= mInterval
+                ? timestamp + mInterval : mNextFrame + mInterval;
+        return true;
+    }
+
+    /**
+     * @param timestamp The current time, in the same time base as the frame timestamps.
+     * @return The time until the next frame is accepted, in nanoseconds.
+     */
+    synchronized long getDelay(long timestamp) {
+        if (mInterval <= 0 || !mStarted) {
+            return 0;
+        }
+        return Math.max(0, mNextFrame - timestamp);
+    }
+
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.cameraview;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Encodes the pictures as JPEG with {@link YuvImage}, and writes their orientation as an Exif
+ * tag instead of rotating the pixels.
+ */
+public class JpegEncoder implements PictureEncoder {
+
+    private final int mQuality;
+
+    /**
+     * @param quality The JPEG quality, from 0 to 100.
+     */
+    public JpegEncoder(int quality) {
+        if (quality < 0 || quality > 100) {
+            throw new IllegalArgumentException("The quality must be between 0 and 100: "
+                    + quality);
+        }
+        mQuality = quality;
+    }
+
+    public int getQuality() {
+        return mQuality;
+    }
+
+    @Override
+    public byte[] encode(Frame frame) throws IOException {
+        final int width = frame.getWidth();
+        final int height = frame.getHeight();
+        final byte[] nv21 = frame.pack(Constants.FRAME_FORMAT_NV21, null);
+        final YuvImage image = new YuvImage(nv21, ImageFormat.NV21, width, height, null);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(nv21.length / 4);
+        if (!image.compressToJpeg(new Rect(0, 0, width, height), mQuality, out)) {
+            throw new IOException("Failed to encode the picture.");
+        }
+        return Exif.applyOrientation(out.toByteArray(), frame.getOrientation());
+    }
+
+}
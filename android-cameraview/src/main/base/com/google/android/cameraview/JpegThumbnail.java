@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.cameraview;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+
+import java.nio.ByteBuffer;
+import java.util.SortedSet;
+
+/**
+ * Makes small upright thumbnails of JPEG pictures without decoding them at full resolution.
+ *
+ * <p>The thumbnail the camera embeds in the Exif segment is used when there is one. Otherwise the
+ * picture is decoded with the largest sample size that keeps it at least as large as requested.
+ * </p>
+ */
+class JpegThumbnail {
+
+    private JpegThumbnail() {
+    }
+
+    /**
+     * @param jpeg    The picture, from its position to its limit. The position is not changed.
+     * @param maxSize The maximum width and height of the thumbnail, in pixels.
+     * @return The thumbnail, rotated upright, or {@code null} if the picture cannot be decoded.
+     */
+    static Bitmap decode(ByteBuffer jpeg, int maxSize) {
+        final int rotation = Exif.getRotation(jpeg);
+        final int[] range = new int[2];
+        final Bitmap bitmap;
+        if (Exif.findThumbnail(jpeg, range)) {
+            // A few kilobytes at most
+            final byte[] data = new byte[range[1]];
+            final ByteBuffer thumbnail = jpeg.duplicate();
+            thumbnail.position(range[0]);
+            thumbnail.get(data);
+            bitmap = decodeSampled(data, 0, data.length, maxSize);
+        } else if (jpeg.hasArray()) {
+            bitmap = decodeSampled(jpeg.array(), jpeg.arrayOffset() + jpeg.position(),
+                    jpeg.remaining(), maxSize);
+        } else {
+            final byte[] data = new byte[jpeg.remaining()];
+            jpeg.duplicate().get(data);
+            bitmap = decodeSampled(data, 0, data.length, maxSize);
+        }
+        if (bitmap == null) {
+            return null;
+        }
+        return transform(bitmap, rotation, maxSize);
+    }
+
+    private static Bitmap decodeSampled(byte[] data, int offset, int length, int maxSize) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, offset, length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = calculateSampleSize(options.outWidth, options.outHeight, maxSize);
+        return BitmapFactory.decodeByteArray(data, offset, length, options);
+    }
+
+    /**
+     * Scales the {@code bitmap} down to fit {@code maxSize} and rotates it upright.
+     */
+    static Bitmap transform(Bitmap bitmap, int rotation, int maxSize) {
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        final float scale = Math.min(1.f, (float) maxSize / Math.max(width, height));
+        if (scale == 1.f && rotation == 0) {
+            return bitmap;
+        }
+        final Matrix matrix = new Matrix();
+        matrix.postScale(scale, scale);
+        matrix.postRotate(rotation);
+        final Bitmap transformed = Bitmap.createBitmap(bitmap, 0, 0, width, height, matrix, true);
+        if (transformed != bitmap) {
+            bitmap.recycle();
+        }
+        return transformed;
+    }
+
+    /**
+     * @return The largest power of two to divide both sides of the picture by, so that its longer
+     * side stays at least {@code maxSize}.
+     */
+    static int calculateSampleSize(int width, int height, int maxSize) {
+        final int longer = Math.max(width, height);
+        int sampleSize = 1;
+        while (longer / (sampleSize * 2) >= maxSize) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Chooses the size of the thumbnail the camera embeds into the pictures.
+     *
+     * @param sizes   The thumbnail sizes supported by the camera.
+     * @param ratio   The aspect ratio of the pictures.
+     * @param maxSize The requested maximum width and height of the thumbnail, in pixels.
+     * @return The smallest size of the {@code ratio} that is at least {@code maxSize} on its
+     * longer side, or the largest one if none is, or {@code null} if the camera has no thumbnail
+     * of the {@code ratio}.
+     */
+    static Size chooseSize(SizeMap sizes, AspectRatio ratio, int maxSize) {
+        final SortedSet<Size> candidates = sizes.sizes(ratio);
+        if (candidates == null || candidates.isEmpty()) {
+            return null;
+        }
+        for (Size size : candidates) {
+            if (Math.max(size.getWidth(), size.getHeight()) >= maxSize) {
+                return size;
+            }
+        }
+        return candidates.last();
+    }
+
+}
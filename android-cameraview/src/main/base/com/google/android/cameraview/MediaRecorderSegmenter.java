@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.cameraview;
+
+import android.annotation.TargetApi;
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Rolls a {@link MediaRecorder} recording over to a new file when the file size limit
+ * approaches, with {@link MediaRecorder#setNextOutputFile(File)}. The recorder switches files
+ * without dropping frames. Only from API 26; {@code MediaRecorder} cannot roll over on the
+ * duration limit.
+ */
+@TargetApi(26)
+class MediaRecorderSegmenter {
+
+    private static final String TAG = "MediaRecorderSegmenter";
+
+    private final MediaRecorder mRecorder;
+
+    private final String mPath;
+
+    private final CameraViewImpl.Callback mCallback;
+
+    private int mSegment;
+
+    private String mCurrentPath;
+
+    /**
+     * The file set with {@link MediaRecorder#setNextOutputFile(File)}, or {@code null}.
+     */
+    private String mNextPath;
+
+    /**
+     * @param recorder The recorder, with its output file set to {@code path}.
+     * @param path     The path of the first segment.
+     * @param callback The callback to report the segments to.
+     */
+    MediaRecorderSegmenter(MediaRecorder recorder, String path, CameraViewImpl.Callback callback) {
+        mRecorder = recorder;
+        mPath = path;
+        mCurrentPath = path;
+        mCallback = callback;
+    }
+
+    static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O;
+    }
+
+    /**
+     * @param what The info from {@link MediaRecorder.OnInfoListener}.
+     * @return {@code true} if the info was handled; otherwise the recording stops as usual.
+     */
+    boolean onInfo(int what) {
+        switch (what) {
+            case MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_APPROACHING:
+                if (mNextPath == null) {
+                    final String next = VideoSegments.path(mPath, mSegment + 1);
+                    try {
+                        mRecorder.setNextOutputFile(new File(next));
+                        mNextPath = next;
+                        mSegment++;
+                    } catch (IOException e) {
+                        // The recording stops at the limit instead
+                        Log.e(TAG, "Failed to set the next output file.", e);
+                    }
+                }
+                return true;
+            case MediaRecorder.MEDIA_RECORDER_INFO_NEXT_OUTPUT_FILE_STARTED:
+                mCallback.onVideoSegmentRecorded(mCurrentPath);
+                mCurrentPath = mNextPath;
+                mNextPath = null;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return The path of the file being recorded.
+     */
+    String getCurrentPath() {
+        return mCurrentPath;
+    }
+
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.cameraview;
+
+import android.media.MediaRecorder;
+import android.util.Log;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Stops and releases a {@link MediaRecorder} off the camera threads, and reports its video once
+ * the file is complete.
+ *
+ * <p>{@link MediaRecorder#stop()} finalizes the file, which can take more than a second on some
+ * devices. The recorders are stopped on a single thread shared by all the cameras, so the
+ * preview can resume in the meantime.</p>
+ */
+class MediaRecorderStopper {
+
+    private static final String TAG = "MediaRecorderStopper";
+
+    private static Executor sExecutor;
+
+    private final MediaRecorder mRecorder;
+
+    private final String mPath;
+
+    private final MediaRecorderSegmenter mSegmenter;
+
+    private final CameraViewImpl.Callback mCallback;
+
+    private final CountDownLatch mStopped = new CountDownLatch(1);
+
+    /**
+     * @param recorder  The recorder, which is recording.
+     * @param path      The file the recorder was started with.
+     * @param segmenter The segmenter of the recorder, or {@code null}.
+     * @param callback  The callback to report the video to.
+     */
+    MediaRecorderStopper(MediaRecorder recorder, String path, MediaRecorderSegmenter segmenter,
+            CameraViewImpl.Callback callback) {
+        mRecorder = recorder;
+        mPath = path;
+        mSegmenter = segmenter;
+        mCallback = callback;
+    }
+
+    private static synchronized Executor getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "CameraViewRecorderStop");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sExecutor;
+    }
+
+    /**
+     * Stops the recorder on the stopper thread.
+     *
+     * @param onStopped Run on the stopper thread once the recorder is released, before the video
+     *                  is reported, or {@code null}.
+     */
+    void stop(final Runnable onStopped) {
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mRecorder.stop();
+                } catch (RuntimeException e) {
+                    // Typically stopped before any frame was recorded
+                    Log.e(TAG, "Failed to stop the recorder.", e);
+                }
+                mRecorder.reset();
+                mRecorder.release();
+                mStopped.countDown();
+                if (onStopped != null) {
+                    onStopped.run();
+                }
+                report();
+            }
+        });
+    }
+
+    /**
+     * @return {@code true} once the recorder is released.
+     */
+    boolean isStopped() {
+        return mStopped.getCount() == 0;
+    }
+
+    /**
+     * Waits until the recorder is released.
+     */
+    void await() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mStopped.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void report() {
+        String path = mPath;
+        if (mSegmenter != null) {
+            // The last segment
+            path = mSegmenter.getCurrentPath();
+            if (new File(path).exists()) {
+                mCallback.onVideoSegmentRecorded(path);
+            }
+        }
+        if (path == null || !new File(path).exists()) {
+            mCallback.onVideoRecorded(null);
+            return;
+        }
+        mCallback.onVideoRecorded(path);
+    }
+
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.cameraview;
+
+import java.io.IOException;
+
+/**
+ * Encodes the pictures captured as YUV frames, as set with
+ * {@link CameraView#setPictureEncoder(PictureEncoder)}.
+ *
+ * <p>Encoders run on a background thread shared by all the cameras, one picture at a time and
+ * in the order the pictures are taken.</p>
+ *
+ * @see JpegEncoder
+ * @see BitmapEncoder
+ */
+public interface PictureEncoder {
+
+    /**
+     * Encodes the {@code frame}. The frame is closed as soon as this method returns; call
+     * {@link Frame#retain()} to keep it for longer.
+     *
+     * @param frame The picture. Its orientation is the clockwise rotation to apply to make it
+     *              upright.
+     * @return The encoded picture, delivered to
+     * {@link CameraView.Callback#onPictureTaken(CameraView, byte[])} or saved, or {@code null} if
+     * the encoder consumed the frame itself, for instance to analyze it without encoding it.
+     * @throws IOException if the picture cannot be encoded. The picture request fails.
+     */
+    byte[] encode(Frame frame) throws IOException;
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.cameraview;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Writes pictures straight from the camera buffers to the files they were requested for.
+ *
+ * <p>The writes run on a single thread shared by all the cameras, so the camera threads never
+ * wait for the disk.</p>
+ */
+class PictureSaver {
+
+    interface Listener {
+
+        /**
+         * Called on the I/O thread once the picture is completely written.
+         *
+         * @param elapsedMillis The time since the picture was requested, in milliseconds.
+         */
+        void onPictureSaved(CaptureQueue.Request request, long elapsedMillis);
+
+        /**
+         * Called on the I/O thread if the picture could not be written.
+         */
+        void onPictureSaveFailed(CaptureQueue.Request request, IOException cause);
+    }
+
+    private static Executor sIoExecutor;
+
+    private final Listener mListener;
+
+    private final Executor mExecutor;
+
+    PictureSaver(Listener listener) {
+        this(listener, getIoExecutor());
+    }
+
+    PictureSaver(Listener listener, Executor executor) {
+        mListener = listener;
+        mExecutor = executor;
+    }
+
+    private static synchronized Executor getIoExecutor() {
+        if (sIoExecutor == null) {
+            sIoExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "CameraViewIO");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sIoExecutor;
+    }
+
+    /**
+     * Writes the picture to the file of the {@code request}.
+     *
+     * @param data      The picture, from its position to its limit. It must stay valid until
+     *                  {@code onWritten} runs.
+     * @param request   The request the picture was taken for. Its file must not be {@code null}.
+     * @param onWritten Run on the I/O thread once {@code data} is no longer needed, typically to
+     *                  release the camera buffer, or {@code null}.
+     */
+    void save(final ByteBuffer data, final CaptureQueue.Request request,
+            final Runnable onWritten) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(data, request.getFile());
+                } catch (IOException e) {
+                    mListener.onPictureSaveFailed(request, e);
+                    return;
+                } finally {
+                    if (onWritten != null) {
+                        onWritten.run();
+                    }
+                }
+                mListener.onPictureSaved(request,
+                        (System.nanoTime() - request.getRequestTime()) / 1000000);
+            }
+        });
+    }
+
+    /**
+     * Writes {@code data} from its position to its limit to the {@code file}, replacing it.
+     */
+    static void write(ByteBuffer data, File file) throws IOException {
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            final FileChannel channel = out.getChannel();
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+}
@@ -0,0 +1,446 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.cameraview;
+
+import java.io.IOException;
+
+/**
+ * Drains a {@link VideoEncoder} into a {@link SampleMuxer} on its own thread.
+ *
+ * <p>The camera renders into the input surface of the encoder; the pipeline writes the samples
+ * as they come out until the encoder ends the stream, and then finalizes the file.</p>
+ *
+ * <p>The recording can be limited in duration and size. With a {@link MuxerFactory}, it rolls
+ * over to a new file at the first key frame after a limit is approached, so that no frame is
+ * lost between the segments. Otherwise the samples after the limit are dropped.</p>
+ *
+ * <p>A pipeline created without a muxer pre-rolls: it keeps the latest samples in a
+ * {@link SampleRing} until {@link #write(SampleMuxer)}, and then writes them first.</p>
+ *
+ * @param <F> The type of the output format.
+ */
+class RecordingPipeline<F> {
+
+    interface Listener {
+
+        /**
+         * Called on the recorder thread once the file of a segment is finalized, including the
+         * last one.
+         *
+         * @param segment The index of the segment, from 0.
+         */
+        void onSegmentFinished(int segment);
+
+        /**
+         * Called on the recorder thread when a limit is reached without a {@link MuxerFactory}.
+         * The following samples are dropped until the pipeline is stopped.
+         */
+        void onLimitReached();
+
+        /**
+         * Called on the recorder thread once the file is finalized and the encoder is released,
+         * or once the encoder is released if the pipeline was pre-rolling and never wrote
+         * anything.
+         */
+        void onRecordingFinished();
+
+        /**
+         * Called on the recorder thread if the recording fails, once the encoder is released.
+         * The file may be missing or incomplete.
+         */
+        void onRecordingFailed(Exception e);
+
+    }
+
+    interface MuxerFactory<F> {
+
+        /**
+         * @param segment The index of the segment, from 1; the first segment is written with the
+         *                muxer passed to the pipeline.
+         * @return The muxer to write the {@code segment} with.
+         */
+        SampleMuxer<F> createMuxer(int segment) throws IOException;
+
+    }
+
+    private static final long DRAIN_TIMEOUT_US = 10000;
+
+    /**
+     * How long to wait for the end of stream after {@link #stop()}, in milliseconds. Some
+     * encoders never output it when the camera stops rendering first.
+     */
+    private static final long END_OF_STREAM_TIMEOUT_MS = 2000;
+
+    /**
+     * The share of the size limit at which a key frame is requested to start the next segment.
+     */
+    private static final float SIZE_APPROACHING = 0.9f;
+
+    private final VideoEncoder<F> mEncoder;
+
+    private SampleMuxer<F> mMuxer;
+
+    private final Listener mListener;
+
+    private final EncodedSample mSample = new EncodedSample();
+
+    private final EncodedSample mPreRollSample = new EncodedSample();
+
+    private SampleRing mPreRoll;
+
+    /**
+     * The muxer passed to {@link #write(SampleMuxer)}, until the recorder thread takes it.
+     */
+    private volatile SampleMuxer<F> mPendingMuxer;
+
+    private Thread mThread;
+
+    private MuxerFactory<F> mMuxerFactory;
+
+    private long mMaxDurationUs;
+
+    private long mMaxBytes;
+
+    private F mFormat;
+
+    private int mTrack = -1;
+
+    private int mSegment;
+
+    private int mSegmentSampleCount;
+
+    private long mSegmentStartUs;
+
+    private long mSegmentBytes;
+
+    private boolean mKeyFrameRequested;
+
+    private boolean mLimitReached;
+
+    private int mSampleCount;
+
+    private long mFirstTimeUs;
+
+    private long mLastTimeUs;
+
+    /**
+     * When {@link #stop()} was called, as {@link System#nanoTime()}, or 0.
+     */
+    private volatile long mStopTime;
+
+    /**
+     * @param muxer The muxer to write the first segment with, or {@code null} to pre-roll.
+     */
+    RecordingPipeline(VideoEncoder<F> encoder, SampleMuxer<F> muxer, Listener listener) {
+        mEncoder = encoder;
+        mMuxer = muxer;
+        mListener = listener;
+    }
+
+    /**
+     * Limits the duration and the size of the recording, or of each segment with a
+     * {@link MuxerFactory}. Call this before {@link #start()}.
+     *
+     * @param maxDurationUs The maximum duration, in microseconds, or 0 for no limit.
+     * @param maxBytes      The maximum size of the samples, in bytes, or 0 for no limit. The
+     *                      container adds a little to it.
+     */
+    void setLimits(long maxDurationUs, long maxBytes) {
+        mMaxDurationUs = maxDurationUs;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Makes the recording roll over to a new file when it approaches a limit, instead of dropping
+     * the samples after it. Call this before {@link #start()}.
+     */
+    void setMuxerFactory(MuxerFactory<F> factory) {
+        mMuxerFactory = factory;
+    }
+
+    /**
+     * Keeps the samples in {@code ring} until {@link #write(SampleMuxer)}, when the pipeline was
+     * created without a muxer. Call this before {@link #start()}.
+     */
+    void setPreRoll(SampleRing ring) {
+        mPreRoll = ring;
+    }
+
+    /**
+     * Makes a pre-rolling pipeline write into {@code muxer}, starting with the samples kept so
+     * far. The limits and the {@link MuxerFactory} can be set until then. Thread-safe.
+     */
+    void write(SampleMuxer<F> muxer) {
+        mPendingMuxer = muxer;
+    }
+
+    /**
+     * @return {@code true} once the pipeline writes into a muxer. Only on the recorder thread.
+     */
+    boolean isWriting() {
+        return mMuxer != null;
+    }
+
+    /**
+     * Starts the encoder and the recorder thread.
+     */
+    void start() {
+        mEncoder.start();
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                record();
+            }
+        }, "CameraViewRecorder");
+        mThread.start();
+    }
+
+    /**
+     * Ends the stream without waiting; the recorder thread finalizes the file and reports it to
+     * the {@link Listener}.
+     */
+    void requestStop() {
+        if (mStopTime == 0) {
+            mStopTime = System.nanoTime();
+            try {
+                mEncoder.signalEndOfInputStream();
+            } catch (IllegalStateException e) {
+                // The encoder failed; the recorder thread reports it
+            }
+        }
+    }
+
+    /**
+     * Ends the stream, and waits for the recorder thread to finalize the file.
+     */
+    void stop() {
+        requestStop();
+        if (mThread != null) {
+            boolean interrupted = false;
+            while (mThread.isAlive()) {
+                try {
+                    mThread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void record() {
+        try {
+            while (!drain(DRAIN_TIMEOUT_US)) {
+                final long stopTime = mStopTime;
+                if (stopTime != 0 && System.nanoTime() - stopTime
+                        > END_OF_STREAM_TIMEOUT_MS * 1000000L) {
+                    break;
+                }
+            }
+            finish();
+        } catch (IOException | RuntimeException e) {
+            release();
+            mListener.onRecordingFailed(e);
+            return;
+        }
+        release();
+        if (mMuxer != null) {
+            mListener.onSegmentFinished(mSegment);
+        }
+        mListener.onRecordingFinished();
+    }
+
+    /**
+     * Writes the next sample of the encoder, if any.
+     *
+     * @return {@code true} once the encoder ended the stream.
+     * @throws IOException if the next segment cannot be started.
+     */
+    boolean drain(long timeoutUs) throws IOException {
+        takePendingMuxer();
+        final int index = mEncoder.dequeueOutputBuffer(mSample, timeoutUs);
+        if (index == VideoEncoder.INFO_OUTPUT_FORMAT_CHANGED) {
+            if (mFormat != null) {
+                throw new IllegalStateException("The output format changed twice.");
+            }
+            mFormat = mEncoder.getOutputFormat();
+            if (mMuxer != null) {
+                mTrack = mMuxer.addTrack(mFormat);
+                mMuxer.start();
+            }
+            return false;
+        }
+        if (index < 0) {
+            return false;
+        }
+        try {
+            // The codec specific data is part of the output format
+            if (!mSample.isCodecConfig() && mSample.getSize() > 0) {
+                if (mFormat == null) {
+                    throw new IllegalStateException("A sample came before the output format.");
+                }
+                if (mMuxer != null) {
+                    writeSample(mSample);
+                } else if (mPreRoll != null) {
+                    mPreRoll.add(mSample);
+                }
+            }
+            return mSample.isEndOfStream();
+        } finally {
+            mEncoder.releaseOutputBuffer(index);
+        }
+    }
+
+    /**
+     * Starts writing into the muxer passed to {@link #write(SampleMuxer)}, if any, beginning
+     * with the pre-rolled samples.
+     */
+    private void takePendingMuxer() throws IOException {
+        final SampleMuxer<F> muxer = mPendingMuxer;
+        if (muxer == null || mMuxer != null) {
+            return;
+        }
+        mMuxer = muxer;
+        if (mFormat == null) {
+            // Added once the format is known
+            return;
+        }
+        mTrack = mMuxer.addTrack(mFormat);
+        mMuxer.start();
+        if (mPreRoll != null) {
+            while (mPreRoll.poll(mPreRollSample)) {
+                writeSample(mPreRollSample);
+            }
+        }
+    }
+
+    private void writeSample(EncodedSample sample) throws IOException {
+        if (mLimitReached) {
+            return;
+        }
+        final long timeUs = sample.getPresentationTimeUs();
+        final int size = sample.getSize();
+        if (mSegmentSampleCount > 0) {
+            final long durationUs = timeUs - mSegmentStartUs;
+            if (mMuxerFactory == null) {
+                if ((mMaxDurationUs > 0 && durationUs >= mMaxDurationUs)
+                        || (mMaxBytes > 0 && mSegmentBytes + size > mMaxBytes)) {
+                    mLimitReached = true;
+                    mListener.onLimitReached();
+                    return;
+                }
+            } else if ((mMaxDurationUs > 0 && durationUs >= mMaxDurationUs)
+                    || (mMaxBytes > 0 && mSegmentBytes + size >= mMaxBytes * SIZE_APPROACHING)) {
+                // The next segment must start with a key frame to be playable on its own
+                if (sample.isKeyFrame()) {
+                    startNextSegment();
+                } else if (!mKeyFrameRequested) {
+                    mEncoder.requestKeyFrame();
+                    mKeyFrameRequested = true;
+                }
+            }
+        }
+        mMuxer.writeSampleData(mTrack, sample);
+        if (mSegmentSampleCount == 0) {
+            mSegmentStartUs = timeUs;
+        }
+        mSegmentSampleCount++;
+        mSegmentBytes += size;
+        if (mSampleCount == 0) {
+            mFirstTimeUs = timeUs;
+        }
+        // With B-frames, the samples are in decoding order
+        mLastTimeUs = Math.max(mLastTimeUs, timeUs);
+        mSampleCount++;
+    }
+
+    /**
+     * Finalizes the current segment, and continues into a new muxer.
+     */
+    private void startNextSegment() throws IOException {
+        final SampleMuxer<F> next = mMuxerFactory.createMuxer(mSegment + 1);
+        final SampleMuxer<F> previous = mMuxer;
+        try {
+            previous.stop();
+        } catch (IOException e) {
+            next.release();
+            throw e;
+        } finally {
+            previous.release();
+        }
+        mListener.onSegmentFinished(mSegment);
+        mMuxer = next;
+        mSegment++;
+        mTrack = mMuxer.addTrack(mFormat);
+        mMuxer.start();
+        mSegmentSampleCount = 0;
+        mSegmentBytes = 0;
+        mKeyFrameRequested = false;
+    }
+
+    /**
+     * Finalizes the file.
+     *
+     * @throws IOException if no sample was written, or if the file cannot be finalized.
+     */
+    void finish() throws IOException {
+        takePendingMuxer();
+        if (mMuxer == null) {
+            // Pre-rolled only
+            return;
+        }
+        if (mSampleCount == 0) {
+            throw new IOException("No video frame was recorded.");
+        }
+        mMuxer.stop();
+    }
+
+    /**
+     * Releases the encoder and the muxer.
+     */
+    void release() {
+        final SampleMuxer<F> muxer = mMuxer != null ? mMuxer : mPendingMuxer;
+        try {
+            mEncoder.release();
+        } finally {
+            if (muxer != null) {
+                muxer.release();
+            }
+        }
+    }
+
+    int getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * @return The index of the segment being written, from 0.
+     */
+    int getSegment() {
+        return mSegment;
+    }
+
+    /**
+     * @return The time between the first and the last sample written, in microseconds.
+     */
+    long getDurationUs() {
+        return mSampleCount == 0 ? 0 : mLastTimeUs - mFirstTimeUs;
+    }
+
+}
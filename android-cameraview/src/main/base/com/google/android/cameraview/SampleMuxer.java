@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.cameraview;
+
+import java.io.IOException;
+
+/**
+ * Writes encoded samples into a container file, as {@code MediaMuxer}.
+ *
+ * @param <F> The type of the track formats.
+ */
+interface SampleMuxer<F> {
+
+    /**
+     * @return The index of the track, to write its samples with.
+     */
+    int addTrack(F format);
+
+    void start();
+
+    void writeSampleData(int track, EncodedSample sample);
+
+    /**
+     * Finalizes the file.
+     *
+     * @throws IOException if the file cannot be finalized, for instance because it has no sample.
+     */
+    void stop() throws IOException;
+
+    void release();
+
+}
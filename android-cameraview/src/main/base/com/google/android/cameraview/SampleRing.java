@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.cameraview;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Keeps copies of the most recent encoded samples, so that a recording can start with the video
+ * from before it was requested.
+ *
+ * <p>The ring always starts with a key frame, and drops whole groups of pictures, oldest first,
+ * to stay within its duration and byte budget. The copies are recycled. The budget counts the
+ * capacity of the arrays rather than the size of the samples, including the recycled ones, so
+ * it bounds the memory the ring uses. Not thread-safe; the recorder thread owns it.</p>
+ */
+class SampleRing {
+
+    private final long mMaxDurationUs;
+
+    private final long mMaxBytes;
+
+    /**
+     * The samples, oldest first.
+     */
+    private final ArrayDeque<Entry> mEntries = new ArrayDeque<>();
+
+    private final ArrayDeque<Entry> mFreeEntries = new ArrayDeque<>();
+
+    /**
+     * The entry last returned by {@link #poll(EncodedSample)}, recycled on the next call.
+     */
+    private Entry mPolled;
+
+    private long mBytes;
+
+    /**
+     * The capacity of the arrays of {@link #mEntries}, in bytes.
+     */
+    private long mCapacity;
+
+    /**
+     * The capacity of all the arrays, including the recycled ones, in bytes.
+     */
+    private long mAllocatedBytes;
+
+    private int mKeyFrameCount;
+
+    private long mLastTimeUs;
+
+    /**
+     * @param maxDurationUs The duration to keep, in microseconds. The ring holds at least this
+     *                      much when it can, starting at a key frame.
+     * @param maxBytes      The maximum memory for the copies of the samples, in bytes.
+     */
+    SampleRing(long maxDurationUs, long maxBytes) {
+        mMaxDurationUs = maxDurationUs;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Copies the {@code sample} into the ring, dropping the oldest samples if needed. Samples
+     * before the first key frame are ignored.
+     */
+    void add(EncodedSample sample) {
+        final boolean keyFrame = sample.isKeyFrame();
+        if (mEntries.isEmpty() && !keyFrame) {
+            return;
+        }
+        final int size = sample.getSize();
+        final Entry entry = obtain(size);
+        sample.getData().duplicate().get(entry.mData, 0, size);
+        entry.mSize = size;
+        entry.mPresentationTimeUs = sample.getPresentationTimeUs();
+        entry.mFlags = sample.getFlags();
+        mEntries.add(entry);
+        mBytes += size;
+        mCapacity += entry.mData.length;
+        if (keyFrame) {
+            mKeyFrameCount++;
+        }
+        // With B-frames, the samples are in decoding order
+        mLastTimeUs = mEntries.size() == 1 ? entry.mPresentationTimeUs
+                : Math.max(mLastTimeUs, entry.mPresentationTimeUs);
+        trim();
+        trimFree();
+    }
+
+    private void trim() {
+        while (mKeyFrameCount > 1) {
+            // The first group of pictures goes if the rest is enough, or the budget is exceeded
+            final long nextKeyFrameUs = findSecondKeyFrameTime();
+            if (mLastTimeUs - nextKeyFrameUs < mMaxDurationUs && mCapacity <= mMaxBytes) {
+                return;
+            }
+            dropFirstGroup();
+        }
+        if (mCapacity > mMaxBytes) {
+            // A single group of pictures over the budget; start over at the next key frame
+            clear();
+        }
+    }
+
+    private long findSecondKeyFrameTime() {
+        final Iterator<Entry> i = mEntries.iterator();
+        i.next();
+        while (i.hasNext()) {
+            final Entry entry = i.next();
+            if ((entry.mFlags & EncodedSample.FLAG_KEY_FRAME) != 0) {
+                return entry.mPresentationTimeUs;
+            }
+        }
+        throw new IllegalStateException("No second key frame.");
+    }
+
+    private void dropFirstGroup() {
+        recycle(mEntries.poll());
+        mKeyFrameCount--;
+        while ((mEntries.peek().mFlags & EncodedSample.FLAG_KEY_FRAME) == 0) {
+            recycle(mEntries.poll());
+        }
+    }
+
+    /**
+     * Removes the oldest sample.
+     *
+     * @param out Set to the sample, whose data is valid until the next call.
+     * @return {@code false} if the ring is empty.
+     */
+    boolean poll(EncodedSample out) {
+        if (mPolled != null) {
+            addFree(mPolled);
+            mPolled = null;
+        }
+        final Entry entry = mEntries.poll();
+        if (entry == null) {
+            return false;
+        }
+        mBytes -= entry.mSize;
+        mCapacity -= entry.mData.length;
+        if ((entry.mFlags & EncodedSample.FLAG_KEY_FRAME) != 0) {
+            mKeyFrameCount--;
+        }
+        out.set(ByteBuffer.wrap(entry.mData, 0, entry.mSize), entry.mPresentationTimeUs,
+                entry.mFlags);
+        mPolled = entry;
+        return true;
+    }
+
+    void clear() {
+        Entry entry;
+        while ((entry = mEntries.poll()) != null) {
+            recycle(entry);
+        }
+        mKeyFrameCount = 0;
+    }
+
+    int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * @return The size of the samples kept, in bytes.
+     */
+    long getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * @return The capacity of all the arrays the ring holds, including the recycled ones, in
+     * bytes.
+     */
+    long getAllocatedBytes() {
+        return mAllocatedBytes;
+    }
+
+    /**
+     * @return The time between the first sample and the latest one, in microseconds.
+     */
+    long getDurationUs() {
+        return mEntries.isEmpty() ? 0 : mLastTimeUs - mEntries.peek().mPresentationTimeUs;
+    }
+
+    /**
+     * @return The recycled entry with the smallest array that fits {@code size} bytes, or a new
+     * one sized exactly.
+     */
+    private Entry obtain(int size) {
+        Entry best = null;
+        for (Entry entry : mFreeEntries) {
+            if (entry.mData.length >= size
+                    && (best == null || entry.mData.length < best.mData.length)) {
+                best = entry;
+            }
+        }
+        if (best != null) {
+            mFreeEntries.remove(best);
+            return best;
+        }
+        final Entry entry = new Entry();
+        entry.mData = new byte[size];
+        mAllocatedBytes += size;
+        return entry;
+    }
+
+    private void recycle(Entry entry) {
+        mBytes -= entry.mSize;
+        mCapacity -= entry.mData.length;
+        addFree(entry);
+    }
+
+    private void addFree(Entry entry) {
+        mFreeEntries.add(entry);
+        trimFree();
+    }
+
+    /**
+     * Drops the oldest recycled entries until all the arrays fit in the budget.
+     */
+    private void trimFree() {
+        while (mAllocatedBytes > mMaxBytes) {
+            final Entry dropped = mFreeEntries.poll();
+            if (dropped == null) {
+                return;
+            }
+            mAllocatedBytes -= dropped.mData.length;
+        }
+    }
+
+    private static class Entry {
+
+        byte[] mData;
+
+        int mSize;
+
+        long mPresentationTimeUs;
+
+        int mFlags;
+
+    }
+
+}
@@ -71,6 +71,51 @@ class SizeMap {
         return mRatios.get(ratio);
     }
 
+    /**
+     * @param ratio  The aspect ratio.
+     * @param pixels The requested number of pixels.
+     * @return The size of the {@code ratio} with the number of pixels closest to {@code pixels},
+     * or {@code null} if there is no size of the {@code ratio}.
+     */
+    Size nearest(AspectRatio ratio, long pixels) {
+        final SortedSet<Size> sizes = mRatios.get(ratio);
+        if (sizes == null) {
+            return null;
+        }
+        Size result = null;
+        long best = Long.MAX_VALUE;
+        for (Size size : sizes) {
+            final long distance = Math.abs((long) size.getWidth() * size.getHeight() - pixels);
+            if (distance < best) {
+                best = distance;
+                result = size;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param ratio     The aspect ratio.
+     * @param maxPixels The maximum number of pixels.
+     * @return The largest size of the {@code ratio} with at most {@code maxPixels} pixels, the
+     * smallest size if they are all larger, or {@code null} if there is no size of the
+     * {@code ratio}.
+     */
+    Size largestWithin(AspectRatio ratio, long maxPixels) {
+        final SortedSet<Size> sizes = mRatios.get(ratio);
+        if (sizes == null) {
+            return null;
+        }
+        Size result = sizes.first();
+        for (Size size : sizes) { // Iterate from small to large
+            if ((long) size.getWidth() * size.getHeight() > maxPixels) {
+                break;
+            }
+            result = size;
+        }
+        return result;
+    }
+
     void clear() {
         mRatios.clear();
     }
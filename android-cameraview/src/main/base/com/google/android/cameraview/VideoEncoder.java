@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.cameraview;
+
+/**
+ * A video encoder fed by the camera through an input surface, as {@code MediaCodec}.
+ *
+ * <p>The methods mirror those of {@code MediaCodec}, so that {@link RecordingPipeline} can be
+ * tested without it.</p>
+ *
+ * @param <F> The type of the output format.
+ */
+interface VideoEncoder<F> {
+
+    /**
+     * Returned by {@link #dequeueOutputBuffer(EncodedSample, long)} when no sample is available
+     * yet.
+     */
+    int INFO_TRY_AGAIN_LATER = -1;
+
+    /**
+     * Returned by {@link #dequeueOutputBuffer(EncodedSample, long)} when the output format is
+     * known, before the first sample.
+     */
+    int INFO_OUTPUT_FORMAT_CHANGED = -2;
+
+    void start();
+
+    /**
+     * Waits for an encoded sample.
+     *
+     * @param sample    Set to the sample when one is dequeued.
+     * @param timeoutUs The time to wait for, in microseconds.
+     * @return The index of the buffer holding the {@code sample}, to release with
+     * {@link #releaseOutputBuffer(int)}, or one of the {@code INFO} constants.
+     */
+    int dequeueOutputBuffer(EncodedSample sample, long timeoutUs);
+
+    F getOutputFormat();
+
+    void releaseOutputBuffer(int index);
+
+    /**
+     * Makes the next frame a key frame.
+     */
+    void requestKeyFrame();
+
+    /**
+     * Makes the encoder output the end of stream after the last frame it received.
+     */
+    void signalEndOfInputStream();
+
+    /**
+     * Stops the encoder and frees its resources. The encoder cannot be used anymore.
+     */
+    void release();
+
+}
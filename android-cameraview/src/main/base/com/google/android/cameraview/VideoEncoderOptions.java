@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.cameraview;
+
+import android.support.annotation.IntDef;
+import android.support.annotation.NonNull;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * The encoder settings of a recording made with {@code MediaCodec} and {@code MediaMuxer}, as
+ * passed to {@link CameraView#record(String, VideoEncoderOptions)}.
+ *
+ * <p>The settings left unset are taken from the high quality {@code CamcorderProfile} of the
+ * camera.</p>
+ */
+public class VideoEncoderOptions {
+
+    /**
+     * Constant quality; the bit rate varies freely.
+     */
+    public static final int BITRATE_MODE_CQ = 0;
+
+    /**
+     * Variable bit rate, averaging the requested bit rate.
+     */
+    public static final int BITRATE_MODE_VBR = 1;
+
+    /**
+     * Constant bit rate.
+     */
+    public static final int BITRATE_MODE_CBR = 2;
+
+    /**
+     * How the encoder controls the bit rate.
+     */
+    @IntDef({BITRATE_MODE_CQ, BITRATE_MODE_VBR, BITRATE_MODE_CBR})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface BitrateMode {
+    }
+
+    private final String mMimeType;
+
+    private final Size mVideoSize;
+
+    private final int mBitRate;
+
+    private final int mBitrateMode;
+
+    private final int mFrameRate;
+
+    private final float mKeyFrameInterval;
+
+    private final int mMaxBFrames;
+
+    private final int mLatency;
+
+    private VideoEncoderOptions(Builder builder) {
+        mMimeType = builder.mMimeType;
+        mVideoSize = builder.mVideoSize;
+        mBitRate = builder.mBitRate;
+        mBitrateMode = builder.mBitrateMode;
+        mFrameRate = builder.mFrameRate;
+        mKeyFrameInterval = builder.mKeyFrameInterval;
+        mMaxBFrames = builder.mMaxBFrames;
+        mLatency = builder.mLatency;
+    }
+
+    @NonNull
+    public String getMimeType() {
+        return mMimeType;
+    }
+
+    /**
+     * @return The size of the video, or {@code null} for the size of the camcorder profile.
+     */
+    public Size getVideoSize() {
+        return mVideoSize;
+    }
+
+    /**
+     * @return The bit rate, in bits per second, or 0 for the bit rate of the camcorder profile.
+     */
+    public int getBitRate() {
+        return mBitRate;
+    }
+
+    @BitrateMode
+    public int getBitrateMode() {
+        return mBitrateMode;
+    }
+
+    /**
+     * @return The frame rate, or 0 for the frame rate of the camcorder profile.
+     */
+    public int getFrameRate() {
+        return mFrameRate;
+    }
+
+    /**
+     * @return The time between key frames, in seconds.
+     */
+    public float getKeyFrameInterval() {
+        return mKeyFrameInterval;
+    }
+
+    public int getMaxBFrames() {
+        return mMaxBFrames;
+    }
+
+    /**
+     * @return The number of frames the encoder may hold before outputting the first one, or 0 to
+     * leave it to the encoder.
+     */
+    public int getLatency() {
+        return mLatency;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof VideoEncoderOptions)) {
+            return false;
+        }
+        final VideoEncoderOptions options = (VideoEncoderOptions) o;
+        return mMimeType.equals(options.mMimeType)
+                && (mVideoSize == null ? options.mVideoSize == null
+                : mVideoSize.equals(options.mVideoSize))
+                && mBitRate == options.mBitRate
+                && mBitrateMode == options.mBitrateMode
+                && mFrameRate == options.mFrameRate
+                && Float.compare(mKeyFrameInterval, options.mKeyFrameInterval) == 0
+                && mMaxBFrames == options.mMaxBFrames
+                && mLatency == options.mLatency;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = mMimeType.hashCode();
+        result = 31 * result + (mVideoSize == null ? 0 : mVideoSize.hashCode());
+        result = 31 * result + mBitRate;
+        result = 31 * result + mBitrateMode;
+        result = 31 * result + mFrameRate;
+        result = 31 * result + Float.floatToIntBits(mKeyFrameInterval);
+        result = 31 * result + mMaxBFrames;
+        result = 31 * result + mLatency;
+        return result;
+    }
+
+    public static class Builder {
+
+        private String mMimeType = "video/avc";
+
+        private Size mVideoSize;
+
+        private int mBitRate;
+
+        private int mBitrateMode = BITRATE_MODE_VBR;
+
+        private int mFrameRate;
+
+        private float mKeyFrameInterval = 1.f;
+
+        private int mMaxBFrames;
+
+        private int mLatency;
+
+        /**
+         * @param mimeType The video format, such as {@code "video/avc"} (the default) or
+         *                 {@code "video/hevc"}.
+         */
+        public Builder setMimeType(@NonNull String mimeType) {
+            mMimeType = mimeType;
+            return this;
+        }
+
+        /**
+         * @param size The size of the video, or {@code null} for the size of the camcorder
+         *             profile. The camera must support it as a recording size.
+         */
+        public Builder setVideoSize(Size size) {
+            mVideoSize = size;
+            return this;
+        }
+
+        /**
+         * @param bitRate The bit rate, in bits per second, or 0 for the bit rate of the camcorder
+         *                profile.
+         */
+        public Builder setBitRate(int bitRate) {
+            if (bitRate < 0) {
+                throw new IllegalArgumentException("The bit rate must not be negative: "
+                        + bitRate);
+            }
+            mBitRate = bitRate;
+            return this;
+        }
+
+        /**
+         * @param mode How the bit rate is controlled; {@link #BITRATE_MODE_VBR} by default. Not
+         *             every encoder supports every mode.
+         */
+        public Builder setBitrateMode(@BitrateMode int mode) {
+            mBitrateMode = mode;
+            return this;
+        }
+
+        /**
+         * @param frameRate The frame rate, or 0 for the frame rate of the camcorder profile.
+         */
+        public Builder setFrameRate(int frameRate) {
+            if (frameRate < 0) {
+                throw new IllegalArgumentException("The frame rate must not be negative: "
+                        + frameRate);
+            }
+            mFrameRate = frameRate;
+            return this;
+        }
+
+        /**
+         * @param seconds The time between key frames; 1 second by default. 0 makes every frame a
+         *                key frame.
+         */
+        public Builder setKeyFrameInterval(float seconds) {
+            if (seconds < 0) {
+                throw new IllegalArgumentException("The key frame interval must not be "
+                        + "negative: " + seconds);
+            }
+            mKeyFrameInterval = seconds;
+            return this;
+        }
+
+        /**
+         * @param count The maximum number of consecutive B-frames; 0 by default. Encoders only
+         *              honor it from Android 10.
+         */
+        public Builder setMaxBFrames(int count) {
+            if (count < 0) {
+                throw new IllegalArgumentException("The B-frame count must not be negative: "
+                        + count);
+            }
+            mMaxBFrames = count;
+            return this;
+        }
+
+        /**
+         * @param frames The number of frames the encoder may hold before outputting the first
+         *               one, or 0 to leave it to the encoder. Encoders only honor it from
+         *               Android 11.
+         */
+        public Builder setLatency(int frames) {
+            if (frames < 0) {
+                throw new IllegalArgumentException("The latency must not be negative: "
+                        + frames);
+            }
+            mLatency = frames;
+            return this;
+        }
+
+        public VideoEncoderOptions build() {
+            return new VideoEncoderOptions(this);
+        }
+
+    }
+
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.cameraview;
+
+import java.util.Locale;
+
+/**
+ * Names the files of segmented recordings.
+ */
+class VideoSegments {
+
+    private VideoSegments() {
+    }
+
+    /**
+     * @param path    The path passed to {@code record}.
+     * @param segment The index of the segment, from 0.
+     * @return The {@code path} itself for the first segment, and the {@code path} with
+     * {@code _1}, {@code _2} and so on before its extension for the following ones.
+     */
+    static String path(String path, int segment) {
+        if (segment == 0) {
+            return path;
+        }
+        final int dot = path.lastIndexOf('.');
+        final String suffix = String.format(Locale.US, "_%d", segment);
+        if (dot <= path.lastIndexOf('/') + 1) {
+            // No extension, or a hidden file
+            return path + suffix;
+        }
+        return path.substring(0, dot) + suffix + path.substring(dot);
+    }
+
+}
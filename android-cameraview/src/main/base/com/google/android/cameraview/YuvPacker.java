@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.cameraview;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Packs the planes of a YUV 4:2:0 {@link Frame} into a tightly packed NV21 or I420 byte array,
+ * honoring the row and pixel strides of every plane.
+ *
+ * <p>Rows are read with bulk gets. An instance keeps a scratch row between calls, so it must not
+ * be used from several threads at once.</p>
+ */
+class YuvPacker {
+
+    private byte[] mRow;
+
+    /**
+     * @return The size of a packed frame, in bytes.
+     */
+    static int getPackedSize(int width, int height) {
+        return width * height + 2 * ((width + 1) / 2) * ((height + 1) / 2);
+    }
+
+    /**
+     * Packs the {@code frame}.
+     *
+     * @param frame  The frame to pack.
+     * @param format {@link Constants#FRAME_FORMAT_NV21} or {@link Constants#FRAME_FORMAT_I420}.
+     * @param out    The array to write to. It is reused if it has exactly the packed size.
+     * @return The packed frame; either {@code out} or a new array.
+     */
+    byte[] pack(Frame frame, int format, byte[] out) {
+        final int width = frame.getWidth();
+        final int height = frame.getHeight();
+        final int size = getPackedSize(width, height);
+        if (out == null || out.length != size) {
+            out = new byte[size];
+        }
+        final int ySize = width * height;
+        final int chromaWidth = (width + 1) / 2;
+        final int chromaHeight = (height + 1) / 2;
+        copyPlane(frame, 0, width, height, out, 0, 1);
+        if (format == Constants.FRAME_FORMAT_I420) {
+            copyPlane(frame, 1, chromaWidth, chromaHeight, out, ySize, 1);
+            copyPlane(frame, 2, chromaWidth, chromaHeight, out,
+                    ySize + chromaWidth * chromaHeight, 1);
+        } else if (format == Constants.FRAME_FORMAT_NV21) {
+            // V first, then U, interleaved
+            copyPlane(frame, 2, chromaWidth, chromaHeight, out, ySize, 2);
+            copyPlane(frame, 1, chromaWidth, chromaHeight, out, ySize + 1, 2);
+        } else {
+            throw new IllegalArgumentException("Unsupported frame format: " + format);
+        }
+        return out;
+    }
+
+    /**
+     * Copies {@code width} x {@code height} pixels of a plane into {@code out}, starting at
+     * {@code offset} and advancing {@code outPixelStride} bytes per pixel.
+     */
+    private void copyPlane(Frame frame, int plane, int width, int height, byte[] out,
+            int offset, int outPixelStride) {
+        final ByteBuffer buffer = frame.getBuffer(plane).duplicate();
+        final int rowStride = frame.getRowStride(plane);
+        final int pixelStride = frame.getPixelStride(plane);
+        final int start = buffer.position();
+        if (pixelStride == 1 && outPixelStride == 1) {
+            for (int y = 0; y < height; y++) {
+                buffer.position(start + y * rowStride);
+                buffer.get(out, offset + y * width, width);
+            }
+            return;
+        }
+        // The last pixel of a row may not be followed by the padding of the pixel stride
+        final int rowLength = (width - 1) * pixelStride + 1;
+        if (mRow == null || mRow.length < rowLength) {
+            mRow = new byte[rowLength];
+        }
+        final byte[] row = mRow;
+        int o = offset;
+        for (int y = 0; y < height; y++) {
+            buffer.position(start + y * rowStride);
+            buffer.get(row, 0, rowLength);
+            for (int x = 0, i = 0; x < width; x++, i += pixelStride) {
+                out[o] = row[i];
+                o += outPixelStride;
+            }
+        }
+    }
+
+}
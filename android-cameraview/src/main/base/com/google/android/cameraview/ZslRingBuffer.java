@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.cameraview;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Keeps the most recent full resolution frames for zero shutter lag capture, and picks the one
+ * to encode when a picture is taken.
+ *
+ * <p>The buffer owns the frames it holds, and closes them once they are replaced or cleared. All
+ * methods are thread-safe.</p>
+ */
+class ZslRingBuffer {
+
+    // The values of android.hardware.camera2.CaptureResult.CONTROL_AF_STATE_*
+    private static final int AF_STATE_INACTIVE = 0;
+    private static final int AF_STATE_PASSIVE_FOCUSED = 2;
+    private static final int AF_STATE_FOCUSED_LOCKED = 4;
+
+    // The values of android.hardware.camera2.CaptureResult.CONTROL_AE_STATE_*
+    private static final int AE_STATE_CONVERGED = 2;
+    private static final int AE_STATE_LOCKED = 3;
+
+    /**
+     * The distance between the luminance samples used to estimate sharpness, in pixels.
+     */
+    private static final int SHARPNESS_STEP = 4;
+
+    private final int mCapacity;
+
+    /**
+     * The frames, oldest first.
+     */
+    private final ArrayList<Frame> mFrames;
+
+    /**
+     * Whether the lens has a fixed focus, so that its auto focus state stays inactive.
+     */
+    private boolean mFixedFocus;
+
+    /**
+     * @param capacity The number of frames to keep.
+     */
+    ZslRingBuffer(int capacity) {
+        mCapacity = capacity;
+        mFrames = new ArrayList<>(capacity);
+    }
+
+    synchronized void setFixedFocus(boolean fixedFocus) {
+        mFixedFocus = fixedFocus;
+    }
+
+    /**
+     * Adds the {@code frame}, closing the oldest one if the buffer is full.
+     */
+    synchronized void put(Frame frame) {
+        if (mFrames.size() >= mCapacity) {
+            mFrames.remove(0).close();
+        }
+        mFrames.add(frame);
+    }
+
+    /**
+     * Removes the sharpest frame whose auto focus and auto exposure have converged. The capture
+     * results usually arrive after the images, so the metadata of the frames is looked up in
+     * {@code results} first.
+     *
+     * @param results The recent capture results, or {@code null} to use the frame metadata as is.
+     * @return The frame, which the caller must close, or {@code null} if no frame qualifies.
+     */
+    synchronized Frame take(CaptureResultRing results) {
+        Frame best = null;
+        long bestSharpness = -1;
+        // Newest first, so that the newest frame wins a tie
+        for (int i = mFrames.size() - 1; i >= 0; i--) {
+            final Frame frame = mFrames.get(i);
+            if (results != null) {
+                results.get(frame.getTimestamp(), frame.getMetadata());
+            }
+            if (!isConverged(frame.getMetadata())) {
+                continue;
+            }
+            final long sharpness = sharpness(frame);
+            if (sharpness > bestSharpness) {
+                best = frame;
+                bestSharpness = sharpness;
+            }
+        }
+        if (best != null) {
+            mFrames.remove(best);
+        }
+        return best;
+    }
+
+    synchronized int size() {
+        return mFrames.size();
+    }
+
+    /**
+     * Closes all the frames.
+     */
+    synchronized void clear() {
+        for (int i = 0, count = mFrames.size(); i < count; i++) {
+            mFrames.get(i).close();
+        }
+        mFrames.clear();
+    }
+
+    /**
+     * @return {@code true} if the auto focus has settled and the auto exposure has converged. The
+     * auto focus of a fixed focus lens is always inactive, which counts as settled.
+     */
+    private boolean isConverged(FrameMetadata metadata) {
+        final int af = metadata.getFocusState();
+        final int ae = metadata.getExposureState();
+        final boolean focused = af == AF_STATE_FOCUSED_LOCKED || af == AF_STATE_PASSIVE_FOCUSED
+                || (mFixedFocus && af == AF_STATE_INACTIVE);
+        return focused && (ae == AE_STATE_CONVERGED || ae == AE_STATE_LOCKED);
+    }
+
+    /**
+     * Estimates the sharpness of the {@code frame} as the sum of the luminance differences
+     * between neighbouring pixels, sampled on a sparse grid. Only comparable between frames of
+     * the same size.
+     */
+    static long sharpness(Frame frame) {
+        final ByteBuffer y = frame.getBuffer(0);
+        final int rowStride = frame.getRowStride(0);
+        final int pixelStride = frame.getPixelStride(0);
+        final int base = y.position();
+        final int width = frame.getWidth();
+        final int height = frame.getHeight();
+        long sum = 0;
+        for (int row = 0; row < height - 1; row += SHARPNESS_STEP) {
+            final int offset = base + row * rowStride;
+            for (int column = 0; column < width - 1; column += SHARPNESS_STEP) {
+                final int index = offset + column * pixelStride;
+                final int center = y.get(index) & 0xFF;
+                sum += Math.abs(center - (y.get(index + pixelStride) & 0xFF));
+                sum += Math.abs(center - (y.get(index + rowStride) & 0xFF));
+            }
+        }
+        return sum;
+    }
+
+}
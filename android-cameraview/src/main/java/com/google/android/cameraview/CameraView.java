@@ -19,8 +19,13 @@ package com.google.android.cameraview;
 import android.app.Activity;
 import android.content.Context;
 import android.content.res.TypedArray;
+import android.graphics.Bitmap;
+import android.graphics.ImageFormat;
+import android.graphics.RectF;
 import android.media.CamcorderProfile;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.support.annotation.IntDef;
@@ -33,10 +38,13 @@ import android.util.AttributeSet;
 import android.view.View;
 import android.widget.FrameLayout;
 
+import java.io.File;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
-import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class CameraView extends FrameLayout {
     public static final int AUTO = 0;
@@ -94,12 +102,69 @@ public class CameraView extends FrameLayout {
     public @interface Flash {
     }
 
+    /**
+     * Every frame is delivered, however long the callbacks take.
+     */
+    public static final int BACKPRESSURE_NONE = Constants.BACKPRESSURE_NONE;
+
+    /**
+     * Only the latest frame waits while the callbacks are busy; older waiting frames are dropped.
+     */
+    public static final int BACKPRESSURE_KEEP_LATEST = Constants.BACKPRESSURE_KEEP_LATEST;
+
+    /**
+     * Frames are dropped while the callbacks are busy with a frame.
+     */
+    public static final int BACKPRESSURE_DROP_WHILE_BUSY = Constants.BACKPRESSURE_DROP_WHILE_BUSY;
+
+    /**
+     * Up to a fixed number of frames wait while the callbacks are busy; newer frames are dropped
+     * when the queue is full.
+     */
+    public static final int BACKPRESSURE_QUEUE = Constants.BACKPRESSURE_QUEUE;
+
+    /**
+     * The strategy for frames arriving while the callbacks are still busy with earlier frames.
+     */
+    @IntDef({BACKPRESSURE_NONE, BACKPRESSURE_KEEP_LATEST, BACKPRESSURE_DROP_WHILE_BUSY,
+            BACKPRESSURE_QUEUE})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface Backpressure {
+    }
+
+    /**
+     * Byte array frames are delivered in the native layout of the camera: NV21 on Camera1, and
+     * the luminance plane with its row padding on Camera2.
+     */
+    public static final int FRAME_FORMAT_DEFAULT = Constants.FRAME_FORMAT_DEFAULT;
+
+    /**
+     * Byte array frames are tightly packed NV21: the Y plane followed by interleaved V and U.
+     */
+    public static final int FRAME_FORMAT_NV21 = Constants.FRAME_FORMAT_NV21;
+
+    /**
+     * Byte array frames are tightly packed I420: the Y plane followed by the U and V planes.
+     */
+    public static final int FRAME_FORMAT_I420 = Constants.FRAME_FORMAT_I420;
+
+    /**
+     * The layout of the frames delivered to
+     * {@link Callback#onFramePreview(CameraView, byte[], int, int, int)}.
+     */
+    @IntDef({FRAME_FORMAT_DEFAULT, FRAME_FORMAT_NV21, FRAME_FORMAT_I420})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface FrameFormat {
+    }
+
     CameraViewImpl mImpl;
 
     private final CallbackBridge mCallbacks;
 
     private boolean mAdjustViewBounds;
 
+    private boolean mAsyncStart;
+
     private final DisplayOrientationDetector2 mDisplayOrientationDetector;
 
     public CameraView(Context context) {
@@ -278,19 +343,75 @@ public class CameraView extends FrameLayout {
             }
             //store the state and restore this state after fall back to Camera1
             Parcelable state = onSaveInstanceState();
+            final CameraViewImpl camera2 = mImpl;
             // Camera2 uses legacy hardware layer; fall back to Camera1
             mImpl = new Camera1(mCallbacks, createPreviewImpl(getContext()));
+            copyOptions(camera2, mImpl);
             onRestoreInstanceState(state);
             mImpl.start();
         }
     }
 
+    /**
+     * Copies the options that are not part of the saved state.
+     */
+    private void copyOptions(CameraViewImpl from, CameraViewImpl to) {
+        to.setAsyncStart(mAsyncStart);
+        to.setScanningFrameRate(from.getScanningFrameRate());
+        to.setScanningResolution(from.getScanningResolution());
+        to.setScanningMaxPixels(from.getScanningMaxPixels());
+        to.setPictureResolution(from.getPictureResolution());
+        to.setPictureMaxPixels(from.getPictureMaxPixels());
+        to.setZeroShutterLag(from.isZeroShutterLag());
+        to.setExifOrientation(from.isExifOrientation());
+        to.setThumbnailSize(from.getThumbnailSize());
+        to.setFastCapture(from.isFastCapture());
+        to.setPictureEncoder(from.getPictureEncoder());
+        to.setCaptureQueueSize(from.getCaptureQueueSize());
+        to.setVideoStandby(from.getVideoStandby());
+        to.setSegmentedRecording(from.isSegmentedRecording());
+    }
+
     /**
      * Stop camera preview and close the device. This is typically called from
      * {@link Activity#onPause()}.
      */
     public void stop() {
         mImpl.stop();
+        // Frames of a stopped camera must not reach the callbacks
+        mCallbacks.mFrameDispatcher.clear();
+    }
+
+    /**
+     * Sets whether {@link #start()} returns immediately and opens the camera on a background
+     * thread. {@link Callback#onCameraOpened(CameraView)} or
+     * {@link Callback#onCameraError(CameraView, Throwable)} is called once the camera is ready.
+     *
+     * <p>This only affects Camera1, which otherwise opens and configures the camera on the
+     * calling thread; Camera2 always opens the camera asynchronously. In this mode, all the
+     * camera operations run in order on a dedicated thread, so overlapping {@link #start()},
+     * {@link #stop()} and {@link #setFacing(int)} calls are applied one after another. Call this
+     * before {@link #start()}.</p>
+     *
+     * <p>The calling thread never waits for the camera in this mode.
+     * {@link #setAspectRatio(AspectRatio)} falls back to a supported ratio instead of throwing,
+     * and {@link #record(String, int, int, boolean, CamcorderProfile)} returns {@code true} once
+     * the recording is requested. A recording that then fails to start is reported to
+     * {@link Callback#onCameraError(CameraView, Throwable)}.</p>
+     *
+     * @param async {@code true} to open the camera asynchronously.
+     */
+    public void setAsyncStart(boolean async) {
+        mAsyncStart = async;
+        mImpl.setAsyncStart(async);
+    }
+
+    /**
+     * @return {@code true} if {@link #start()} opens the camera asynchronously.
+     * @see #setAsyncStart(boolean)
+     */
+    public boolean isAsyncStart() {
+        return mAsyncStart;
     }
 
     /**
@@ -320,6 +441,30 @@ public class CameraView extends FrameLayout {
         mCallbacks.remove(callback);
     }
 
+    /**
+     * Sets the {@link Handler} on which the {@link Callback} methods are invoked. By default, they
+     * are invoked on the main thread.
+     *
+     * <p>Pass {@code null} to invoke them directly on the thread the camera delivers its events
+     * on. On Camera2, this is a background thread, which keeps frame processing off the UI
+     * thread.</p>
+     *
+     * @param handler The handler, or {@code null} for the camera thread.
+     */
+    public void setCallbackHandler(@Nullable Handler handler) {
+        mCallbacks.setHandler(handler);
+    }
+
+    /**
+     * @return The {@link Handler} on which the {@link Callback} methods are invoked, or
+     * {@code null} if they are invoked on the camera thread.
+     * @see #setCallbackHandler(Handler)
+     */
+    @Nullable
+    public Handler getCallbackHandler() {
+        return mCallbacks.getHandler();
+    }
+
     /**
      * @param adjustViewBounds {@code true} if you want the CameraView to adjust its bounds to
      *                         preserve the aspect ratio of camera.
@@ -470,21 +615,499 @@ public class CameraView extends FrameLayout {
         return mImpl.getScanning();
     }
 
+    /**
+     * Limits the rate at which preview frames are delivered while scanning, independently of the
+     * preview frame rate. Frames in between are discarded before they are copied; on Camera1,
+     * the camera buffers are withheld until the next frame is due.
+     *
+     * @param fps The maximum number of frames per second, or 0 to deliver every frame.
+     */
+    public void setScanningFrameRate(int fps) {
+        mImpl.setScanningFrameRate(fps);
+    }
+
+    /**
+     * @return The maximum number of frames per second delivered while scanning, or 0 if every
+     * frame is delivered.
+     */
+    public int getScanningFrameRate() {
+        return mImpl.getScanningFrameRate();
+    }
+
+    /**
+     * Requests a resolution for the frames delivered while scanning, independent of the preview
+     * resolution. The supported YUV size of the current aspect ratio with the closest number of
+     * pixels is used, and the camera downscales the stream without any CPU cost.
+     *
+     * <p>Camera1 delivers the preview frames themselves and ignores this; use
+     * {@link #setScanningMaxWidth(int)} instead.</p>
+     *
+     * @param size The requested resolution, or {@code null} to use the largest preview size.
+     */
+    public void setScanningResolution(@Nullable Size size) {
+        mImpl.setScanningResolution(size);
+    }
+
+    /**
+     * @return The requested resolution of the scanning frames, or {@code null} if none.
+     */
+    @Nullable
+    public Size getScanningResolution() {
+        return mImpl.getScanningResolution();
+    }
+
+    /**
+     * Caps the number of pixels of the frames delivered while scanning. The largest supported
+     * YUV size of the current aspect ratio within the limit is used. This is ignored if a
+     * resolution is requested with {@link #setScanningResolution(Size)}, and on Camera1.
+     *
+     * @param maxPixels The maximum number of pixels, or 0 to use the largest preview size.
+     */
+    public void setScanningMaxPixels(int maxPixels) {
+        mImpl.setScanningMaxPixels(maxPixels);
+    }
+
+    /**
+     * @return The maximum number of pixels of the scanning frames, or 0 if there is no limit.
+     */
+    public int getScanningMaxPixels() {
+        return mImpl.getScanningMaxPixels();
+    }
+
+    /**
+     * Requests a resolution for the pictures, instead of the largest one. The supported picture
+     * size of the current aspect ratio with the closest number of pixels is used. Smaller
+     * pictures are faster to capture, encode and save, which matters for document capture.
+     *
+     * @param size The requested resolution, or {@code null} to use the largest picture size.
+     */
+    public void setPictureResolution(@Nullable Size size) {
+        mImpl.setPictureResolution(size);
+    }
+
+    /**
+     * @return The requested resolution of the pictures, or {@code null} if none.
+     */
+    @Nullable
+    public Size getPictureResolution() {
+        return mImpl.getPictureResolution();
+    }
+
+    /**
+     * Caps the number of pixels of the pictures. The largest supported picture size of the
+     * current aspect ratio within the limit is used, or the smallest one if they are all larger.
+     * This is ignored if a resolution is requested with {@link #setPictureResolution(Size)}.
+     *
+     * @param maxPixels The maximum number of pixels, or 0 to use the largest picture size.
+     */
+    public void setPictureMaxPixels(int maxPixels) {
+        if (maxPixels < 0) {
+            throw new IllegalArgumentException("The pixel count must not be negative: "
+                    + maxPixels);
+        }
+        mImpl.setPictureMaxPixels(maxPixels);
+    }
+
+    /**
+     * @return The maximum number of pixels of the pictures, or 0 if there is no limit.
+     */
+    public int getPictureMaxPixels() {
+        return mImpl.getPictureMaxPixels();
+    }
+
+    /**
+     * Enables zero shutter lag capture. The camera keeps streaming a few full resolution frames,
+     * and {@link #takePicture()} encodes the sharpest recent one whose focus and exposure have
+     * converged instead of running the focus and precapture sequence.
+     *
+     * <p>This needs a Camera2 device with the FULL hardware level, and is suspended while
+     * scanning or recording. Otherwise, or when no recent frame qualifies, pictures are captured
+     * as usual.</p>
+     *
+     * @param zeroShutterLag {@code true} to enable zero shutter lag capture.
+     */
+    public void setZeroShutterLag(boolean zeroShutterLag) {
+        mImpl.setZeroShutterLag(zeroShutterLag);
+    }
+
+    /**
+     * @return {@code true} if zero shutter lag capture is enabled.
+     * @see #setZeroShutterLag(boolean)
+     */
+    public boolean isZeroShutterLag() {
+        return mImpl.isZeroShutterLag();
+    }
+
+    /**
+     * Sets whether pictures are captured unrotated, with their orientation written as an Exif
+     * tag. Many cameras rotate the full resolution image when asked to, which adds a lot of time
+     * to every capture; with this option, the rotation is left to whoever displays the picture.
+     *
+     * @param exifOrientation {@code true} to write the orientation as an Exif tag.
+     */
+    public void setExifOrientation(boolean exifOrientation) {
+        mImpl.setExifOrientation(exifOrientation);
+    }
+
+    /**
+     * @return {@code true} if the orientation of pictures is written as an Exif tag.
+     * @see #setExifOrientation(boolean)
+     */
+    public boolean isExifOrientation() {
+        return mImpl.isExifOrientation();
+    }
+
+    /**
+     * Enables thumbnails of the pictures. Every picture is preceded by its thumbnail, delivered
+     * to {@link Callback#onThumbnailTaken(CameraView, Bitmap)}, so that the full picture never
+     * needs to be decoded for display in a list. The thumbnail the camera embeds into the picture
+     * is used when possible.
+     *
+     * @param maxSize The maximum width and height of the thumbnails, in pixels, or 0 to disable
+     *                them.
+     */
+    public void setThumbnailSize(int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("The thumbnail size must not be negative: "
+                    + maxSize);
+        }
+        mImpl.setThumbnailSize(maxSize);
+    }
+
+    /**
+     * @return The maximum width and height of the thumbnails, in pixels, or 0 if they are
+     * disabled.
+     * @see #setThumbnailSize(int)
+     */
+    public int getThumbnailSize() {
+        return mImpl.getThumbnailSize();
+    }
+
+    /**
+     * Enables fast capture. When continuous auto focus has settled and auto exposure has
+     * converged, pictures are captured right away instead of running a focus sweep and an
+     * exposure precapture sequence first, which shortens the shutter latency of well-lit static
+     * scenes. Pictures that may need the flash always run the full sequence.
+     *
+     * <p>Camera1 only reports whether the focus is moving, so only the focus sweep is skipped.
+     * This requires API level 16 or above.</p>
+     *
+     * @param fastCapture {@code true} to skip the 3A sequences when they have converged.
+     */
+    public void setFastCapture(boolean fastCapture) {
+        mImpl.setFastCapture(fastCapture);
+    }
+
+    /**
+     * @return {@code true} if fast capture is enabled.
+     * @see #setFastCapture(boolean)
+     */
+    public boolean isFastCapture() {
+        return mImpl.isFastCapture();
+    }
+
+    /**
+     * Sets the encoder of the pictures. With an encoder, pictures are captured as YUV frames and
+     * encoded on a background thread, for instance as a small WebP with {@link BitmapEncoder}, or
+     * not encoded at all by an encoder that analyzes the frames and returns {@code null}. The
+     * thumbnails are then decoded from the encoded pictures.
+     *
+     * <p>This only affects Camera2 on devices that can stream YUV at the picture aspect ratio;
+     * Camera1 always captures JPEG. Zero shutter lag pictures and Camera1 video snapshots are
+     * encoded with it too.</p>
+     *
+     * @param encoder The encoder, or {@code null} to let the camera encode the pictures as JPEG.
+     */
+    public void setPictureEncoder(PictureEncoder encoder) {
+        mImpl.setPictureEncoder(encoder);
+    }
+
+    /**
+     * @return The encoder of the pictures, or {@code null} if the camera encodes them.
+     * @see #setPictureEncoder(PictureEncoder)
+     */
+    public PictureEncoder getPictureEncoder() {
+        return mImpl.getPictureEncoder();
+    }
+
+    /**
+     * Sets the maximum number of pictures that can be requested and not yet delivered or saved.
+     * Further requests fail right away with
+     * {@link Callback#onCaptureFailed(CameraView, int, Throwable)}.
+     *
+     * @param size The size of the capture queue.
+     */
+    public void setCaptureQueueSize(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("The capture queue must hold at least one picture: "
+                    + size);
+        }
+        mImpl.setCaptureQueueSize(size);
+    }
+
+    /**
+     * @return The maximum number of pictures that can be pending.
+     * @see #setCaptureQueueSize(int)
+     */
+    public int getCaptureQueueSize() {
+        return mImpl.getCaptureQueueSize();
+    }
+
+    /**
+     * @return The number of pictures requested and not yet delivered, saved or failed.
+     */
+    public int getCaptureQueueDepth() {
+        return mImpl.getCaptureQueueDepth();
+    }
+
+    /**
+     * Limits the preview frames delivered while scanning to a region of interest. The region is
+     * cropped out of every frame into a pooled NV21 frame, and the reported width and height are
+     * those of the region.
+     *
+     * @param region The region as fractions of the frame width and height, in the orientation of
+     *               the camera frames (see {@link Frame#getOrientation()}), or {@code null} for
+     *               the whole frame.
+     * @see #setScanningMaxWidth(int)
+     */
+    public void setScanningRegion(@Nullable RectF region) {
+        if (region == null) {
+            mCallbacks.mFrameCropper.setRegion(0.f, 0.f, 1.f, 1.f);
+        } else {
+            mCallbacks.mFrameCropper.setRegion(region.left, region.top, region.right,
+                    region.bottom);
+        }
+    }
+
+    /**
+     * @return The region of interest of the scanning frames, as fractions of the frame width
+     * and height.
+     */
+    @NonNull
+    public RectF getScanningRegion() {
+        final float[] region = mCallbacks.mFrameCropper.getRegion();
+        return new RectF(region[0], region[1], region[2], region[3]);
+    }
+
+    /**
+     * Downscales the preview frames delivered while scanning, after cropping them to
+     * {@link #setScanningRegion(RectF)}, so that detectors process fewer pixels.
+     *
+     * @param maxWidth The maximum width of the delivered frames, in pixels, or 0 to keep the
+     *                 preview resolution.
+     */
+    public void setScanningMaxWidth(int maxWidth) {
+        mCallbacks.mFrameCropper.setMaxWidth(maxWidth);
+    }
+
+    /**
+     * @return The maximum width of the frames delivered while scanning, or 0 if they are not
+     * downscaled.
+     */
+    public int getScanningMaxWidth() {
+        return mCallbacks.mFrameCropper.getMaxWidth();
+    }
+
+    /**
+     * Keeps a preview frame from being reused by the camera after
+     * {@link Callback#onFramePreview(CameraView, byte[], int, int, int)} returns. This must be
+     * called from within the callback, and every retained frame must be handed back with
+     * {@link #releaseFrame(byte[])} once it is no longer needed.
+     *
+     * <p>This also keeps frames cropped by {@link #setScanningRegion(RectF)} or converted by
+     * {@link #setFrameFormat(int)}. A converted array is handed over and never reused, and
+     * releasing it has no effect.</p>
+     *
+     * @param data The frame data received in
+     *             {@link Callback#onFramePreview(CameraView, byte[], int, int, int)}.
+     * @see #releaseFrame(byte[])
+     */
+    public void retainFrame(@NonNull byte[] data) {
+        if (!mCallbacks.retainFrame(data)) {
+            mImpl.retainFrame(data);
+        }
+    }
+
+    /**
+     * Hands back a preview frame previously kept by {@link #retainFrame(byte[])} so that the
+     * camera can fill it with another frame. This can be called from any thread.
+     *
+     * @param data The frame data passed to {@link #retainFrame(byte[])}.
+     * @see #retainFrame(byte[])
+     */
+    public void releaseFrame(@NonNull byte[] data) {
+        if (mCallbacks.releaseFrame(data)) {
+            return;
+        }
+        mImpl.releaseFrame(data);
+    }
+
+    /**
+     * Sets the layout of the frames delivered to
+     * {@link Callback#onFramePreview(CameraView, byte[], int, int, int)}, so that they are the
+     * same on Camera1 and Camera2.
+     *
+     * <p>Converted frames are written into an array that is reused for the next frame; copy it,
+     * or call {@link #retainFrame(byte[])}, to keep it after the callback returns. NV21 frames
+     * from Camera1 are not converted.</p>
+     *
+     * @param format The frame format. The default is {@link #FRAME_FORMAT_DEFAULT}.
+     */
+    public void setFrameFormat(@FrameFormat int format) {
+        mCallbacks.mFrameFormat = format;
+    }
+
+    /**
+     * @return The layout of the frames delivered as byte arrays.
+     */
+    @FrameFormat
+    public int getFrameFormat() {
+        return mCallbacks.mFrameFormat;
+    }
+
+    /**
+     * Sets how preview frames are dropped when the callbacks take longer than the frame interval.
+     *
+     * @param backpressure The backpressure strategy. The default is {@link #BACKPRESSURE_NONE}.
+     * @see #setFrameBackpressure(int, int)
+     */
+    public void setFrameBackpressure(@Backpressure int backpressure) {
+        setFrameBackpressure(backpressure, 1);
+    }
+
+    /**
+     * Sets how preview frames are dropped when the callbacks take longer than the frame interval.
+     *
+     * <p>Frames waiting for the callbacks are kept from being reused by the camera, which only
+     * has a few buffers; frames the camera has no buffer for are skipped without being counted
+     * as dropped.</p>
+     *
+     * @param backpressure The backpressure strategy.
+     * @param queueSize    The maximum number of waiting frames with {@link #BACKPRESSURE_QUEUE}.
+     */
+    public void setFrameBackpressure(@Backpressure int backpressure, int queueSize) {
+        mCallbacks.mFrameDispatcher.setStrategy(backpressure, queueSize);
+    }
+
+    /**
+     * @return The backpressure strategy for preview frames.
+     */
+    @Backpressure
+    public int getFrameBackpressure() {
+        return mCallbacks.mFrameDispatcher.getStrategy();
+    }
+
+    /**
+     * Sets the {@link Executor} on which {@link Callback#onFrameAvailable(CameraView, Frame)}
+     * and {@link Callback#onFramePreview(CameraView, byte[], int, int, int)} are invoked, one
+     * frame at a time. By default, frames are delivered like the other callbacks, as set by
+     * {@link #setCallbackHandler(Handler)}.
+     *
+     * @param executor The executor, or {@code null} to use the callback handler.
+     */
+    public void setFrameExecutor(@Nullable Executor executor) {
+        mCallbacks.setFrameExecutor(executor);
+    }
+
+    /**
+     * @return The number of preview frames delivered to the callbacks since the last
+     * {@link #resetFrameCounts()}.
+     */
+    public long getDeliveredFrameCount() {
+        return mCallbacks.mFrameDispatcher.getDeliveredCount();
+    }
+
+    /**
+     * @return The number of preview frames dropped by the backpressure strategy since the last
+     * {@link #resetFrameCounts()}.
+     */
+    public long getDroppedFrameCount() {
+        return mCallbacks.mFrameDispatcher.getDroppedCount();
+    }
+
+    /**
+     * Resets the delivered and dropped frame counts.
+     */
+    public void resetFrameCounts() {
+        mCallbacks.mFrameDispatcher.resetCounts();
+    }
+
     /**
      * Take a picture. The result will be returned to
      * {@link Callback#onPictureTaken(CameraView, byte[])}.
+     *
+     * <p>Pictures requested while a picture is being taken are queued, and taken as fast as the
+     * camera allows. Every request ends with either
+     * {@link Callback#onCaptureCompleted(CameraView, int)} or
+     * {@link Callback#onCaptureFailed(CameraView, int, Throwable)}.</p>
+     *
+     * <p>While recording, pictures are video snapshots that do not interrupt the recording:
+     * Camera2 captures them alongside the video frames, at most at the video size, and Camera1
+     * encodes the next preview frame on a background thread.</p>
+     *
+     * @see #requestPicture()
+     * @see #setCaptureQueueSize(int)
      */
     public void takePicture() {
         mImpl.takePicture();
     }
 
+    /**
+     * Take a picture as {@link #takePicture()}, and return the ID of its request, which the
+     * capture callbacks report.
+     *
+     * @return The ID of the request.
+     */
+    public int requestPicture() {
+        return mImpl.takePicture();
+    }
+
+    /**
+     * Take a picture and save it to the {@code file}. The JPEG data is written straight from the
+     * camera buffer on a background thread, and never delivered to
+     * {@link Callback#onPictureTaken(CameraView, byte[])}. The result will be returned to
+     * {@link Callback#onPictureSaved(CameraView, File, long)}, or to
+     * {@link Callback#onCaptureFailed(CameraView, int, Throwable)} if the file cannot be written.
+     *
+     * @param file The file to write the picture to. It is replaced if it exists.
+     * @return The ID of the request.
+     */
+    public int takePicture(File file) {
+        if (file == null) {
+            throw new NullPointerException("file == null");
+        }
+        return mImpl.takePicture(file);
+    }
+
+    /**
+     * Take a burst of pictures. Each picture will be returned to
+     * {@link Callback#onPictureTaken(CameraView, byte[])} as soon as it is ready, in order.
+     *
+     * <p>On Camera2 the pictures are captured back to back without stopping the preview. The flash
+     * is not fired during a burst, although the torch stays on.</p>
+     *
+     * @param count The number of pictures to take.
+     * @return The ID of the request of the first picture; the other pictures have the following
+     * IDs.
+     */
+    public int takePictureBurst(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("The burst must have at least one picture: "
+                    + count);
+        }
+        return mImpl.takePictureBurst(count);
+    }
+
     /**
      * Record a video and save it to file. The result will be returned to
      * {@link Callback#onVideoRecorded(CameraView, String)}.
      *
+     * <p>With {@link #setSegmentedRecording(boolean)}, the recording rolls over to a new file
+     * when it approaches {@code maxFileSize}, from Android 8.0.</p>
+     *
      * @param path        Path to file that video will be saved to.
-     * @param maxDuration Maximum duration of the recording, in seconds.
-     * @param maxFileSize Maximum recording file size, in bytes.
+     * @param maxDuration Maximum duration of the recording, in milliseconds, or -1.
+     * @param maxFileSize Maximum recording file size, in bytes, or -1.
      * @param profile     Quality profile of the recording.
      */
     public boolean record(String path, int maxDuration, int maxFileSize,
@@ -492,10 +1115,127 @@ public class CameraView extends FrameLayout {
         return mImpl.record(path, maxDuration, maxFileSize, recordAudio, profile);
     }
 
+    /**
+     * Record a video with {@code MediaCodec} and {@code MediaMuxer} instead of
+     * {@code MediaRecorder}, for control over the encoder. The result will be returned to
+     * {@link Callback#onVideoRecorded(CameraView, String)}.
+     *
+     * <p>The video has no audio track. This requires the Camera2 API; with the older camera API
+     * the recording does not start.</p>
+     *
+     * @param path    Path to file that video will be saved to.
+     * @param options The encoder settings.
+     * @return {@code true} if the recording started.
+     */
+    public boolean record(String path, @NonNull VideoEncoderOptions options) {
+        return mImpl.record(path, options, -1, -1);
+    }
+
+    /**
+     * Record a video with {@code MediaCodec} and {@code MediaMuxer}, up to a maximum duration or
+     * file size, as {@link #record(String, VideoEncoderOptions)}.
+     *
+     * <p>With {@link #setSegmentedRecording(boolean)}, the recording rolls over to a new file at
+     * the first key frame once it reaches {@code maxDuration} or approaches
+     * {@code maxFileSize}, so segments can be slightly longer than {@code maxDuration}.</p>
+     *
+     * @param path        Path to file that video will be saved to.
+     * @param options     The encoder settings.
+     * @param maxDuration Maximum duration of the recording, in milliseconds, or -1.
+     * @param maxFileSize Maximum recording file size, in bytes, or -1.
+     * @return {@code true} if the recording started.
+     */
+    public boolean record(String path, @NonNull VideoEncoderOptions options, int maxDuration,
+            int maxFileSize) {
+        return mImpl.record(path, options, maxDuration, maxFileSize);
+    }
+
+    /**
+     * Sets whether recordings continue into a new file when they reach their maximum duration or
+     * file size, instead of stopping. No frame is lost between the files. Each file is reported
+     * to {@link Callback#onVideoSegmentRecorded(CameraView, String)} as soon as it is complete,
+     * and the last one to {@link Callback#onVideoRecorded(CameraView, String)} as well.
+     *
+     * <p>The first file is the path passed to {@code record}; the following ones have
+     * {@code _1}, {@code _2} and so on before its extension. Recordings with
+     * {@code MediaRecorder} only roll over on the file size, from Android 8.0; otherwise they
+     * stop at the limits.</p>
+     *
+     * @param segmented {@code true} to record in segments.
+     */
+    public void setSegmentedRecording(boolean segmented) {
+        mImpl.setSegmentedRecording(segmented);
+    }
+
+    public boolean isSegmentedRecording() {
+        return mImpl.isSegmentedRecording();
+    }
+
+    /**
+     * Keeps a video encoder ready in the capture session, so that recordings start and stop
+     * without reconfiguring the camera: the preview goes on and keeps its focus and exposure.
+     *
+     * <p>{@link #record(String, VideoEncoderOptions)} with equal options, and
+     * {@link #record(String, int, int, boolean, CamcorderProfile)} with a profile of the same
+     * video size, then only add the encoder to the frames the camera streams to. The capture
+     * session has more streams, which may lower the preview frame rate on some devices, and the
+     * zero shutter lag frames are not kept. This requires the Camera2 API on Android 6.0 or
+     * later, and is ignored otherwise.</p>
+     *
+     * @param options The settings of the recordings to start quickly, or {@code null} to stop
+     *                keeping an encoder ready.
+     */
+    public void setVideoStandby(@Nullable VideoEncoderOptions options) {
+        mImpl.setVideoStandby(options);
+    }
+
+    @Nullable
+    public VideoEncoderOptions getVideoStandby() {
+        return mImpl.getVideoStandby();
+    }
+
+    /**
+     * Starts encoding the preview into memory, keeping only the latest video, so that a later
+     * {@link #record(String, VideoEncoderOptions, int, int)} with equal options starts with the
+     * video from before it was called.
+     *
+     * <p>The video is kept from key frame to key frame: at least {@code maxDuration} of it, as
+     * long as it fits into {@code maxBytes}. A key frame interval well below
+     * {@code maxDuration} keeps the memory close to that. {@code record} with other options
+     * discards the pre-roll and records from then on. The pre-roll does not resume after the
+     * recording. This requires the Camera2 API; with the older camera API the pre-roll does not
+     * start.</p>
+     *
+     * @param options     The encoder settings.
+     * @param maxDuration The duration of video to keep, in milliseconds.
+     * @param maxBytes    The maximum size of the video kept in memory, in bytes.
+     * @return {@code true} if the pre-roll started.
+     */
+    public boolean startPreRoll(@NonNull VideoEncoderOptions options, int maxDuration,
+            int maxBytes) {
+        return mImpl.startPreRoll(options, maxDuration, maxBytes);
+    }
+
+    public boolean isPreRolling() {
+        return mImpl.isPreRolling();
+    }
+
+    /**
+     * Stops the pre-roll and discards its video.
+     */
+    public void stopPreRoll() {
+        mImpl.stopPreRoll();
+    }
+
     public boolean isRecording() {
         return mImpl.isRecording();
     }
 
+    /**
+     * Stops the recording without waiting for the file to be finalized, which can take more than
+     * a second on some devices. The preview resumes right away, and the video is reported to
+     * {@link Callback#onVideoRecorded(CameraView, String)} once the file is complete.
+     */
     public void stopRecording() {
         mImpl.stopRecording();
     }
@@ -510,65 +1250,346 @@ public class CameraView extends FrameLayout {
 
     private class CallbackBridge implements CameraViewImpl.Callback {
 
-        private final ArrayList<Callback> mCallbacks = new ArrayList<>();
+        private final CopyOnWriteArrayList<Callback> mCallbacks = new CopyOnWriteArrayList<>();
+
+        /**
+         * The callbacks that still receive frames as byte arrays, which may need a copy.
+         */
+        private final CopyOnWriteArrayList<Callback> mByteArrayCallbacks
+                = new CopyOnWriteArrayList<>();
+
+        private volatile Handler mHandler = new Handler(Looper.getMainLooper());
+
+        private volatile boolean mRequestLayoutOnOpen;
 
-        private boolean mRequestLayoutOnOpen;
+        volatile int mFrameFormat = FRAME_FORMAT_DEFAULT;
+
+        private final YuvPacker mPacker = new YuvPacker();
+
+        /**
+         * The byte array frames are converted into; only touched by the frame consumer.
+         */
+        private byte[] mPackedData;
+
+        /**
+         * The frame being delivered to
+         * {@link Callback#onFramePreview(CameraView, byte[], int, int, int)}, and the array it is
+         * delivered as, or {@code null}. Only touched by the frame consumer.
+         */
+        private Frame mPreviewFrame;
+
+        private byte[] mPreviewData;
+
+        /**
+         * The frames kept by {@link #retainFrame(byte[])}, by the array they were delivered as.
+         */
+        private final IdentityHashMap<byte[], Frame> mRetainedFrames = new IdentityHashMap<>();
+
+        final FrameCropper mFrameCropper = new FrameCropper();
+
+        final FrameDispatcher mFrameDispatcher = new FrameDispatcher(
+                new FrameDispatcher.Consumer() {
+                    @Override
+                    public void onFrame(Frame frame) {
+                        deliverFrame(frame);
+                    }
+                });
+
+        /**
+         * Runs the frame consumer like the other callbacks, as set by {@link #setHandler(Handler)}.
+         */
+        private final Executor mHandlerExecutor = new Executor() {
+            @Override
+            public void execute(@NonNull Runnable command) {
+                dispatch(command);
+            }
+        };
+
+        private final Runnable mRequestLayoutRunnable = new Runnable() {
+            @Override
+            public void run() {
+                requestLayout();
+            }
+        };
 
         CallbackBridge() {
+            mFrameDispatcher.setExecutor(mHandlerExecutor);
         }
 
         public void add(Callback callback) {
             mCallbacks.add(callback);
+            if (overridesFramePreview(callback)) {
+                mByteArrayCallbacks.add(callback);
+            }
         }
 
         public void remove(Callback callback) {
             mCallbacks.remove(callback);
+            mByteArrayCallbacks.remove(callback);
+        }
+
+        public void setHandler(Handler handler) {
+            mHandler = handler;
+        }
+
+        public Handler getHandler() {
+            return mHandler;
+        }
+
+        public void setFrameExecutor(Executor executor) {
+            mFrameDispatcher.setExecutor(executor != null ? executor : mHandlerExecutor);
+        }
+
+        private boolean overridesFramePreview(Callback callback) {
+            try {
+                return callback.getClass().getMethod("onFramePreview", CameraView.class,
+                        byte[].class, int.class, int.class, int.class).getDeclaringClass()
+                        != Callback.class;
+            } catch (NoSuchMethodException e) {
+                return true;
+            }
+        }
+
+        /**
+         * Runs the {@code runnable} on {@link #mHandler}, or right away if there is no handler or
+         * this is already its thread.
+         */
+        private void dispatch(Runnable runnable) {
+            final Handler handler = mHandler;
+            if (handler == null || handler.getLooper() == Looper.myLooper()) {
+                runnable.run();
+            } else {
+                handler.post(runnable);
+            }
         }
 
         @Override
         public void onCameraOpened() {
             if (mRequestLayoutOnOpen) {
                 mRequestLayoutOnOpen = false;
-                requestLayout();
-            }
-            for (Callback callback : mCallbacks) {
-                callback.onCameraOpened(CameraView.this);
+                if (Looper.myLooper() == Looper.getMainLooper()) {
+                    requestLayout();
+                } else {
+                    post(mRequestLayoutRunnable);
+                }
             }
+            dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    for (Callback callback : mCallbacks) {
+                        callback.onCameraOpened(CameraView.this);
+                    }
+                }
+            });
         }
 
         @Override
         public void onCameraClosed() {
-            for (Callback callback : mCallbacks) {
-                callback.onCameraClosed(CameraView.this);
-            }
+            dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    for (Callback callback : mCallbacks) {
+                        callback.onCameraClosed(CameraView.this);
+                    }
+                }
+            });
         }
 
         @Override
-        public void onPictureTaken(byte[] data) {
-            for (Callback callback : mCallbacks) {
-                callback.onPictureTaken(CameraView.this, data);
-            }
+        public void onPictureTaken(final byte[] data) {
+            dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    for (Callback callback : mCallbacks) {
+                        callback.onPictureTaken(CameraView.this, data);
+                    }
+                }
+            });
         }
 
         @Override
-        public void onVideoRecorded(String path) {
-            for (Callback callback : mCallbacks) {
-                callback.onVideoRecorded(CameraView.this, path);
-            }
+        public void onPictureSaved(final File file, final long elapsedMillis) {
+            dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    for (Callback callback : mCallbacks) {
+                        callback.onPictureSaved(CameraView.this, file, elapsedMillis);
+                    }
+                }
+            });
         }
 
         @Override
-        public void onFramePreview(byte[] data, int width, int height, int orientation) {
-            for (Callback callback : mCallbacks) {
-                callback.onFramePreview(CameraView.this, data, width, height, orientation);
-            }
+        public void onThumbnailTaken(final Bitmap thumbnail) {
+            dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    for (Callback callback : mCallbacks) {
+                        callback.onThumbnailTaken(CameraView.this, thumbnail);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onCaptureCompleted(final int requestId) {
+            dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    for (Callback callback : mCallbacks) {
+                        callback.onCaptureCompleted(CameraView.this, requestId);
+                    }
+                }
+            });
         }
 
         @Override
-        public void onCameraError(Throwable cause) {
+        public void onCaptureFailed(final int requestId, final Throwable cause) {
+            dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    for (Callback callback : mCallbacks) {
+                        callback.onCaptureFailed(CameraView.this, requestId, cause);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onCaptureQueueChanged(final int depth, final float throughput) {
+            dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    for (Callback callback : mCallbacks) {
+                        callback.onCaptureQueueChanged(CameraView.this, depth, throughput);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onVideoRecorded(final String path) {
+            dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    for (Callback callback : mCallbacks) {
+                        callback.onVideoRecorded(CameraView.this, path);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onVideoSegmentRecorded(final String path) {
+            dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    for (Callback callback : mCallbacks) {
+                        callback.onVideoSegmentRecorded(CameraView.this, path);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onFrameAvailable(Frame frame) {
+            if (!mFrameCropper.isEnabled()) {
+                mFrameDispatcher.dispatch(frame);
+                return;
+            }
+            // The camera buffer is returned right away; only the cropped copy waits
+            final Frame cropped = mFrameCropper.crop(frame);
+            if (cropped == null) {
+                mFrameDispatcher.countDropped();
+                return;
+            }
+            mFrameDispatcher.dispatch(cropped);
+            cropped.close();
+        }
+
+        private void deliverFrame(Frame frame) {
             for (Callback callback : mCallbacks) {
-                callback.onCameraError(CameraView.this, cause);
+                callback.onFrameAvailable(CameraView.this, frame);
+            }
+            if (mByteArrayCallbacks.isEmpty()) {
+                return;
+            }
+            final byte[] data = getFrameData(frame);
+            mPreviewFrame = frame;
+            mPreviewData = data;
+            try {
+                for (Callback callback : mByteArrayCallbacks) {
+                    callback.onFramePreview(CameraView.this, data, frame.getWidth(),
+                            frame.getHeight(), frame.getOrientation());
+                }
+            } finally {
+                mPreviewFrame = null;
+                mPreviewData = null;
+            }
+        }
+
+        /**
+         * Keeps the {@code data} being delivered from being reused. A packed array is handed over
+         * to the caller, and the frame backing any other array is retained.
+         *
+         * @return {@code false} if the {@code data} is not being delivered.
+         */
+        boolean retainFrame(byte[] data) {
+            if (data != mPreviewData) {
+                return false;
+            }
+            if (data == mPackedData) {
+                // The next frame is packed into a new array
+                mPackedData = null;
+                return true;
+            }
+            if (mPreviewFrame instanceof ByteArrayFrame) {
+                // The array is the buffer of the frame, which may be pooled
+                mPreviewFrame.retain();
+                synchronized (mRetainedFrames) {
+                    mRetainedFrames.put(data, mPreviewFrame);
+                }
+            }
+            // Otherwise the array is a copy that nothing reuses
+            return true;
+        }
+
+        /**
+         * @return {@code false} if the {@code data} was not retained by
+         * {@link #retainFrame(byte[])}.
+         */
+        boolean releaseFrame(byte[] data) {
+            final Frame frame;
+            synchronized (mRetainedFrames) {
+                frame = mRetainedFrames.remove(data);
+            }
+            if (frame == null) {
+                return false;
+            }
+            frame.close();
+            return true;
+        }
+
+        private byte[] getFrameData(Frame frame) {
+            final int format = mFrameFormat;
+            if (format == FRAME_FORMAT_DEFAULT
+                    || (format == FRAME_FORMAT_NV21 && frame.getFormat() == ImageFormat.NV21)) {
+                return frame.getData();
             }
+            mPackedData = mPacker.pack(frame, format, mPackedData);
+            return mPackedData;
+        }
+
+        @Override
+        public void onCameraError(final Throwable cause) {
+            dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    for (Callback callback : mCallbacks) {
+                        callback.onCameraError(CameraView.this, cause);
+                    }
+                }
+            });
         }
 
         public void reserveRequestLayoutOnOpen() {
@@ -674,6 +1695,60 @@ public class CameraView extends FrameLayout {
         public void onPictureTaken(CameraView cameraView, byte[] data) {
         }
 
+        /**
+         * Called when a picture requested with {@link CameraView#takePicture(File)} is saved.
+         *
+         * @param cameraView    The associated {@link CameraView}.
+         * @param file          The file the picture was written to.
+         * @param elapsedMillis The time from the request to the end of the write, in
+         *                      milliseconds.
+         */
+        public void onPictureSaved(CameraView cameraView, File file, long elapsedMillis) {
+        }
+
+        /**
+         * Called right before a picture is delivered or saved, with its thumbnail. Only called
+         * if thumbnails are enabled with {@link CameraView#setThumbnailSize(int)}.
+         *
+         * @param cameraView The associated {@link CameraView}.
+         * @param thumbnail  The thumbnail, rotated upright.
+         */
+        public void onThumbnailTaken(CameraView cameraView, Bitmap thumbnail) {
+        }
+
+        /**
+         * Called when a picture request is complete, after its picture is delivered to
+         * {@link #onPictureTaken(CameraView, byte[])} or saved.
+         *
+         * @param cameraView The associated {@link CameraView}.
+         * @param requestId  The ID returned when the picture was requested.
+         */
+        public void onCaptureCompleted(CameraView cameraView, int requestId) {
+        }
+
+        /**
+         * Called when a picture request fails, for instance because the capture queue is full or
+         * the camera is stopped.
+         *
+         * @param cameraView The associated {@link CameraView}.
+         * @param requestId  The ID returned when the picture was requested.
+         * @param cause      The reason of the failure.
+         */
+        public void onCaptureFailed(CameraView cameraView, int requestId, Throwable cause) {
+        }
+
+        /**
+         * Called when a picture request is queued or leaves the queue.
+         *
+         * @param cameraView The associated {@link CameraView}.
+         * @param depth      The number of pictures requested and not yet delivered, saved or
+         *                   failed.
+         * @param throughput The number of pictures taken per second over the last few pictures,
+         *                   or 0 if unknown.
+         */
+        public void onCaptureQueueChanged(CameraView cameraView, int depth, float throughput) {
+        }
+
         /**
          * Called when a video is recorded.
          *
@@ -683,6 +1758,46 @@ public class CameraView extends FrameLayout {
         public void onVideoRecorded(CameraView cameraView, String path) {
         }
 
+        /**
+         * Called when a file of a segmented recording is complete, while the recording goes on
+         * into the next file. The last file is reported here too, before
+         * {@link #onVideoRecorded(CameraView, String)}.
+         *
+         * @param cameraView The associated {@link CameraView}.
+         * @param path       Path to the complete file.
+         * @see #setSegmentedRecording(boolean)
+         */
+        public void onVideoSegmentRecorded(CameraView cameraView, String path) {
+        }
+
+        /**
+         * Called when a preview frame is available while scanning.
+         *
+         * <p>The {@code frame} wraps the camera buffers without copying them, and is closed as
+         * soon as this method returns. Call {@link Frame#retain()} to keep it for longer, and
+         * {@link Frame#close()} it once it is no longer needed.</p>
+         *
+         * @param cameraView The associated {@link CameraView}.
+         * @param frame      The frame.
+         */
+        public void onFrameAvailable(CameraView cameraView, Frame frame) {
+        }
+
+        /**
+         * Called when a preview frame is available while scanning.
+         *
+         * <p>Prefer {@link #onFrameAvailable(CameraView, Frame)}; on Camera2 the frame data is
+         * copied into a new array for this method.</p>
+         *
+         * <p>The {@code data} may be reused for another frame as soon as this method returns.
+         * Call {@link CameraView#retainFrame(byte[])} to keep it for longer.</p>
+         *
+         * @param cameraView  The associated {@link CameraView}.
+         * @param data        Frame data.
+         * @param width       Width of the frame, in pixels.
+         * @param height      Height of the frame, in pixels.
+         * @param orientation The display orientation, in degrees.
+         */
         public void onFramePreview(CameraView cameraView, byte[] data, int width, int height,
                                    int orientation) {
         }
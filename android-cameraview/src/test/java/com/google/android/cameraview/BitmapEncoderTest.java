@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.cameraview;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class BitmapEncoderTest {
+
+    @Test
+    public void testToArgb_gray() {
+        byte[] nv21 = new byte[YuvPacker.getPackedSize(4, 2)];
+        Arrays.fill(nv21, (byte) 128);
+        int[] argb = new int[8];
+        BitmapEncoder.toArgb(nv21, 4, 2, 1, argb);
+        for (int pixel : argb) {
+            assertThat(pixel, is(0xff808080));
+        }
+    }
+
+    @Test
+    public void testToArgb_colors() {
+        // Two 2x2 blocks: red and blue
+        byte[] nv21 = new byte[YuvPacker.getPackedSize(4, 2)];
+        Arrays.fill(nv21, 0, 8, (byte) 128);
+        nv21[8] = (byte) 255; // V
+        nv21[9] = (byte) 128; // U
+        nv21[10] = (byte) 128; // V
+        nv21[11] = (byte) 255; // U
+        int[] argb = new int[8];
+        BitmapEncoder.toArgb(nv21, 4, 2, 1, argb);
+        assertThat(argb[0] >> 16 & 0xff, is(255));
+        assertThat(argb[0] & 0xff, is(128));
+        assertThat(argb[6] >> 16 & 0xff, is(128));
+        assertThat(argb[7] & 0xff, is(255));
+    }
+
+    @Test
+    public void testToArgb_sampled() {
+        byte[] nv21 = new byte[YuvPacker.getPackedSize(8, 4)];
+        Arrays.fill(nv21, (byte) 128);
+        // The top left pixel of every 2x2 block is kept
+        nv21[2] = (byte) 200;
+        nv21[3] = (byte) 10;
+        int[] argb = new int[8];
+        BitmapEncoder.toArgb(nv21, 8, 4, 2, argb);
+        assertThat(argb[1], is(0xffc8c8c8));
+        assertThat(argb[2], is(0xff808080));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testQuality() {
+        new JpegEncoder(101);
+    }
+
+}
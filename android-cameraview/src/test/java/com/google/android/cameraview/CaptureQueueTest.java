@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.cameraview;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+
+public class CaptureQueueTest {
+
+    @Test
+    public void testOffer_full() {
+        CaptureQueue queue = new CaptureQueue(2);
+        assertThat(queue.offer(queue.create(null)), is(true));
+        assertThat(queue.offer(queue.create(null)), is(true));
+        assertThat(queue.offer(queue.create(null)), is(false));
+        assertThat(queue.size(), is(2));
+    }
+
+    @Test
+    public void testCreate_ids() {
+        CaptureQueue queue = new CaptureQueue(2);
+        File file = new File("picture.jpg");
+        CaptureQueue.Request first = queue.create(file);
+        CaptureQueue.Request second = queue.create(null);
+        assertThat(second.getId(), is(first.getId() + 1));
+        assertThat(first.getFile(), is(file));
+        assertThat(second.getFile(), is(nullValue()));
+    }
+
+    @Test
+    public void testNextPending() {
+        CaptureQueue queue = new CaptureQueue(4);
+        CaptureQueue.Request first = queue.create(null);
+        CaptureQueue.Request second = queue.create(null);
+        queue.offer(first);
+        queue.offer(second);
+        assertThat(queue.nextPending(), is(first));
+        assertThat(queue.hasPending(), is(true));
+        assertThat(queue.nextPending(), is(second));
+        assertThat(queue.hasPending(), is(false));
+        assertThat(queue.nextPending(), is(nullValue()));
+        // Submitted requests stay in the queue until they complete
+        assertThat(queue.size(), is(2));
+        assertThat(queue.find(second.getId()), is(second));
+    }
+
+    @Test
+    public void testComplete() {
+        CaptureQueue queue = new CaptureQueue(4);
+        CaptureQueue.Request request = queue.create(null);
+        queue.offer(request);
+        assertThat(queue.complete(request, 0), is(true));
+        assertThat(queue.size(), is(0));
+        assertThat(queue.complete(request, 0), is(false));
+        assertThat(queue.remove(request), is(false));
+    }
+
+    @Test
+    public void testGetThroughput() {
+        CaptureQueue queue = new CaptureQueue(4);
+        assertThat(queue.getThroughput(), is(0.f));
+        for (int i = 0; i < 5; i++) {
+            CaptureQueue.Request request = queue.create(null);
+            queue.offer(request);
+            // One picture every 250ms
+            queue.complete(request, i * 250000000L);
+        }
+        assertThat(queue.getThroughput(), is(4.f));
+    }
+
+    @Test
+    public void testGetThroughput_window() {
+        CaptureQueue queue = new CaptureQueue(4);
+        for (int i = 0; i < 20; i++) {
+            CaptureQueue.Request request = queue.create(null);
+            queue.offer(request);
+            // Slow at first, then one picture every 100ms
+            queue.complete(request, i < 10 ? i * 1000000000L : 9000000000L + (i - 9) * 100000000L);
+        }
+        assertThat(queue.getThroughput(), is(10.f));
+    }
+
+    @Test
+    public void testClear_keepsCaptured() {
+        CaptureQueue queue = new CaptureQueue(4);
+        CaptureQueue.Request captured = queue.create(null);
+        CaptureQueue.Request waiting = queue.create(null);
+        queue.offer(captured);
+        queue.offer(waiting);
+        queue.nextPending();
+        queue.captured(captured);
+        List<CaptureQueue.Request> cleared = queue.clear();
+        assertThat(cleared.size(), is(1));
+        assertThat(cleared.get(0), is(waiting));
+        assertThat(queue.size(), is(1));
+        assertThat(queue.complete(captured, 0), is(true));
+    }
+
+}
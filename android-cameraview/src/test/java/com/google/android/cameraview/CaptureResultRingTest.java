@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.cameraview;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class CaptureResultRingTest {
+
+    @Test
+    public void testGet() {
+        CaptureResultRing ring = new CaptureResultRing(2);
+        ring.put(100L, 10L, 200, 2, 3);
+        FrameMetadata metadata = new FrameMetadata();
+        assertThat(ring.get(100L, metadata), is(true));
+        assertThat(metadata.getExposureTime(), is(10L));
+        assertThat(metadata.getSensitivity(), is(200));
+        assertThat(metadata.getFocusState(), is(2));
+        assertThat(metadata.getExposureState(), is(3));
+    }
+
+    @Test
+    public void testGet_missing() {
+        CaptureResultRing ring = new CaptureResultRing(2);
+        FrameMetadata metadata = new FrameMetadata();
+        assertThat(ring.get(100L, metadata), is(false));
+        assertThat(metadata.getExposureTime(), is((long) FrameMetadata.UNKNOWN));
+    }
+
+    @Test
+    public void testPut_replacesOldest() {
+        CaptureResultRing ring = new CaptureResultRing(2);
+        ring.put(1L, 1L, 1, 1, 1);
+        ring.put(2L, 2L, 2, 2, 2);
+        ring.put(3L, 3L, 3, 3, 3);
+        FrameMetadata metadata = new FrameMetadata();
+        assertThat(ring.get(1L, metadata), is(false));
+        assertThat(ring.get(2L, metadata), is(true));
+        assertThat(ring.get(3L, metadata), is(true));
+        ring.clear();
+        assertThat(ring.get(3L, metadata), is(false));
+    }
+
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.cameraview;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class ExifTest {
+
+    private static final byte[] BARE_JPEG = {
+            (byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xDA, 0, 2, (byte) 0xFF, (byte) 0xD9};
+
+    @Test
+    public void testToExifOrientation() {
+        assertThat(Exif.toExifOrientation(0), is(1));
+        assertThat(Exif.toExifOrientation(90), is(6));
+        assertThat(Exif.toExifOrientation(180), is(3));
+        assertThat(Exif.toExifOrientation(270), is(8));
+        assertThat(Exif.toExifOrientation(-90), is(8));
+    }
+
+    @Test
+    public void testApply_insertsSegment() {
+        byte[] jpeg = Exif.applyOrientation(BARE_JPEG.clone(), 90);
+        assertThat(jpeg.length, is(BARE_JPEG.length + 36));
+        assertThat(jpeg[2] & 0xFF, is(0xFF));
+        assertThat(jpeg[3] & 0xFF, is(0xE1));
+        // The value of the single IFD entry
+        assertThat(jpeg[2 + 4 + 6 + 8 + 2 + 8 + 1] & 0xFF, is(6));
+        // The rest of the image follows the new segment
+        assertThat(jpeg[38] & 0xFF, is(0xFF));
+        assertThat(jpeg[39] & 0xFF, is(0xDA));
+        // Inserted segments are patched in place afterwards
+        assertThat(Exif.applyOrientation(jpeg, 180), is(sameInstance(jpeg)));
+        assertThat(jpeg[2 + 4 + 6 + 8 + 2 + 8 + 1] & 0xFF, is(3));
+    }
+
+    @Test
+    public void testPatch_littleEndian() {
+        byte[] jpeg = {
+                (byte) 0xFF, (byte) 0xD8,
+                (byte) 0xFF, (byte) 0xE1, 0, 34,
+                'E', 'x', 'i', 'f', 0, 0,
+                'I', 'I', 42, 0, 8, 0, 0, 0,
+                1, 0,
+                0x12, 0x01, 3, 0, 1, 0, 0, 0, 1, 0, 0, 0,
+                0, 0, 0, 0,
+                (byte) 0xFF, (byte) 0xD9};
+        assertThat(Exif.patchOrientation(jpeg, 270), is(true));
+        assertThat(jpeg[30] & 0xFF, is(8));
+        assertThat(jpeg[31] & 0xFF, is(0));
+    }
+
+    @Test
+    public void testApply_buffer() {
+        byte[] exif = Exif.applyOrientation(BARE_JPEG.clone(), 0);
+        byte[] data = new byte[3 + exif.length];
+        System.arraycopy(exif, 0, data, 3, exif.length);
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        buffer.position(3);
+        assertThat(Exif.applyOrientation(buffer, 90), is(sameInstance(buffer)));
+        assertThat(buffer.position(), is(3));
+        assertThat(data[3 + 31] & 0xFF, is(6));
+    }
+
+    @Test
+    public void testApply_readOnlyBuffer() {
+        byte[] exif = Exif.applyOrientation(BARE_JPEG.clone(), 0);
+        ByteBuffer buffer = ByteBuffer.wrap(exif).asReadOnlyBuffer();
+        ByteBuffer result = Exif.applyOrientation(buffer, 270);
+        assertThat(result.remaining(), is(exif.length));
+        assertThat(result.get(31) & 0xFF, is(8));
+        // The original is untouched
+        assertThat(exif[31] & 0xFF, is(1));
+    }
+
+    @Test
+    public void testGetRotation() {
+        assertThat(Exif.getRotation(ByteBuffer.wrap(withThumbnail())), is(90));
+        assertThat(Exif.getRotation(ByteBuffer.wrap(BARE_JPEG)), is(0));
+    }
+
+    @Test
+    public void testFindThumbnail() {
+        int[] range = new int[2];
+        assertThat(Exif.findThumbnail(ByteBuffer.wrap(withThumbnail()), range), is(true));
+        // SOI, APP1 marker and length, Exif header, then the thumbnail at 56 in the TIFF
+        assertThat(range[0], is(2 + 4 + 6 + 56));
+        assertThat(range[1], is(4));
+        assertThat(Exif.findThumbnail(ByteBuffer.wrap(BARE_JPEG), range), is(false));
+    }
+
+    @Test
+    public void testPatch_noExif() {
+        assertThat(Exif.patchOrientation(BARE_JPEG.clone(), 90), is(false));
+    }
+
+    /**
+     * A big endian Exif segment with the orientation 6 in IFD0, and a 4 byte thumbnail in IFD1.
+     */
+    private static byte[] withThumbnail() {
+        return new byte[]{
+                (byte) 0xFF, (byte) 0xD8,
+                (byte) 0xFF, (byte) 0xE1, 0, 68,
+                'E', 'x', 'i', 'f', 0, 0,
+                'M', 'M', 0, 42, 0, 0, 0, 8,
+                // IFD0 at 8
+                0, 1,
+                0x01, 0x12, 0, 3, 0, 0, 0, 1, 0, 6, 0, 0,
+                0, 0, 0, 26,
+                // IFD1 at 26
+                0, 2,
+                0x02, 0x01, 0, 4, 0, 0, 0, 1, 0, 0, 0, 56,
+                0x02, 0x02, 0, 4, 0, 0, 0, 1, 0, 0, 0, 4,
+                0, 0, 0, 0,
+                // The thumbnail at 56
+                (byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xD9,
+                (byte) 0xFF, (byte) 0xDA, 0, 2, (byte) 0xFF, (byte) 0xD9};
+    }
+
+}
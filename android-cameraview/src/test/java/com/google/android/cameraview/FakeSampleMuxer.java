@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.cameraview;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link SampleMuxer} that records the presentation times of the samples written.
+ */
+class FakeSampleMuxer implements SampleMuxer<String> {
+
+    final List<String> mTracks = new ArrayList<>();
+
+    final List<Long> mSamples = new ArrayList<>();
+
+    final List<Integer> mFlags = new ArrayList<>();
+
+    boolean mStarted;
+
+    boolean mStopped;
+
+    boolean mReleased;
+
+    @Override
+    public int addTrack(String format) {
+        if (mStarted) {
+            throw new IllegalStateException("The muxer is started.");
+        }
+        mTracks.add(format);
+        return mTracks.size() - 1;
+    }
+
+    @Override
+    public void start() {
+        mStarted = true;
+    }
+
+    @Override
+    public void writeSampleData(int track, EncodedSample sample) {
+        if (!mStarted || mStopped) {
+            throw new IllegalStateException("The muxer is not started.");
+        }
+        if (track < 0 || track >= mTracks.size()) {
+            throw new IllegalArgumentException("No track " + track);
+        }
+        // The data of the fake samples is their presentation time
+        mSamples.add(sample.getData().getLong(sample.getData().position()));
+        mFlags.add(sample.getFlags());
+    }
+
+    @Override
+    public void stop() throws IOException {
+        if (!mStarted) {
+            throw new IOException("The muxer is not started.");
+        }
+        mStopped = true;
+    }
+
+    @Override
+    public void release() {
+        mReleased = true;
+    }
+
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.cameraview;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link VideoEncoder} that outputs scripted samples, whose data is their presentation time.
+ */
+class FakeVideoEncoder implements VideoEncoder<String> {
+
+    static final String FORMAT = "video/fake";
+
+    private final ArrayDeque<Object> mOutputs = new ArrayDeque<>();
+
+    private final List<Integer> mDequeued = new ArrayList<>();
+
+    private int mNextIndex;
+
+    boolean mStarted;
+
+    boolean mEndOfInputStream;
+
+    int mKeyFrameRequests;
+
+    boolean mReleased;
+
+    FakeVideoEncoder formatChanged() {
+        mOutputs.add(FORMAT);
+        return this;
+    }
+
+    FakeVideoEncoder sample(long presentationTimeUs, int flags) {
+        mOutputs.add(new long[]{presentationTimeUs, flags});
+        return this;
+    }
+
+    /**
+     * @return The buffers dequeued and not released yet.
+     */
+    List<Integer> getDequeued() {
+        return mDequeued;
+    }
+
+    static ByteBuffer data(long presentationTimeUs) {
+        final ByteBuffer data = ByteBuffer.allocate(8);
+        data.putLong(0, presentationTimeUs);
+        return data;
+    }
+
+    @Override
+    public void start() {
+        mStarted = true;
+    }
+
+    @Override
+    public synchronized int dequeueOutputBuffer(EncodedSample sample, long timeoutUs) {
+        Object output = mOutputs.poll();
+        if (output == null) {
+            if (!mEndOfInputStream) {
+                return INFO_TRY_AGAIN_LATER;
+            }
+            output = new long[]{-1, EncodedSample.FLAG_END_OF_STREAM};
+        }
+        if (output == FORMAT) {
+            return INFO_OUTPUT_FORMAT_CHANGED;
+        }
+        final long[] values = (long[]) output;
+        final boolean empty = (values[1] & EncodedSample.FLAG_END_OF_STREAM) != 0;
+        sample.set(empty ? null : data(values[0]), values[0], (int) values[1]);
+        final int index = mNextIndex++;
+        mDequeued.add(index);
+        return index;
+    }
+
+    @Override
+    public String getOutputFormat() {
+        return FORMAT;
+    }
+
+    @Override
+    public synchronized void releaseOutputBuffer(int index) {
+        mDequeued.remove(Integer.valueOf(index));
+    }
+
+    @Override
+    public void requestKeyFrame() {
+        mKeyFrameRequests++;
+    }
+
+    @Override
+    public synchronized void signalEndOfInputStream() {
+        mEndOfInputStream = true;
+    }
+
+    @Override
+    public void release() {
+        mReleased = true;
+    }
+
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.cameraview;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class FrameBufferPoolTest {
+
+    @Test
+    public void testObtain_bounded() {
+        FrameBufferPool pool = new FrameBufferPool(2);
+        pool.reset(12);
+        byte[] a = pool.obtain();
+        byte[] b = pool.obtain();
+        assertThat(a.length, is(12));
+        assertThat(b.length, is(12));
+        assertThat(pool.obtain(), is(nullValue()));
+    }
+
+    @Test
+    public void testOwns() {
+        FrameBufferPool pool = new FrameBufferPool(1);
+        pool.reset(4);
+        byte[] buffer = pool.obtain();
+        assertThat(pool.owns(buffer), is(true));
+        assertThat(pool.owns(new byte[4]), is(false));
+    }
+
+    @Test
+    public void testReset_dropsBuffers() {
+        FrameBufferPool pool = new FrameBufferPool(1);
+        pool.reset(4);
+        byte[] buffer = pool.obtain();
+        pool.reset(8);
+        assertThat(pool.owns(buffer), is(false));
+        assertThat(pool.obtain().length, is(8));
+    }
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.cameraview;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class FrameCropperTest {
+
+    @Test
+    public void testDisabledByDefault() {
+        assertThat(new FrameCropper().isEnabled(), is(false));
+    }
+
+    @Test
+    public void testCrop_center() {
+        FrameCropper cropper = new FrameCropper();
+        cropper.setRegion(.25f, .5f, .75f, 1.f);
+        Frame frame = cropper.crop(newFrame(8, 4));
+        assertThat(frame.getWidth(), is(4));
+        assertThat(frame.getHeight(), is(2));
+        assertThat(frame.getData(), is(new byte[]{
+                // Y: columns 2..5 of rows 2..3
+                22, 23, 24, 25,
+                32, 33, 34, 35,
+                // VU: chroma column 1..2 of chroma row 1
+                -111, 111, -112, 112}));
+    }
+
+    @Test
+    public void testCrop_edge() {
+        FrameCropper cropper = new FrameCropper();
+        // Rounds to an empty region at the bottom edge
+        cropper.setRegion(0.f, .999f, 1.f, 1.f);
+        Frame frame = cropper.crop(newFrame(8, 4));
+        assertThat(frame.getWidth(), is(8));
+        assertThat(frame.getHeight(), is(2));
+        assertThat(frame.getData(), is(new byte[]{
+                20, 21, 22, 23, 24, 25, 26, 27,
+                30, 31, 32, 33, 34, 35, 36, 37,
+                -110, 110, -111, 111, -112, 112, -113, 113}));
+    }
+
+    @Test
+    public void testCrop_downscale() {
+        FrameCropper cropper = new FrameCropper();
+        cropper.setMaxWidth(4);
+        Frame frame = cropper.crop(newFrame(8, 4));
+        assertThat(frame.getWidth(), is(4));
+        assertThat(frame.getHeight(), is(2));
+        assertThat(frame.getData(), is(new byte[]{
+                0, 2, 4, 6,
+                20, 22, 24, 26,
+                -100, 100, -102, 102}));
+    }
+
+    @Test
+    public void testCrop_poolExhausted() {
+        FrameCropper cropper = new FrameCropper();
+        cropper.setMaxWidth(4);
+        Frame source = newFrame(8, 4);
+        for (int i = 0; i < 4; i++) {
+            cropper.crop(source);
+        }
+        assertThat(cropper.crop(source), is(nullValue()));
+    }
+
+    /**
+     * Y is 10 * row + column; V is -100 - 10 * row - column and U its opposite.
+     */
+    private static Frame newFrame(int width, int height) {
+        byte[] data = new byte[YuvPacker.getPackedSize(width, height)];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                data[y * width + x] = (byte) (10 * y + x);
+            }
+        }
+        int ySize = width * height;
+        for (int y = 0; y < height / 2; y++) {
+            for (int x = 0; x < width / 2; x++) {
+                int value = 100 + 10 * y + x;
+                data[ySize + y * width + 2 * x] = (byte) -value;
+                data[ySize + y * width + 2 * x + 1] = (byte) value;
+            }
+        }
+        Frame frame = new ByteArrayFrame(data, width, height);
+        frame.open(width, height, 90, 0L);
+        return frame;
+    }
+
+}
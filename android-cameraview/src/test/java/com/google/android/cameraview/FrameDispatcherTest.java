@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.cameraview;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+public class FrameDispatcherTest {
+
+    private final ArrayList<Frame> mConsumed = new ArrayList<>();
+
+    private final ArrayList<Runnable> mTasks = new ArrayList<>();
+
+    private FrameDispatcher mDispatcher;
+
+    @Before
+    public void setUp() {
+        mDispatcher = new FrameDispatcher(new FrameDispatcher.Consumer() {
+            @Override
+            public void onFrame(Frame frame) {
+                mConsumed.add(frame);
+            }
+        });
+        mDispatcher.setExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                mTasks.add(command);
+            }
+        });
+    }
+
+    @Test
+    public void testNone_deliversEveryFrame() {
+        Frame a = dispatchNewFrame();
+        Frame b = dispatchNewFrame();
+        assertThat(a.isIdle(), is(false));
+        runTasks();
+        assertThat(mConsumed.size(), is(2));
+        assertThat(a.isIdle(), is(true));
+        assertThat(b.isIdle(), is(true));
+        assertThat(mDispatcher.getDeliveredCount(), is(2L));
+        assertThat(mDispatcher.getDroppedCount(), is(0L));
+    }
+
+    @Test
+    public void testKeepLatest() {
+        mDispatcher.setStrategy(Constants.BACKPRESSURE_KEEP_LATEST, 1);
+        Frame a = dispatchNewFrame();
+        Frame b = dispatchNewFrame();
+        assertThat(a.isIdle(), is(true));
+        runTasks();
+        assertThat(mConsumed.size(), is(1));
+        assertThat(mConsumed.get(0) == b, is(true));
+        assertThat(mDispatcher.getDroppedCount(), is(1L));
+    }
+
+    @Test
+    public void testDropWhileBusy() {
+        mDispatcher.setStrategy(Constants.BACKPRESSURE_DROP_WHILE_BUSY, 1);
+        Frame a = dispatchNewFrame();
+        dispatchNewFrame();
+        runTasks();
+        assertThat(mConsumed.size(), is(1));
+        assertThat(mConsumed.get(0) == a, is(true));
+        dispatchNewFrame();
+        runTasks();
+        assertThat(mDispatcher.getDeliveredCount(), is(2L));
+        assertThat(mDispatcher.getDroppedCount(), is(1L));
+    }
+
+    @Test
+    public void testQueue_bounded() {
+        mDispatcher.setStrategy(Constants.BACKPRESSURE_QUEUE, 2);
+        dispatchNewFrame();
+        dispatchNewFrame();
+        Frame c = dispatchNewFrame();
+        assertThat(c.isIdle(), is(true));
+        runTasks();
+        assertThat(mDispatcher.getDeliveredCount(), is(2L));
+        assertThat(mDispatcher.getDroppedCount(), is(1L));
+    }
+
+    @Test
+    public void testNoExecutor_deliversInline() {
+        mDispatcher.setExecutor(null);
+        dispatchNewFrame();
+        assertThat(mConsumed.size(), is(1));
+        assertThat(mTasks.size(), is(0));
+    }
+
+    private Frame dispatchNewFrame() {
+        Frame frame = new ByteArrayFrame(new byte[4 * 2 * 3 / 2], 4, 2);
+        frame.open(4, 2, 0, 0L);
+        mDispatcher.dispatch(frame);
+        frame.close();
+        return frame;
+    }
+
+    private void runTasks() {
+        while (!mTasks.isEmpty()) {
+            mTasks.remove(0).run();
+        }
+    }
+
+}
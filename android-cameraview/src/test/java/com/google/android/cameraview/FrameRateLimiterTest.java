@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.cameraview;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class FrameRateLimiterTest {
+
+    private static final long FRAME_30FPS = 1000000000L / 30;
+
+    @Test
+    public void testUnlimited() {
+        FrameRateLimiter limiter = new FrameRateLimiter();
+        assertThat(limiter.isLimited(), is(false));
+        assertThat(limiter.accept(0), is(true));
+        assertThat(limiter.accept(1), is(true));
+    }
+
+    @Test
+    public void testAccept_averageRate() {
+        FrameRateLimiter limiter = new FrameRateLimiter();
+        limiter.setFrameRate(7);
+        int accepted = 0;
+        // 10 seconds at 30 fps
+        for (int i = 0; i < 300; i++) {
+            if (limiter.accept(i * FRAME_30FPS)) {
+                accepted++;
+            }
+        }
+        assertThat(accepted, is(70));
+    }
+
+    @Test
+    public void testAccept_resynchronizesAfterPause() {
+        FrameRateLimiter limiter = new FrameRateLimiter();
+        limiter.setFrameRate(10);
+        assertThat(limiter.accept(0), is(true));
+        assertThat(limiter.accept(5000000000L), is(true));
+        assertThat(limiter.accept(5000000000L + FRAME_30FPS), is(false));
+        assertThat(limiter.getDelay(5000000000L + FRAME_30FPS), is(100000000L - FRAME_30FPS));
+    }
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.cameraview;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class FrameTest {
+
+    @Test
+    public void testClose_releasesLastReference() {
+        CountingFrame frame = new CountingFrame();
+        frame.open(4, 2, 90, 1L);
+        assertThat(frame.isIdle(), is(false));
+        frame.retain();
+        frame.close();
+        assertThat(frame.mReleaseCount, is(0));
+        frame.close();
+        assertThat(frame.mReleaseCount, is(1));
+        assertThat(frame.isIdle(), is(true));
+        frame.close();
+        assertThat(frame.mReleaseCount, is(1));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRetain_closed() {
+        CountingFrame frame = new CountingFrame();
+        frame.open(4, 2, 0, 0L);
+        frame.close();
+        frame.retain();
+    }
+
+    @Test
+    public void testByteArrayFrame_planes() {
+        byte[] data = new byte[4 * 2 * 3 / 2];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        ByteArrayFrame frame = new ByteArrayFrame(data, 4, 2);
+        frame.open(4, 2, 0, 0L);
+        assertThat(frame.getPlaneCount(), is(3));
+        assertThat(frame.getBuffer(0).remaining(), is(8));
+        assertThat(frame.getRowStride(1), is(4));
+        assertThat(frame.getPixelStride(0), is(1));
+        assertThat(frame.getPixelStride(2), is(2));
+        // NV21 stores V before U
+        assertThat(frame.getBuffer(2).get(0), is((byte) 8));
+        assertThat(frame.getBuffer(1).get(0), is((byte) 9));
+        assertThat(frame.getData(), is(data));
+    }
+
+    private static class CountingFrame extends ByteArrayFrame {
+
+        int mReleaseCount;
+
+        CountingFrame() {
+            super(new byte[4 * 2 * 3 / 2], 4, 2);
+        }
+
+        @Override
+        void onRelease() {
+            mReleaseCount++;
+        }
+
+    }
+
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.cameraview;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class JpegThumbnailTest {
+
+    @Test
+    public void testCalculateSampleSize() {
+        assertThat(JpegThumbnail.calculateSampleSize(4000, 3000, 200), is(16));
+        assertThat(JpegThumbnail.calculateSampleSize(3000, 4000, 250), is(16));
+        assertThat(JpegThumbnail.calculateSampleSize(4000, 3000, 251), is(8));
+        assertThat(JpegThumbnail.calculateSampleSize(160, 120, 200), is(1));
+    }
+
+    @Test
+    public void testChooseSize() {
+        SizeMap sizes = new SizeMap();
+        sizes.add(new Size(160, 120));
+        sizes.add(new Size(320, 240));
+        sizes.add(new Size(512, 384));
+        sizes.add(new Size(320, 180));
+        AspectRatio ratio = AspectRatio.of(4, 3);
+        assertThat(JpegThumbnail.chooseSize(sizes, ratio, 200), is(new Size(320, 240)));
+        assertThat(JpegThumbnail.chooseSize(sizes, ratio, 160), is(new Size(160, 120)));
+        assertThat(JpegThumbnail.chooseSize(sizes, ratio, 1000), is(new Size(512, 384)));
+        assertThat(JpegThumbnail.chooseSize(sizes, AspectRatio.of(1, 1), 200), is(nullValue()));
+    }
+
+}
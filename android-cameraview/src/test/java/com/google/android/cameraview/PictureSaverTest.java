@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.cameraview;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+
+public class PictureSaverTest {
+
+    private PictureSaver mSaver;
+
+    private File mSavedFile;
+
+    private IOException mFailure;
+
+    private boolean mWritten;
+
+    @Before
+    public void setUp() {
+        mSaver = new PictureSaver(new PictureSaver.Listener() {
+            @Override
+            public void onPictureSaved(CaptureQueue.Request request, long elapsedMillis) {
+                mSavedFile = request.getFile();
+            }
+
+            @Override
+            public void onPictureSaveFailed(CaptureQueue.Request request, IOException cause) {
+                mFailure = cause;
+            }
+        }, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+    }
+
+    @Test
+    public void testSave() throws IOException {
+        File file = File.createTempFile("picture", ".jpg");
+        file.deleteOnExit();
+        ByteBuffer data = ByteBuffer.wrap(new byte[]{0, 1, 2, 3, 4});
+        data.position(1);
+        mSaver.save(data, new CaptureQueue.Request(0, file, System.nanoTime()), new Runnable() {
+            @Override
+            public void run() {
+                mWritten = true;
+            }
+        });
+        assertThat(mWritten, is(true));
+        assertThat(mSavedFile, is(file));
+        assertThat(read(file), is(new byte[]{1, 2, 3, 4}));
+    }
+
+    @Test
+    public void testSave_failure() {
+        File file = new File(new File("does-not-exist"), "picture.jpg");
+        mSaver.save(ByteBuffer.wrap(new byte[]{1}),
+                new CaptureQueue.Request(0, file, System.nanoTime()), new Runnable() {
+                    @Override
+                    public void run() {
+                        mWritten = true;
+                    }
+                });
+        // The buffer is released even if the write fails
+        assertThat(mWritten, is(true));
+        assertThat(mSavedFile, is(nullValue()));
+        assertThat(mFailure != null, is(true));
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                offset += in.read(data, offset, data.length - offset);
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+}
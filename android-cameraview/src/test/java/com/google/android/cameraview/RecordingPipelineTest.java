@@ -0,0 +1,369 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.cameraview;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class RecordingPipelineTest {
+
+    private static final int KEY = EncodedSample.FLAG_KEY_FRAME;
+
+    private static final int CONFIG = EncodedSample.FLAG_CODEC_CONFIG;
+
+    private static final int END = EncodedSample.FLAG_END_OF_STREAM;
+
+    @Test
+    public void testDrain() throws IOException {
+        FakeVideoEncoder encoder = new FakeVideoEncoder()
+                .formatChanged()
+                .sample(0, CONFIG)
+                .sample(1000, KEY)
+                .sample(2000, 0);
+        FakeSampleMuxer muxer = new FakeSampleMuxer();
+        RecordingPipeline<String> pipeline = new RecordingPipeline<>(encoder, muxer, null);
+        assertThat(pipeline.drain(0), is(false));
+        assertThat(muxer.mTracks, is(Collections.singletonList(FakeVideoEncoder.FORMAT)));
+        assertThat(muxer.mStarted, is(true));
+        // The codec specific data is not written
+        assertThat(pipeline.drain(0), is(false));
+        assertThat(muxer.mSamples.isEmpty(), is(true));
+        assertThat(pipeline.drain(0), is(false));
+        assertThat(pipeline.drain(0), is(false));
+        assertThat(pipeline.drain(0), is(false));
+        assertThat(muxer.mSamples, is(Arrays.asList(1000L, 2000L)));
+        assertThat(muxer.mFlags, is(Arrays.asList(KEY, 0)));
+        encoder.signalEndOfInputStream();
+        assertThat(pipeline.drain(0), is(true));
+        // Every buffer is released
+        assertThat(encoder.getDequeued().isEmpty(), is(true));
+        pipeline.finish();
+        assertThat(muxer.mStopped, is(true));
+        assertThat(pipeline.getSampleCount(), is(2));
+        assertThat(pipeline.getDurationUs(), is(1000L));
+    }
+
+    @Test
+    public void testDrain_bFrames() throws IOException {
+        // In decoding order
+        FakeVideoEncoder encoder = new FakeVideoEncoder()
+                .formatChanged()
+                .sample(1000, KEY)
+                .sample(4000, 0)
+                .sample(2000, 0)
+                .sample(3000, 0);
+        FakeSampleMuxer muxer = new FakeSampleMuxer();
+        RecordingPipeline<String> pipeline = new RecordingPipeline<>(encoder, muxer, null);
+        for (int i = 0; i < 5; i++) {
+            pipeline.drain(0);
+        }
+        assertThat(muxer.mSamples, is(Arrays.asList(1000L, 4000L, 2000L, 3000L)));
+        assertThat(pipeline.getDurationUs(), is(3000L));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testDrain_sampleBeforeFormat() throws IOException {
+        FakeVideoEncoder encoder = new FakeVideoEncoder().sample(1000, KEY);
+        new RecordingPipeline<>(encoder, new FakeSampleMuxer(), null).drain(0);
+    }
+
+    @Test(expected = IOException.class)
+    public void testFinish_noSample() throws IOException {
+        RecordingPipeline<String> pipeline = new RecordingPipeline<>(
+                new FakeVideoEncoder().formatChanged(), new FakeSampleMuxer(), null);
+        pipeline.drain(0);
+        pipeline.finish();
+    }
+
+    @Test
+    public void testLimits() throws IOException {
+        FakeVideoEncoder encoder = new FakeVideoEncoder()
+                .formatChanged()
+                .sample(1000, KEY)
+                .sample(2000, 0)
+                .sample(3000, 0)
+                .sample(4000, KEY);
+        RecordingListener listener = new RecordingListener();
+        FakeSampleMuxer muxer = new FakeSampleMuxer();
+        RecordingPipeline<String> pipeline = new RecordingPipeline<>(encoder, muxer, listener);
+        pipeline.setLimits(2000, 0);
+        for (int i = 0; i < 5; i++) {
+            pipeline.drain(0);
+        }
+        // The samples from the limit on are dropped
+        assertThat(muxer.mSamples, is(Arrays.asList(1000L, 2000L)));
+        assertThat(listener.mLimitReached, is(1));
+        assertThat(encoder.mKeyFrameRequests, is(0));
+    }
+
+    @Test
+    public void testSegments_duration() throws IOException {
+        FakeVideoEncoder encoder = new FakeVideoEncoder()
+                .formatChanged()
+                .sample(1000, KEY)
+                .sample(2000, 0)
+                .sample(3000, 0)
+                .sample(4000, 0)
+                .sample(5000, KEY)
+                .sample(6000, 0);
+        RecordingListener listener = new RecordingListener();
+        FakeSampleMuxer first = new FakeSampleMuxer();
+        final List<FakeSampleMuxer> muxers = new ArrayList<>();
+        RecordingPipeline<String> pipeline = new RecordingPipeline<>(encoder, first, listener);
+        pipeline.setLimits(2000, 0);
+        pipeline.setMuxerFactory(new RecordingPipeline.MuxerFactory<String>() {
+            @Override
+            public SampleMuxer<String> createMuxer(int segment) {
+                assertThat(segment, is(muxers.size() + 1));
+                FakeSampleMuxer muxer = new FakeSampleMuxer();
+                muxers.add(muxer);
+                return muxer;
+            }
+        });
+        for (int i = 0; i < 7; i++) {
+            pipeline.drain(0);
+        }
+        // The first segment goes on until the requested key frame
+        assertThat(encoder.mKeyFrameRequests, is(1));
+        assertThat(first.mSamples, is(Arrays.asList(1000L, 2000L, 3000L, 4000L)));
+        assertThat(first.mStopped, is(true));
+        assertThat(first.mReleased, is(true));
+        assertThat(listener.mSegments, is(Collections.singletonList(0)));
+        assertThat(muxers.size(), is(1));
+        FakeSampleMuxer second = muxers.get(0);
+        assertThat(second.mTracks, is(Collections.singletonList(FakeVideoEncoder.FORMAT)));
+        assertThat(second.mSamples, is(Arrays.asList(5000L, 6000L)));
+        assertThat(second.mFlags.get(0), is(KEY));
+        assertThat(pipeline.getSegment(), is(1));
+        assertThat(pipeline.getSampleCount(), is(6));
+        pipeline.finish();
+        assertThat(second.mStopped, is(true));
+    }
+
+    @Test
+    public void testSegments_size() throws IOException {
+        // Each fake sample is 8 bytes
+        FakeVideoEncoder encoder = new FakeVideoEncoder()
+                .formatChanged()
+                .sample(1000, KEY)
+                .sample(2000, 0)
+                .sample(3000, KEY)
+                .sample(4000, 0);
+        FakeSampleMuxer first = new FakeSampleMuxer();
+        final FakeSampleMuxer second = new FakeSampleMuxer();
+        RecordingPipeline<String> pipeline =
+                new RecordingPipeline<>(encoder, first, new RecordingListener());
+        pipeline.setLimits(0, 20);
+        pipeline.setMuxerFactory(new RecordingPipeline.MuxerFactory<String>() {
+            @Override
+            public SampleMuxer<String> createMuxer(int segment) {
+                return second;
+            }
+        });
+        for (int i = 0; i < 5; i++) {
+            pipeline.drain(0);
+        }
+        // 24 bytes would exceed 90% of the limit
+        assertThat(first.mSamples, is(Arrays.asList(1000L, 2000L)));
+        assertThat(second.mSamples, is(Arrays.asList(3000L, 4000L)));
+        assertThat(encoder.mKeyFrameRequests, is(0));
+    }
+
+    @Test
+    public void testPreRoll() throws IOException {
+        FakeVideoEncoder encoder = new FakeVideoEncoder()
+                .formatChanged()
+                .sample(0, CONFIG)
+                .sample(1000, KEY)
+                .sample(2000, 0)
+                .sample(3000, KEY)
+                .sample(4000, 0)
+                .sample(5000, 0);
+        RecordingPipeline<String> pipeline =
+                new RecordingPipeline<>(encoder, null, new RecordingListener());
+        pipeline.setPreRoll(new SampleRing(1000, 1000));
+        for (int i = 0; i < 7; i++) {
+            pipeline.drain(0);
+        }
+        assertThat(pipeline.isWriting(), is(false));
+        // Every buffer is released while pre-rolling
+        assertThat(encoder.getDequeued().isEmpty(), is(true));
+        FakeSampleMuxer muxer = new FakeSampleMuxer();
+        pipeline.write(muxer);
+        pipeline.drain(0);
+        assertThat(pipeline.isWriting(), is(true));
+        assertThat(muxer.mTracks, is(Collections.singletonList(FakeVideoEncoder.FORMAT)));
+        // The first group of pictures is too old to be kept
+        assertThat(muxer.mSamples, is(Arrays.asList(3000L, 4000L, 5000L)));
+        assertThat(muxer.mFlags.get(0), is(KEY));
+        encoder.signalEndOfInputStream();
+        assertThat(pipeline.drain(0), is(true));
+        pipeline.finish();
+        assertThat(muxer.mStopped, is(true));
+    }
+
+    @Test
+    public void testPreRoll_notWritten() throws IOException {
+        FakeVideoEncoder encoder = new FakeVideoEncoder()
+                .formatChanged()
+                .sample(1000, KEY);
+        RecordingPipeline<String> pipeline =
+                new RecordingPipeline<>(encoder, null, new RecordingListener());
+        pipeline.setPreRoll(new SampleRing(1000, 1000));
+        pipeline.drain(0);
+        pipeline.drain(0);
+        // Nothing to finalize
+        pipeline.finish();
+        pipeline.release();
+        assertThat(encoder.mReleased, is(true));
+    }
+
+    @Test
+    public void testStartStop() throws InterruptedException {
+        FakeVideoEncoder encoder = new FakeVideoEncoder()
+                .formatChanged()
+                .sample(1000, KEY)
+                .sample(2000, 0);
+        FakeSampleMuxer muxer = new FakeSampleMuxer();
+        final CountDownLatch finished = new CountDownLatch(1);
+        final Exception[] error = new Exception[1];
+        RecordingPipeline<String> pipeline = new RecordingPipeline<>(encoder, muxer,
+                new RecordingPipeline.Listener() {
+                    @Override
+                    public void onSegmentFinished(int segment) {
+                    }
+
+                    @Override
+                    public void onLimitReached() {
+                    }
+
+                    @Override
+                    public void onRecordingFinished() {
+                        finished.countDown();
+                    }
+
+                    @Override
+                    public void onRecordingFailed(Exception e) {
+                        error[0] = e;
+                        finished.countDown();
+                    }
+                });
+        pipeline.start();
+        assertThat(encoder.mStarted, is(true));
+        pipeline.stop();
+        // The listener is called before stop() returns
+        assertThat(finished.await(0, TimeUnit.MILLISECONDS), is(true));
+        assertThat(error[0], is(nullValue()));
+        assertThat(muxer.mSamples, is(Arrays.asList(1000L, 2000L)));
+        assertThat(muxer.mStopped, is(true));
+        assertThat(muxer.mReleased, is(true));
+        assertThat(encoder.mReleased, is(true));
+    }
+
+    @Test
+    public void testRequestStop() throws InterruptedException {
+        FakeVideoEncoder encoder = new FakeVideoEncoder()
+                .formatChanged()
+                .sample(1000, KEY);
+        FakeSampleMuxer muxer = new FakeSampleMuxer();
+        final CountDownLatch finished = new CountDownLatch(1);
+        RecordingPipeline<String> pipeline = new RecordingPipeline<>(encoder, muxer,
+                new RecordingListener() {
+                    @Override
+                    public void onRecordingFinished() {
+                        finished.countDown();
+                    }
+                });
+        pipeline.start();
+        pipeline.requestStop();
+        // The recorder thread finalizes the file on its own
+        assertThat(finished.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(muxer.mSamples, is(Arrays.asList(1000L)));
+        assertThat(muxer.mStopped, is(true));
+        assertThat(encoder.mReleased, is(true));
+        pipeline.stop();
+    }
+
+    @Test
+    public void testStartStop_noSample() {
+        FakeSampleMuxer muxer = new FakeSampleMuxer();
+        FakeVideoEncoder encoder = new FakeVideoEncoder();
+        final Exception[] error = new Exception[1];
+        RecordingPipeline<String> pipeline = new RecordingPipeline<>(encoder, muxer,
+                new RecordingPipeline.Listener() {
+                    @Override
+                    public void onSegmentFinished(int segment) {
+                    }
+
+                    @Override
+                    public void onLimitReached() {
+                    }
+
+                    @Override
+                    public void onRecordingFinished() {
+                    }
+
+                    @Override
+                    public void onRecordingFailed(Exception e) {
+                        error[0] = e;
+                    }
+                });
+        pipeline.start();
+        pipeline.stop();
+        assertThat(error[0] instanceof IOException, is(true));
+        assertThat(muxer.mReleased, is(true));
+        assertThat(encoder.mReleased, is(true));
+    }
+
+    private static class RecordingListener implements RecordingPipeline.Listener {
+
+        final List<Integer> mSegments = new ArrayList<>();
+
+        int mLimitReached;
+
+        @Override
+        public void onSegmentFinished(int segment) {
+            mSegments.add(segment);
+        }
+
+        @Override
+        public void onLimitReached() {
+            mLimitReached++;
+        }
+
+        @Override
+        public void onRecordingFinished() {
+        }
+
+        @Override
+        public void onRecordingFailed(Exception e) {
+        }
+
+    }
+
+}
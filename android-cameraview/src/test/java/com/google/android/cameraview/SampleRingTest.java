@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.cameraview;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class SampleRingTest {
+
+    private static final int KEY = EncodedSample.FLAG_KEY_FRAME;
+
+    @Test
+    public void testAdd_startsWithKeyFrame() {
+        SampleRing ring = new SampleRing(10000, 1000);
+        add(ring, 1000, 0);
+        assertThat(ring.size(), is(0));
+        add(ring, 2000, KEY);
+        add(ring, 3000, 0);
+        assertThat(times(ring), is(Arrays.asList(2000L, 3000L)));
+    }
+
+    @Test
+    public void testAdd_duration() {
+        SampleRing ring = new SampleRing(2000, 1000);
+        // Groups of pictures of 2 samples
+        for (int i = 0; i < 8; i++) {
+            add(ring, i * 1000, i % 2 == 0 ? KEY : 0);
+        }
+        // The oldest kept group starts at least 2000 µs before the latest sample
+        assertThat(ring.getDurationUs(), is(3000L));
+        assertThat(ring.getBytes(), is(32L));
+        assertThat(times(ring), is(Arrays.asList(4000L, 5000L, 6000L, 7000L)));
+        assertThat(ring.getBytes(), is(0L));
+    }
+
+    @Test
+    public void testAdd_bytes() {
+        // Each sample is 8 bytes
+        SampleRing ring = new SampleRing(1000000, 40);
+        for (int i = 0; i < 9; i++) {
+            add(ring, i * 1000, i % 3 == 0 ? KEY : 0);
+        }
+        // Groups of pictures of 3 samples; 6 samples would exceed the budget
+        assertThat(times(ring), is(Arrays.asList(6000L, 7000L, 8000L)));
+    }
+
+    @Test
+    public void testAdd_groupOverBudget() {
+        SampleRing ring = new SampleRing(1000000, 20);
+        add(ring, 0, KEY);
+        add(ring, 1000, 0);
+        add(ring, 2000, 0);
+        // A single group over the budget is dropped until the next key frame
+        assertThat(ring.size(), is(0));
+        add(ring, 3000, 0);
+        assertThat(ring.size(), is(0));
+        add(ring, 4000, KEY);
+        assertThat(times(ring), is(Arrays.asList(4000L)));
+    }
+
+    @Test
+    public void testAdd_countsCapacity() {
+        SampleRing ring = new SampleRing(1000000, 100);
+        for (int i = 0; i < 40; i++) {
+            // Key frames of 64 bytes followed by samples of 8 bytes
+            final boolean keyFrame = i % 4 == 0;
+            add(ring, i * 1000, keyFrame ? KEY : 0, keyFrame ? 64 : 8);
+            assertThat(ring.getAllocatedBytes() <= 100, is(true));
+        }
+        // A group of pictures takes 88 bytes, so only the latest one fits
+        assertThat(times(ring), is(Arrays.asList(36000L, 37000L, 38000L, 39000L)));
+        assertThat(ring.getAllocatedBytes() <= 100, is(true));
+    }
+
+    @Test
+    public void testPoll_recycles() {
+        SampleRing ring = new SampleRing(1000000, 1000);
+        add(ring, 0, KEY);
+        EncodedSample sample = new EncodedSample();
+        assertThat(ring.poll(sample), is(true));
+        assertThat(sample.getData().getLong(sample.getData().position()), is(0L));
+        assertThat(sample.isKeyFrame(), is(true));
+        assertThat(ring.poll(sample), is(false));
+        add(ring, 1000, KEY);
+        assertThat(times(ring), is(Arrays.asList(1000L)));
+    }
+
+    private static void add(SampleRing ring, long timeUs, int flags) {
+        EncodedSample sample = new EncodedSample();
+        sample.set(FakeVideoEncoder.data(timeUs), timeUs, flags);
+        ring.add(sample);
+    }
+
+    /**
+     * Adds a sample of {@code size} bytes, starting with its time.
+     */
+    private static void add(SampleRing ring, long timeUs, int flags, int size) {
+        ByteBuffer data = ByteBuffer.allocate(size);
+        data.putLong(0, timeUs);
+        EncodedSample sample = new EncodedSample();
+        sample.set(data, timeUs, flags);
+        ring.add(sample);
+    }
+
+    /**
+     * Polls all the samples.
+     */
+    private static List<Long> times(SampleRing ring) {
+        List<Long> times = new ArrayList<>();
+        EncodedSample sample = new EncodedSample();
+        while (ring.poll(sample)) {
+            assertThat(sample.getData().getLong(sample.getData().position()),
+                    is(sample.getPresentationTimeUs()));
+            times.add(sample.getPresentationTimeUs());
+        }
+        return times;
+    }
+
+}
@@ -17,6 +17,7 @@
 package com.google.android.cameraview;
 
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
 import static org.junit.Assert.assertThat;
 
 import org.junit.Test;
@@ -43,6 +44,30 @@ public class SizeMapTest {
         assertThat(map.sizes(ratio).size(), is(3));
     }
 
+    @Test
+    public void testNearest() {
+        SizeMap map = new SizeMap();
+        map.add(new Size(640, 480));
+        map.add(new Size(1280, 960));
+        map.add(new Size(1920, 1080));
+        AspectRatio ratio = AspectRatio.of(4, 3);
+        assertThat(map.nearest(ratio, 1100 * 825), is(new Size(1280, 960)));
+        assertThat(map.nearest(ratio, 1), is(new Size(640, 480)));
+        assertThat(map.nearest(AspectRatio.of(1, 1), 1), is(nullValue()));
+    }
+
+    @Test
+    public void testLargestWithin() {
+        SizeMap map = new SizeMap();
+        map.add(new Size(640, 480));
+        map.add(new Size(1280, 960));
+        map.add(new Size(2560, 1920));
+        AspectRatio ratio = AspectRatio.of(4, 3);
+        assertThat(map.largestWithin(ratio, 2000000), is(new Size(1280, 960)));
+        assertThat(map.largestWithin(ratio, 1280 * 960), is(new Size(1280, 960)));
+        assertThat(map.largestWithin(ratio, 1000), is(new Size(640, 480)));
+    }
+
     @Test
     public void testClear() {
         SizeMap map = new SizeMap();
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.cameraview;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class VideoEncoderOptionsTest {
+
+    @Test
+    public void testDefaults() {
+        VideoEncoderOptions options = new VideoEncoderOptions.Builder().build();
+        assertThat(options.getMimeType(), is("video/avc"));
+        assertThat(options.getVideoSize(), is(nullValue()));
+        assertThat(options.getBitRate(), is(0));
+        assertThat(options.getBitrateMode(), is(VideoEncoderOptions.BITRATE_MODE_VBR));
+        assertThat(options.getKeyFrameInterval(), is(1.f));
+        assertThat(options.getMaxBFrames(), is(0));
+    }
+
+    @Test
+    public void testEquals() {
+        VideoEncoderOptions a = new VideoEncoderOptions.Builder()
+                .setVideoSize(new Size(1920, 1080))
+                .setBitrateMode(VideoEncoderOptions.BITRATE_MODE_CBR)
+                .build();
+        VideoEncoderOptions b = new VideoEncoderOptions.Builder()
+                .setVideoSize(new Size(1920, 1080))
+                .setBitrateMode(VideoEncoderOptions.BITRATE_MODE_CBR)
+                .build();
+        assertThat(a, is(b));
+        assertThat(a.hashCode(), is(b.hashCode()));
+        assertThat(a, is(not(new VideoEncoderOptions.Builder()
+                .setVideoSize(new Size(1280, 720))
+                .setBitrateMode(VideoEncoderOptions.BITRATE_MODE_CBR)
+                .build())));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeKeyFrameInterval() {
+        new VideoEncoderOptions.Builder().setKeyFrameInterval(-1.f);
+    }
+
+}
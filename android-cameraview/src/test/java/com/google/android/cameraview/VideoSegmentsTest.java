@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.cameraview;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class VideoSegmentsTest {
+
+    @Test
+    public void testPath() {
+        assertThat(VideoSegments.path("/sdcard/video.mp4", 0), is("/sdcard/video.mp4"));
+        assertThat(VideoSegments.path("/sdcard/video.mp4", 1), is("/sdcard/video_1.mp4"));
+        assertThat(VideoSegments.path("/sdcard/video.mp4", 12), is("/sdcard/video_12.mp4"));
+    }
+
+    @Test
+    public void testPath_noExtension() {
+        assertThat(VideoSegments.path("/sdcard/video", 2), is("/sdcard/video_2"));
+        assertThat(VideoSegments.path("/sdcard.d/video", 2), is("/sdcard.d/video_2"));
+        assertThat(VideoSegments.path("/sdcard/.video", 2), is("/sdcard/.video_2"));
+    }
+
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.cameraview;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class YuvPackerTest {
+
+    // A 4x2 frame: Y = 1..8, U = 20, 21, V = 30, 31
+
+    private static final byte[] I420 = {1, 2, 3, 4, 5, 6, 7, 8, 20, 21, 30, 31};
+
+    private static final byte[] NV21 = {1, 2, 3, 4, 5, 6, 7, 8, 30, 20, 31, 21};
+
+    @Test
+    public void testPack_nv21Frame() {
+        Frame frame = new ByteArrayFrame(NV21.clone(), 4, 2);
+        frame.open(4, 2, 0, 0L);
+        YuvPacker packer = new YuvPacker();
+        assertThat(packer.pack(frame, Constants.FRAME_FORMAT_I420, null), is(I420));
+        assertThat(packer.pack(frame, Constants.FRAME_FORMAT_NV21, null), is(NV21));
+    }
+
+    @Test
+    public void testPack_paddedSemiPlanar() {
+        // Rows padded to 6 bytes; chroma interleaved as U V U V with a pixel stride of 2
+        byte[] y = {1, 2, 3, 4, 0, 0, 5, 6, 7, 8};
+        byte[] uv = {20, 30, 21, 31};
+        Frame frame = new PlanesFrame(
+                new ByteBuffer[]{
+                        ByteBuffer.wrap(y),
+                        ByteBuffer.wrap(uv, 0, 3).slice(),
+                        ByteBuffer.wrap(uv, 1, 3).slice(),
+                },
+                new int[]{6, 4, 4},
+                new int[]{1, 2, 2});
+        frame.open(4, 2, 0, 0L);
+        YuvPacker packer = new YuvPacker();
+        assertThat(packer.pack(frame, Constants.FRAME_FORMAT_I420, null), is(I420));
+        assertThat(packer.pack(frame, Constants.FRAME_FORMAT_NV21, null), is(NV21));
+    }
+
+    @Test
+    public void testPack_planarReusesBuffer() {
+        byte[] y = {1, 2, 3, 4, 5, 6, 7, 8};
+        Frame frame = new PlanesFrame(
+                new ByteBuffer[]{
+                        ByteBuffer.wrap(y),
+                        ByteBuffer.wrap(new byte[]{20, 21}),
+                        ByteBuffer.wrap(new byte[]{30, 31}),
+                },
+                new int[]{4, 2, 2},
+                new int[]{1, 1, 1});
+        frame.open(4, 2, 0, 0L);
+        byte[] out = new byte[12];
+        byte[] packed = new YuvPacker().pack(frame, Constants.FRAME_FORMAT_I420, out);
+        assertThat(packed == out, is(true));
+        assertThat(packed, is(I420));
+    }
+
+    @Test
+    public void testGetPackedSize() {
+        assertThat(YuvPacker.getPackedSize(640, 480), is(640 * 480 * 3 / 2));
+        assertThat(YuvPacker.getPackedSize(3, 3), is(9 + 2 * 4));
+    }
+
+    private static class PlanesFrame extends Frame {
+
+        private final ByteBuffer[] mBuffers;
+
+        private final int[] mRowStrides;
+
+        private final int[] mPixelStrides;
+
+        PlanesFrame(ByteBuffer[] buffers, int[] rowStrides, int[] pixelStrides) {
+            mBuffers = buffers;
+            mRowStrides = rowStrides;
+            mPixelStrides = pixelStrides;
+        }
+
+        @Override
+        public int getFormat() {
+            return 0;
+        }
+
+        @Override
+        public int getPlaneCount() {
+            return mBuffers.length;
+        }
+
+        @Override
+        public ByteBuffer getBuffer(int plane) {
+            return mBuffers[plane];
+        }
+
+        @Override
+        public int getRowStride(int plane) {
+            return mRowStrides[plane];
+        }
+
+        @Override
+        public int getPixelStride(int plane) {
+            return mPixelStrides[plane];
+        }
+
+        @Override
+        void onRelease() {
+        }
+
+        @Override
+        byte[] getData() {
+            return null;
+        }
+
+    }
+
+}
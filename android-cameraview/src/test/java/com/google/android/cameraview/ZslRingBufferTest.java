@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.cameraview;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class ZslRingBufferTest {
+
+    private static final int AF_INACTIVE = 0;
+    private static final int AF_FOCUSED_LOCKED = 4;
+    private static final int AF_ACTIVE_SCAN = 3;
+    private static final int AE_CONVERGED = 2;
+    private static final int AE_INACTIVE = 0;
+    private static final int AE_SEARCHING = 1;
+
+    @Test
+    public void testPut_closesOldest() {
+        ZslRingBuffer buffer = new ZslRingBuffer(2);
+        Frame first = newFrame(1L, false);
+        buffer.put(first);
+        buffer.put(newFrame(2L, false));
+        buffer.put(newFrame(3L, false));
+        assertThat(buffer.size(), is(2));
+        assertThat(first.isIdle(), is(true));
+    }
+
+    @Test
+    public void testTake_sharpestConverged() {
+        ZslRingBuffer buffer = new ZslRingBuffer(3);
+        Frame blurry = newFrame(1L, false);
+        Frame sharp = newFrame(2L, true);
+        Frame flat = newFrame(3L, false);
+        buffer.put(blurry);
+        buffer.put(sharp);
+        buffer.put(flat);
+        CaptureResultRing results = new CaptureResultRing(4);
+        results.put(1L, 0L, 0, AF_FOCUSED_LOCKED, AE_CONVERGED);
+        results.put(2L, 0L, 0, AF_FOCUSED_LOCKED, AE_CONVERGED);
+        results.put(3L, 0L, 0, AF_FOCUSED_LOCKED, AE_CONVERGED);
+        assertThat(buffer.take(results), is(sameInstance(sharp)));
+        assertThat(buffer.size(), is(2));
+        // Same sharpness; the newest wins
+        assertThat(buffer.take(results), is(sameInstance(flat)));
+    }
+
+    @Test
+    public void testTake_skipsUnconverged() {
+        ZslRingBuffer buffer = new ZslRingBuffer(2);
+        Frame converged = newFrame(1L, false);
+        buffer.put(converged);
+        buffer.put(newFrame(2L, true));
+        CaptureResultRing results = new CaptureResultRing(4);
+        results.put(1L, 0L, 0, AF_FOCUSED_LOCKED, AE_CONVERGED);
+        results.put(2L, 0L, 0, AF_ACTIVE_SCAN, AE_SEARCHING);
+        assertThat(buffer.take(results), is(sameInstance(converged)));
+        assertThat(buffer.take(results), is(nullValue()));
+    }
+
+    @Test
+    public void testTake_skipsInactive() {
+        ZslRingBuffer buffer = new ZslRingBuffer(2);
+        buffer.put(newFrame(1L, true));
+        buffer.put(newFrame(2L, true));
+        CaptureResultRing results = new CaptureResultRing(4);
+        results.put(1L, 0L, 0, AF_INACTIVE, AE_CONVERGED);
+        results.put(2L, 0L, 0, AF_FOCUSED_LOCKED, AE_INACTIVE);
+        assertThat(buffer.take(results), is(nullValue()));
+    }
+
+    @Test
+    public void testTake_fixedFocus() {
+        ZslRingBuffer buffer = new ZslRingBuffer(2);
+        buffer.setFixedFocus(true);
+        Frame frame = newFrame(1L, true);
+        buffer.put(frame);
+        CaptureResultRing results = new CaptureResultRing(4);
+        results.put(1L, 0L, 0, AF_INACTIVE, AE_CONVERGED);
+        assertThat(buffer.take(results), is(sameInstance(frame)));
+    }
+
+    @Test
+    public void testTake_unknownResult() {
+        ZslRingBuffer buffer = new ZslRingBuffer(2);
+        buffer.put(newFrame(1L, true));
+        assertThat(buffer.take(new CaptureResultRing(4)), is(nullValue()));
+    }
+
+    @Test
+    public void testClear() {
+        ZslRingBuffer buffer = new ZslRingBuffer(2);
+        Frame frame = newFrame(1L, false);
+        buffer.put(frame);
+        buffer.clear();
+        assertThat(buffer.size(), is(0));
+        assertThat(frame.isIdle(), is(true));
+    }
+
+    /**
+     * @param sharp {@code true} for a checkerboard, {@code false} for a flat gray frame.
+     */
+    private static Frame newFrame(long timestamp, boolean sharp) {
+        int width = 16;
+        int height = 8;
+        byte[] data = new byte[YuvPacker.getPackedSize(width, height)];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                data[y * width + x] = (byte) (sharp && (x + y) % 2 == 0 ? 200 : 100);
+            }
+        }
+        Frame frame = new ByteArrayFrame(data, width, height);
+        frame.open(width, height, 0, timestamp);
+        return frame;
+    }
+
+}
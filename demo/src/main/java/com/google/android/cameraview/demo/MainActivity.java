@@ -41,16 +41,11 @@ import com.google.android.cameraview.AspectRatio;
 import com.google.android.cameraview.CameraView;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.OutputStream;
 import java.text.SimpleDateFormat;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 import io.reactivex.Observable;
-import io.reactivex.ObservableEmitter;
-import io.reactivex.ObservableOnSubscribe;
 import io.reactivex.android.schedulers.AndroidSchedulers;
 import io.reactivex.disposables.Disposable;
 import io.reactivex.functions.Consumer;
@@ -112,7 +107,9 @@ public class MainActivity extends AppCompatActivity implements
                 case R.id.take_picture:
                     if (mCameraView != null) {
                         if (mModeTakePicture) {
-                            mCameraView.takePicture();
+                            mCameraView.takePicture(new File(
+                                    getExternalFilesDir(Environment.DIRECTORY_PICTURES),
+                                    "picture.jpg"));
                         } else {
                             if (mCameraView.isRecording()) {
                                 stopRecording();
@@ -252,63 +249,6 @@ public class MainActivity extends AppCompatActivity implements
         }
     }
 
-    private Observable<File> pictureTakenObservable(final byte[] data) {
-        Toast.makeText(this, R.string.picture_taken, Toast.LENGTH_SHORT)
-                .show();
-        return Observable.create(new ObservableOnSubscribe<File>() {
-            @Override
-            public void subscribe(ObservableEmitter<File> emitter) throws Exception {
-                File file = new File(getExternalFilesDir(Environment.DIRECTORY_PICTURES),
-                        "picture.jpg");
-                OutputStream os = null;
-                try {
-                    os = new FileOutputStream(file);
-                    os.write(data);
-                    os.close();
-                    emitter.onNext(file);
-                } catch (IOException e) {
-                    Log.w(TAG, "Cannot write to " + file, e);
-                    emitter.onError(e);
-                } finally {
-                    if (os != null) {
-                        try {
-                            os.close();
-                        } catch (IOException e) {
-                            // Ignore
-                            emitter.onError(e);
-                        }
-                    }
-                }
-                emitter.onComplete();
-            }
-        }).subscribeOn(Schedulers.io())
-                .observeOn(AndroidSchedulers.mainThread());
-    }
-
-
-    private void asyncPictureTakenObservable(final byte[] data) {
-        pictureTakenObservable(data)
-                .subscribe(
-                        new Consumer<File>() {
-                            @Override
-                            public void accept(File file) throws Exception {
-                                Toast.makeText(MainActivity.this, file.getAbsolutePath(),
-                                        Toast.LENGTH_SHORT).show();
-                                MediaScannerConnection.scanFile(MainActivity.this,
-                                        new String[]{file.getAbsolutePath()}, new String[]{""},
-                                        null);
-
-                            }
-                        },
-                        new Consumer<Throwable>() {
-                            @Override
-                            public void accept(Throwable throwable) throws Exception {
-                                Toast.makeText(MainActivity.this, R.string.picture_taken_failed,
-                                        Toast.LENGTH_SHORT).show();
-                            }
-                        });
-    }
-
     public void startRecordingTimer() {
         mRecordingTimeView.setVisibility(View.VISIBLE);
         final SimpleDateFormat format = new SimpleDateFormat("mm:ss");
@@ -360,9 +300,23 @@ public class MainActivity extends AppCompatActivity implements
         }
 
         @Override
-        public void onPictureTaken(CameraView cameraView, final byte[] data) {
-            Log.d(TAG, "onPictureTaken " + data.length);
-            asyncPictureTakenObservable(data);
+        public void onPictureSaved(CameraView cameraView, File file, long elapsedMillis) {
+            Log.d(TAG, "onPictureSaved " + file + " in " + elapsedMillis + "ms");
+            Toast.makeText(MainActivity.this, file.getAbsolutePath(), Toast.LENGTH_SHORT).show();
+            MediaScannerConnection.scanFile(MainActivity.this,
+                    new String[]{file.getAbsolutePath()}, new String[]{""}, null);
+        }
+
+        @Override
+        public void onCaptureFailed(CameraView cameraView, int requestId, Throwable cause) {
+            Log.w(TAG, "onCaptureFailed " + requestId, cause);
+            Toast.makeText(MainActivity.this, R.string.picture_taken_failed,
+                    Toast.LENGTH_SHORT).show();
+        }
+
+        @Override
+        public void onCameraError(CameraView cameraView, Throwable cause) {
+            Log.w(TAG, "onCameraError", cause);
         }
 
     };